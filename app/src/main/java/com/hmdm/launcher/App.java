@@ -21,6 +21,7 @@ package com.hmdm.launcher;
 
 import android.app.Application;
 
+import com.hmdm.launcher.util.PackageIndex;
 import com.jakewharton.picasso.OkHttp3Downloader;
 import com.squareup.picasso.Picasso;
 
@@ -36,6 +37,9 @@ public class App extends Application {
         //built.setIndicatorsEnabled(true);
         //built.setLoggingEnabled(true);
         Picasso.setSingletonInstance(built);
+
+        // Start building the installed package index in the background
+        PackageIndex.getInstance(this);
     }
 
 }
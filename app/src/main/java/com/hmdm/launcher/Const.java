@@ -24,6 +24,8 @@ public class Const {
     public static final int TASK_SUCCESS = 0;
     public static final int TASK_ERROR = 1;
     public static final int TASK_NETWORK_ERROR = 2;
+    // Server responded 304: the locally stored data is up to date
+    public static final int TASK_NOT_MODIFIED = 3;
 
     public static final String ACTION_SERVICE_STOP = "SERVICE_STOP";
     public static final String ACTION_SHOW_LAUNCHER = "SHOW_LAUNCHER";
@@ -38,12 +40,15 @@ public class Const {
     public static final String ACTION_POLICY_VIOLATION = "ACTION_POLICY_VIOLATION";
     public static final String ACTION_ADMIN = "ADMIN";
     public static final String ACTION_INSTALL_COMPLETE = "INSTALL_COMPLETE";
+    public static final String ACTION_BULK_INSTALL_COMPLETE = "BULK_INSTALL_COMPLETE";
     public static final String ACTION_DISABLE_BLOCK_WINDOW = "DISABLE_BLOCK_WINDOW";
 
     public static final String EXTRA_ENABLED = "ENABLED";
 
     public static long CONNECTION_TIMEOUT = 10000;
     public static long LONG_POLLING_READ_TIMEOUT = 300000;
+    // How long to wait for the pending silent installations after the update flow
+    public static long INSTALL_COMPLETE_TIMEOUT = 60000;
     public static final String STATUS_OK = "OK";
     public static final String ORIENTATION = "ORIENTATION";
     public static final String PACKAGE_NAME = "PACKAGE_NAME";
@@ -148,6 +153,13 @@ public class Const {
     public static final int LOG_DEBUG = 4;
     public static final int LOG_VERBOSE = 5;
 
+    public static final int LOG_OVERFLOW_DROP_OLDEST = 1;
+    public static final int LOG_OVERFLOW_DROP_LOWEST_LEVEL = 2;
+
+    // Maximal number of log items waiting to be saved, and the item to drop when there are more
+    public static int LOG_BUFFER_CAPACITY = 1024;
+    public static int LOG_BUFFER_OVERFLOW_POLICY = LOG_OVERFLOW_DROP_LOWEST_LEVEL;
+
     public static final String PASSWORD_QUALITY_PRESENT = "present";
     public static final String PASSWORD_QUALITY_EASY = "easy";
     public static final String PASSWORD_QUALITY_MODERATE = "moderate";
@@ -155,6 +167,11 @@ public class Const {
 
     public static final String HEADER_IP_ADDRESS = "X-IP-Address";
     public static final String HEADER_RESPONSE_SIGNATURE = "X-Response-Signature";
+    public static final String HEADER_CONFIG_VERSION = "X-Config-Version";
+    public static final String HEADER_CONFIG_PATCH = "X-Config-Patch";
+
+    public static final String CONFIG_PATCH_MERGE = "merge-patch";
+    public static final String CONFIG_PATCH_JSON = "json-patch";
 
     public static final int SCREEN_ORIENTATION_PORTRAIT = 1;
     public static final int SCREEN_ORIENTATION_LANDSCAPE = 2;
@@ -0,0 +1,149 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.db;
+
+import android.annotation.SuppressLint;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+// URLs of the files in the download cache (see DownloadCache)
+public class CacheTable {
+    private static final String CREATE_TABLE =
+            "CREATE TABLE cache (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "url TEXT UNIQUE, " +
+                    "checksum TEXT, " +
+                    "etag TEXT, " +
+                    "lastModified TEXT " +
+                    ")";
+    private static final String INSERT_ENTRY =
+            "INSERT OR REPLACE INTO cache(url, checksum, etag, lastModified) VALUES (?, ?, ?, ?)";
+    private static final String DELETE_BY_URL =
+            "DELETE FROM cache WHERE url=?";
+    private static final String DELETE_BY_CHECKSUM =
+            "DELETE FROM cache WHERE checksum=?";
+    private static final String DELETE_ALL =
+            "DELETE FROM cache";
+    private static final String SELECT_BY_URL =
+            "SELECT * FROM cache WHERE url=?";
+
+    public static class Entry {
+        private String url;
+        private String checksum;
+        private String etag;
+        private String lastModified;
+
+        public Entry() {}
+
+        @SuppressLint("Range")
+        public Entry(Cursor cursor) {
+            url = cursor.getString(cursor.getColumnIndex("url"));
+            checksum = cursor.getString(cursor.getColumnIndex("checksum"));
+            etag = cursor.getString(cursor.getColumnIndex("etag"));
+            lastModified = cursor.getString(cursor.getColumnIndex("lastModified"));
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public void setChecksum(String checksum) {
+            this.checksum = checksum;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public void setEtag(String etag) {
+            this.etag = etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public void setLastModified(String lastModified) {
+            this.lastModified = lastModified;
+        }
+    }
+
+    public static String getCreateTableSql() {
+        return CREATE_TABLE;
+    }
+
+    public static void insert(SQLiteDatabase db, Entry item) {
+        try {
+            db.execSQL(INSERT_ENTRY, new Object[]{
+                    item.getUrl(),
+                    item.getChecksum(),
+                    item.getEtag(),
+                    item.getLastModified()
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void deleteByUrl(SQLiteDatabase db, String url) {
+        try {
+            db.execSQL(DELETE_BY_URL, new String[]{ url });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void deleteByChecksum(SQLiteDatabase db, String checksum) {
+        try {
+            db.execSQL(DELETE_BY_CHECKSUM, new String[]{ checksum });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void deleteAll(SQLiteDatabase db) {
+        try {
+            db.execSQL(DELETE_ALL, new String[]{ });
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static Entry selectByUrl(SQLiteDatabase db, String url) {
+        Cursor cursor = db.rawQuery(SELECT_BY_URL, new String[] { url });
+
+        Entry item = null;
+        if (cursor.moveToFirst()) {
+            item = new Entry(cursor);
+        }
+        cursor.close();
+
+        return item;
+    }
+}
@@ -24,9 +24,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
-    // Next version should be 10 and versions must be increased by 10
-    // to enable custom database changes
-    private static final int DATABASE_VERSION = 10;
+    // Versions must be increased by 10 to enable custom database changes
+    private static final int DATABASE_VERSION = 30;
     private static final String DATABASE_NAME = "hmdm.launcher.sqlite";
 
     private static DatabaseHelper sInstance;
@@ -52,6 +51,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.execSQL(RemoteFileTable.getCreateTableSql());
             db.execSQL(LocationTable.getCreateTableSql());
             db.execSQL(DownloadTable.getCreateTableSql());
+            db.execSQL(CacheTable.getCreateTableSql());
             db.setTransactionSuccessful();
         }
         catch ( Exception e ) {
@@ -82,6 +82,17 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             if (oldVersion < 10 && newVersion >= 10) {
                 db.execSQL(DownloadTable.getCreateTableSql());
             }
+            if (oldVersion < 20 && newVersion >= 20) {
+                if (oldVersion >= 10) {
+                    // Otherwise the table has just been created with these columns
+                    db.execSQL(DownloadTable.getAlterTableAddPartOffsetSql());
+                    db.execSQL(DownloadTable.getAlterTableAddEtagSql());
+                    db.execSQL(DownloadTable.getAlterTableAddLastModifiedSql());
+                }
+            }
+            if (oldVersion < 30 && newVersion >= 30) {
+                db.execSQL(CacheTable.getCreateTableSql());
+            }
             db.setTransactionSuccessful();
         } catch ( Exception e ) {
             e.printStackTrace();
@@ -38,10 +38,18 @@ public class DownloadTable {
                     "attempts INTEGER, " +
                     "lastAttemptTime INTEGER, " +
                     "downloaded INTEGER, " +
-                    "installed INTEGER " +
+                    "installed INTEGER, " +
+                    "partOffset INTEGER, " +
+                    "etag TEXT, " +
+                    "lastModified TEXT " +
                     ")";
+    // Partially downloaded files (*.part) are resumed from the offset if the ETag or Last-Modified matches
+    private static final String ALTER_TABLE_ADD_PART_OFFSET = "ALTER TABLE downloads ADD partOffset INTEGER";
+    private static final String ALTER_TABLE_ADD_ETAG = "ALTER TABLE downloads ADD etag TEXT";
+    private static final String ALTER_TABLE_ADD_LAST_MODIFIED = "ALTER TABLE downloads ADD lastModified TEXT";
     private static final String INSERT_DOWNLOAD =
-            "INSERT OR REPLACE INTO downloads(url, path, attempts, lastAttemptTime, downloaded, installed) VALUES (?, ?, ?, ?, ?, ?)";
+            "INSERT OR REPLACE INTO downloads(url, path, attempts, lastAttemptTime, downloaded, installed, partOffset, etag, lastModified) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_DOWNLOAD =
             "DELETE FROM downloads WHERE _id=?";
     private static final String DELETE_DOWNLOAD_BY_PATH =
@@ -57,15 +65,30 @@ public class DownloadTable {
         return CREATE_TABLE;
     }
 
+    public static String getAlterTableAddPartOffsetSql() {
+        return ALTER_TABLE_ADD_PART_OFFSET;
+    }
+
+    public static String getAlterTableAddEtagSql() {
+        return ALTER_TABLE_ADD_ETAG;
+    }
+
+    public static String getAlterTableAddLastModifiedSql() {
+        return ALTER_TABLE_ADD_LAST_MODIFIED;
+    }
+
     public static void insert(SQLiteDatabase db, Download item) {
         try {
-            db.execSQL(INSERT_DOWNLOAD, new String[]{
+            db.execSQL(INSERT_DOWNLOAD, new Object[]{
                     item.getUrl(),
                     item.getPath(),
                     Long.toString(item.getAttempts()),
                     Long.toString(item.getLastAttemptTime()),
                     item.isDownloaded() ? "1" : "0",
-                    item.isInstalled() ? "1" : "0"
+                    item.isInstalled() ? "1" : "0",
+                    Long.toString(item.getPartOffset()),
+                    item.getEtag(),
+                    item.getLastModified()
             });
         } catch (SQLException e) {
             e.printStackTrace();
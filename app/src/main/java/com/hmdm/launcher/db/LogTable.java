@@ -23,6 +23,7 @@ import android.annotation.SuppressLint;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.hmdm.launcher.json.RemoteLogItem;
 
@@ -51,23 +52,38 @@ public class LogTable {
         return CREATE_TABLE;
     }
 
-    public static void insert(SQLiteDatabase db, RemoteLogItem item) {
+    public static void insert(SQLiteDatabase db, List<RemoteLogItem> items) {
+        SQLiteStatement statement = db.compileStatement(INSERT_LOG);
+        db.beginTransaction();
         try {
-            db.execSQL(INSERT_LOG, new String[]{
-                    Long.toString(item.getTimestamp()),
-                    Integer.toString(item.getLogLevel()),
-                    item.getPackageId(),
-                    item.getMessage()
-            });
+            for (RemoteLogItem item : items) {
+                statement.bindLong(1, item.getTimestamp());
+                statement.bindLong(2, item.getLogLevel());
+                bindString(statement, 3, item.getPackageId());
+                bindString(statement, 4, item.getMessage());
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
         }
     }
 
     public static void deleteOldItems(SQLiteDatabase db) {
         long oldTs = System.currentTimeMillis() - 7 * 24 * 60 * 60 * 1000L;
         try {
-            db.execSQL(DELETE_FROM_LOGS, new String[]{
+            db.execSQL(DELETE_OLD_LOGS, new String[]{
                     Long.toString(oldTs)
             });
         } catch (SQLException e) {
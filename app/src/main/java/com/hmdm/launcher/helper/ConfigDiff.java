@@ -0,0 +1,83 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.helper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Structural difference between two configurations, grouped by the update stages.
+ * Configurations are compared as JSON trees, so the comparison is not affected
+ * by in-place changes of ServerConfig objects.
+ */
+public class ConfigDiff {
+
+    public static final String STAGE_PUSH = "push";
+    public static final String STAGE_FILES = "files";
+    public static final String STAGE_APPS = "apps";
+    public static final String STAGE_SETTINGS = "settings";
+    public static final String STAGE_POLICIES = "policies";
+    public static final String STAGE_ACTIONS = "actions";
+
+    // Config fields affecting each stage
+    private static final Map<String, String[]> stageFields = new HashMap<>();
+    static {
+        stageFields.put(STAGE_PUSH, new String[] {"pushOptions", "keepaliveTime"});
+        stageFields.put(STAGE_FILES, new String[] {"files"});
+        stageFields.put(STAGE_APPS, new String[] {"applications", "appPermissions"});
+        stageFields.put(STAGE_SETTINGS, new String[] {"applicationSettings"});
+        stageFields.put(STAGE_POLICIES, new String[] {"runDefaultLauncher"});
+        stageFields.put(STAGE_ACTIONS, new String[] {"actions"});
+    }
+
+    private final Set<String> changedStages = new HashSet<>();
+
+    // If the old config is unknown, all stages are considered changed
+    public ConfigDiff(JsonNode oldConfig, JsonNode newConfig) {
+        for (Map.Entry<String, String[]> entry : stageFields.entrySet()) {
+            if (oldConfig == null || newConfig == null || !fieldsEqual(oldConfig, newConfig, entry.getValue())) {
+                changedStages.add(entry.getKey());
+            }
+        }
+    }
+
+    public boolean isChanged(String stage) {
+        return changedStages.contains(stage);
+    }
+
+    public Set<String> getChangedStages() {
+        return changedStages;
+    }
+
+    private static boolean fieldsEqual(JsonNode oldConfig, JsonNode newConfig, String[] fields) {
+        for (String field : fields) {
+            JsonNode oldValue = oldConfig.get(field);
+            JsonNode newValue = newConfig.get(field);
+            if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
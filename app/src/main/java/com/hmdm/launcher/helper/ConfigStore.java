@@ -0,0 +1,96 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.helper;
+
+import android.content.Context;
+
+import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.util.JsonCodecs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * File storage of the server configuration.
+ * The file contains a header (magic number and format version) followed by the compact JSON.
+ * It is written to a temporary file which then replaces the stored one, so a crash
+ * while writing never leaves a broken config.
+ */
+public class ConfigStore {
+
+    private static final String FILE_NAME = "config.dat";
+    private static final int MAGIC = 0x484D4443;
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private final File tempFile;
+
+    public ConfigStore(Context context) {
+        file = new File(context.getFilesDir(), FILE_NAME);
+        tempFile = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    public ServerConfig read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a config file: " + file.getAbsolutePath());
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported config file version: " + version);
+            }
+            return JsonCodecs.readServerConfig(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(ServerConfig config) throws IOException {
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            JsonCodecs.writeServerConfig(out, config);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            fos.close();
+            tempFile.delete();
+            throw e;
+        }
+        fos.close();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to replace " + file.getAbsolutePath());
+        }
+    }
+}
@@ -6,7 +6,9 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageInstaller;
+import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
@@ -15,10 +17,12 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.db.DatabaseHelper;
@@ -26,6 +30,7 @@ import com.hmdm.launcher.db.DownloadTable;
 import com.hmdm.launcher.db.RemoteFileTable;
 import com.hmdm.launcher.json.Action;
 import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.json.ApplicationPatch;
 import com.hmdm.launcher.json.DeviceInfo;
 import com.hmdm.launcher.json.Download;
 import com.hmdm.launcher.json.PushMessage;
@@ -39,8 +44,16 @@ import com.hmdm.launcher.task.ConfirmPasswordResetTask;
 import com.hmdm.launcher.task.ConfirmRebootTask;
 import com.hmdm.launcher.task.GetRemoteLogConfigTask;
 import com.hmdm.launcher.task.GetServerConfigTask;
+import com.hmdm.launcher.util.ApkPatcher;
+import com.hmdm.launcher.util.BulkInstallPlan;
+import com.hmdm.launcher.util.BulkInstaller;
 import com.hmdm.launcher.util.DeviceInfoProvider;
+import com.hmdm.launcher.util.DownloadDigest;
+import com.hmdm.launcher.util.DownloadPrefetcher;
+import com.hmdm.launcher.util.InstallTracker;
 import com.hmdm.launcher.util.InstallUtils;
+import com.hmdm.launcher.util.JsonCodecs;
+import com.hmdm.launcher.util.PackageIndex;
 import com.hmdm.launcher.util.PushNotificationMqttWrapper;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.SystemUtils;
@@ -51,10 +64,12 @@ import org.apache.commons.io.FileUtils;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -90,12 +105,30 @@ public class ConfigUpdater {
     private List<RemoteFile> filesForInstall = new LinkedList();
     private List< Application > applicationsForInstall = new LinkedList();
     private List< Application > applicationsForRun = new LinkedList();
-    private Map<String, File> pendingInstallations = new HashMap<String,File>();
+    private InstallTracker installTracker = new InstallTracker();
     private BroadcastReceiver appInstallReceiver;
+    private DownloadPrefetcher downloadPrefetcher;
+    // Set when the bulk install is done in this update, the rest of the apps are installed one by one
+    private boolean bulkInstallDone;
     private boolean retry = true;
     private boolean loadOnly = false;
     private boolean userInteraction;
 
+    // Config applied by the last completed update flow (as a JSON tree) and the time it was applied
+    private static JsonNode appliedConfig;
+    private static long appliedConfigTime;
+    // Set if the last files / apps stage found nothing to install
+    private static boolean filesUpToDate;
+    private static boolean appsUpToDate;
+    // All stages are executed at least once in this period, to revert manual changes on the device
+    private static final long FULL_UPDATE_PERIOD_MS = 6 * 60 * 60 * 1000L;
+
+    private JsonNode currentConfig;
+    private ConfigDiff configDiff;
+    private String stageName;
+    private long stageStartTime;
+    private StringBuilder stageTiming;
+
     public List<Application> getApplicationsForRun() {
         return applicationsForRun;
     }
@@ -134,6 +167,9 @@ public class ConfigUpdater {
         DetailedInfoWorker.requestConfigUpdate(context);
         this.context = context;
         this.uiNotifier = uiNotifier;
+        if (downloadPrefetcher == null) {
+            downloadPrefetcher = new DownloadPrefetcher(context);
+        }
         this.userInteraction = userInteraction;
 
         // Work around a strange bug with stale SettingsHelper instance: re-read its value
@@ -160,6 +196,12 @@ public class ConfigUpdater {
                         RemoteLogger.log(context, Const.LOG_INFO, "Configuration updated");
                         updateRemoteLogConfig();
                         break;
+                    case Const.TASK_NOT_MODIFIED:
+                        // The stored configuration is up to date, it has not been parsed again;
+                        // ConfigDiff then skips the stages which have already applied it
+                        RemoteLogger.log(context, Const.LOG_INFO, "Configuration not modified");
+                        updateRemoteLogConfig();
+                        break;
                     case Const.TASK_ERROR:
                         RemoteLogger.log(context, Const.LOG_WARN, "Failed to update config: server error");
                         if (uiNotifier != null) {
@@ -224,6 +266,7 @@ public class ConfigUpdater {
                     e.printStackTrace();
                 }
                 if (!loadOnly) {
+                    compareWithAppliedConfig();
                     checkServerMigration();
                 } else {
                     Log.d(Const.LOG_TAG, "LoadOnly flag set, finishing the update flow");
@@ -234,6 +277,54 @@ public class ConfigUpdater {
         task.execute();
     }
 
+    // Determine which stages of the update flow can be skipped
+    private void compareWithAppliedConfig() {
+        ServerConfig config = settingsHelper.getConfig();
+        currentConfig = config != null ? JsonCodecs.getMapper().valueToTree(config) : null;
+        boolean fullUpdate = userInteraction || appliedConfig == null ||
+                System.currentTimeMillis() - appliedConfigTime > FULL_UPDATE_PERIOD_MS;
+        configDiff = new ConfigDiff(fullUpdate ? null : appliedConfig, currentConfig);
+        stageTiming = new StringBuilder();
+        stageName = null;
+        Log.d(Const.LOG_TAG, "Changed config stages: " + configDiff.getChangedStages());
+    }
+
+    private boolean isStageChanged(String stage) {
+        return configDiff == null || configDiff.isChanged(stage);
+    }
+
+    private void startStage(String name) {
+        finishStage();
+        stageName = name;
+        stageStartTime = System.currentTimeMillis();
+    }
+
+    private void skipStage(String name) {
+        finishStage();
+        if (stageTiming != null) {
+            stageTiming.append(name).append(": skipped; ");
+        }
+    }
+
+    private void finishStage() {
+        if (stageName != null && stageTiming != null) {
+            stageTiming.append(stageName).append(": ").
+                    append(System.currentTimeMillis() - stageStartTime).append(" ms; ");
+        }
+        stageName = null;
+    }
+
+    // Called when the whole update flow is completed
+    private void finishStages() {
+        finishStage();
+        if (stageTiming != null) {
+            RemoteLogger.log(context, Const.LOG_DEBUG, "Update flow timing: " + stageTiming.toString().trim());
+            appliedConfig = currentConfig;
+            appliedConfigTime = System.currentTimeMillis();
+            stageTiming = null;
+        }
+    }
+
     private void setSelfPermissions(String appPermissionStrategy) {
         Utils.autoGrantRequestedPermissions(context, context.getPackageName(),
                 appPermissionStrategy, true);
@@ -251,10 +342,14 @@ public class ConfigUpdater {
                         public void onSuccess() {
                             // Everything is OK, migrate!
                             RemoteLogger.log(context, Const.LOG_INFO, "Migrated to " + settingsHelper.getConfig().getNewServerUrl().trim());
-                            settingsHelper.setBaseUrl(migrationHelper.getBaseUrl());
-                            settingsHelper.setSecondaryBaseUrl(migrationHelper.getBaseUrl());
-                            settingsHelper.setServerProject(migrationHelper.getServerProject());
+                            settingsHelper.beginTransaction()
+                                    .setBaseUrl(migrationHelper.getBaseUrl())
+                                    .setSecondaryBaseUrl(migrationHelper.getBaseUrl())
+                                    .setServerProject(migrationHelper.getServerProject())
+                                    .commit();
                             ServerServiceKeeper.resetServices();
+                            // New server: apply everything
+                            appliedConfig = null;
                             configInitializing = false;
                             updateConfig(context, uiNotifier, false);
                         }
@@ -277,6 +372,12 @@ public class ConfigUpdater {
 
     private void setupPushService() {
         Log.d(Const.LOG_TAG, "setupPushService() called");
+        if (!isStageChanged(ConfigDiff.STAGE_PUSH) && isPushActive()) {
+            skipStage(ConfigDiff.STAGE_PUSH);
+            checkFactoryReset();
+            return;
+        }
+        startStage(ConfigDiff.STAGE_PUSH);
         String pushOptions = null;
         int keepaliveTime = Const.DEFAULT_PUSH_ALARM_KEEPALIVE_TIME_SEC;
         if (settingsHelper != null && settingsHelper.getConfig() != null) {
@@ -319,8 +420,18 @@ public class ConfigUpdater {
         }
     }
 
+    private boolean isPushActive() {
+        String pushOptions = settingsHelper.getConfig() != null ? settingsHelper.getConfig().getPushOptions() : null;
+        if (ServerConfig.PUSH_OPTIONS_MQTT_WORKER.equals(pushOptions) || ServerConfig.PUSH_OPTIONS_MQTT_ALARM.equals(pushOptions)) {
+            return PushNotificationMqttWrapper.getInstance().isConnected();
+        }
+        // Long polling service is sticky, it keeps running by itself
+        return true;
+    }
+
     private void checkFactoryReset() {
         Log.d(Const.LOG_TAG, "checkFactoryReset() called");
+        startStage("commands");
         ServerConfig config = settingsHelper != null ? settingsHelper.getConfig() : null;
         if (config != null && config.getFactoryReset() != null && config.getFactoryReset()) {
             // We got a factory reset request, let's confirm and erase everything!
@@ -410,6 +521,12 @@ public class ConfigUpdater {
 
     private void setDefaultLauncher() {
         ServerConfig config = settingsHelper != null ? settingsHelper.getConfig() : null;
+        if (!isStageChanged(ConfigDiff.STAGE_POLICIES)) {
+            skipStage(ConfigDiff.STAGE_POLICIES);
+            updatePolicies();
+            return;
+        }
+        startStage(ConfigDiff.STAGE_POLICIES);
         if (Utils.isDeviceOwner(context) && config != null) {
             // "Run default launcher" means we should not set Headwind MDM as a default launcher
             // and clear the setting if it has been already set
@@ -443,7 +560,10 @@ public class ConfigUpdater {
 
         // Set up a proxy server
         SettingsHelper settingsHelper = SettingsHelper.getInstance(context);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && Utils.isDeviceOwner(context)) {
+        if (!isStageChanged(ConfigDiff.STAGE_SETTINGS)) {
+            skipStage(ConfigDiff.STAGE_SETTINGS);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && Utils.isDeviceOwner(context)) {
+            startStage(ConfigDiff.STAGE_SETTINGS);
             String proxyUrl = settingsHelper.getAppPreference(context.getPackageName(), "proxy");
             if (proxyUrl != null) {
                 proxyUrl = proxyUrl.trim();
@@ -464,10 +584,24 @@ public class ConfigUpdater {
     }
 
     private void checkAndUpdateFiles() {
+        if (!isStageChanged(ConfigDiff.STAGE_FILES) && filesUpToDate) {
+            skipStage(ConfigDiff.STAGE_FILES);
+            loadAndInstallFiles();
+            return;
+        }
+        startStage(ConfigDiff.STAGE_FILES);
+        final boolean prefetchApps = canPrefetchApplications();
+        final Map<String, File> installing = installTracker.getPendingFiles();
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... voids) {
                 ServerConfig config = settingsHelper.getConfig();
+                if (prefetchApps) {
+                    // Apps do not depend on files here, so start downloading them while files are processed
+                    List<Application> applications = new LinkedList<>();
+                    InstallUtils.generateApplicationsForInstallList(context, config.getApplications(), applications, installing);
+                    prefetchApplications(applications);
+                }
                 // This may be a long procedure due to checksum calculation so execute it in the background thread
                 InstallUtils.generateFilesForInstallList(context, config.getFiles(), filesForInstall);
                 return null;
@@ -475,11 +609,26 @@ public class ConfigUpdater {
 
             @Override
             protected void onPostExecute(Void v) {
+                filesUpToDate = filesForInstall.isEmpty();
                 loadAndInstallFiles();
             }
         }.execute();
     }
 
+    // This function is called from a background thread
+    private void prefetchFiles(List<RemoteFile> remoteFiles) {
+        DatabaseHelper dbHelper = DatabaseHelper.instance(context);
+        for (RemoteFile remoteFile : remoteFiles) {
+            if (remoteFile.isRemove() || remoteFile.getUrl() == null) {
+                continue;
+            }
+            // Files with earlier download or install errors are checked in the main flow
+            if (DownloadTable.selectByPath(dbHelper.getReadableDatabase(), remoteFile.getPath()) == null) {
+                downloadPrefetcher.prefetch(remoteFile.getUrl(), remoteFile.getChecksum());
+            }
+        }
+    }
+
     public static class RemoteFileStatus {
         public RemoteFile remoteFile;
         public boolean downloaded;
@@ -493,6 +642,8 @@ public class ConfigUpdater {
         }
         if (filesForInstall.size() > 0 && isGoodNetworkForUpdate) {
             RemoteFile remoteFile = filesForInstall.remove(0);
+            final List<RemoteFile> nextFiles = new ArrayList<>(filesForInstall.subList(0,
+                    Math.min(filesForInstall.size(), DownloadPrefetcher.MAX_PARALLEL_DOWNLOADS)));
 
             new AsyncTask<RemoteFile, Void, RemoteFileStatus>() {
 
@@ -500,6 +651,7 @@ public class ConfigUpdater {
                 protected RemoteFileStatus doInBackground(RemoteFile... remoteFiles) {
                     final RemoteFile remoteFile = remoteFiles[0];
                     RemoteFileStatus remoteFileStatus = null;
+                    prefetchFiles(nextFiles);
 
                     if (remoteFile.isRemove()) {
                         RemoteLogger.log(context, Const.LOG_DEBUG, "Removing file: " + remoteFile.getPath());
@@ -533,9 +685,10 @@ public class ConfigUpdater {
                         }
 
                         File file = null;
+                        DownloadDigest digest = new DownloadDigest(remoteFile.getChecksum());
                         try {
                             RemoteLogger.log(context, Const.LOG_DEBUG, "Downloading file: " + remoteFile.getPath());
-                            file = InstallUtils.downloadFile(context, remoteFile.getUrl(),
+                            file = downloadPrefetcher.download(remoteFile.getUrl(),
                                     new InstallUtils.DownloadProgress() {
                                         @Override
                                         public void onDownloadProgress(final int progress, final long total, final long current) {
@@ -554,7 +707,14 @@ public class ConfigUpdater {
                                                 }
                                             });*/
                                         }
-                                    });
+                                    }, digest);
+                            if (remoteFile.getChecksum() != null && digest.getChecksum() != null &&
+                                    !remoteFile.getChecksum().equalsIgnoreCase(digest.getChecksum())) {
+                                file.delete();
+                                file = null;
+                                throw new Exception("checksum mismatch: expected " + remoteFile.getChecksum() +
+                                        ", downloaded " + digest.getChecksum());
+                            }
                         } catch (Exception e) {
                             RemoteLogger.log(context, Const.LOG_WARN,
                                     "Failed to download file " + remoteFile.getPath() + ": " + e.getMessage());
@@ -579,7 +739,12 @@ public class ConfigUpdater {
                                     }
                                     createFileFromTemplate(file, finalFile, settingsHelper.getDeviceId(), imei, settingsHelper.getConfig());
                                 }
-                                RemoteFileTable.insert(dbHelper.getWritableDatabase(), remoteFile);
+                                // Save the checksum of the downloaded file, so it doesn't need to be calculated again
+                                RemoteFile installedFile = new RemoteFile(remoteFile);
+                                if (digest.getChecksum() != null) {
+                                    installedFile.setChecksum(digest.getChecksum());
+                                }
+                                RemoteFileTable.insert(dbHelper.getWritableDatabase(), installedFile);
                                 remoteFileStatus.installed = true;
                                 if (lastDownload != null) {
                                     DownloadTable.deleteByPath(dbHelper.getWritableDatabase(), lastDownload.getPath());
@@ -697,6 +862,13 @@ public class ConfigUpdater {
 
     private void installCertificates() {
         final String certPaths = settingsHelper.getAppPreference(context.getPackageName(), "certificates");
+        if (!isStageChanged(ConfigDiff.STAGE_SETTINGS) && !isStageChanged(ConfigDiff.STAGE_FILES)) {
+            // Certificates are installed from files listed in the settings
+            skipStage("certificates");
+            checkAndUpdateApplications();
+            return;
+        }
+        startStage("certificates");
         if (certPaths != null) {
             new AsyncTask<Void, Void, Void>() {
                 @Override
@@ -727,15 +899,255 @@ public class ConfigUpdater {
          */
         configInitializing = false;
 
+        if (!isStageChanged(ConfigDiff.STAGE_APPS) && appsUpToDate) {
+            skipStage(ConfigDiff.STAGE_APPS);
+            loadAndInstallApplications();
+            return;
+        }
+        startStage(ConfigDiff.STAGE_APPS);
+
         ServerConfig config = settingsHelper.getConfig();
-        InstallUtils.generateApplicationsForInstallList(context, config.getApplications(), applicationsForInstall, pendingInstallations);
+        InstallUtils.generateApplicationsForInstallList(context, config.getApplications(), applicationsForInstall, installTracker.getPendingFiles());
+        moveSelfUpdateToEnd(applicationsForInstall);
+        bulkInstallDone = false;
 
         Log.i(Const.LOG_TAG, "checkAndUpdateApplications(): list size=" + applicationsForInstall.size());
+        appsUpToDate = applicationsForInstall.isEmpty() && installTracker.isEmpty();
 
         registerAppInstallReceiver(config != null ? config.getAppPermissions() : null);
         loadAndInstallApplications();
     }
 
+    // Updating the launcher restarts it, so it must be installed after all other apps
+    private void moveSelfUpdateToEnd(List<Application> applications) {
+        for (int n = 0; n < applications.size() - 1; n++) {
+            Application application = applications.get(n);
+            if (!application.isRemove() && application.getPkg().equals(context.getPackageName())) {
+                applications.remove(n);
+                applications.add(application);
+                return;
+            }
+        }
+    }
+
+    // Apps are downloaded during the files stage unless certificates are installed:
+    // certificates are delivered as files and may be required to download apps
+    private boolean canPrefetchApplications() {
+        if (!isStageChanged(ConfigDiff.STAGE_APPS) && appsUpToDate) {
+            return false;
+        }
+        if (settingsHelper.getAppPreference(context.getPackageName(), "certificates") != null) {
+            return false;
+        }
+        return userInteraction || (checkAppUpdateTimeRestriction(settingsHelper.getConfig()) &&
+                checkUpdateNetworkRestriction(settingsHelper.getConfig(), context));
+    }
+
+    // This function is called from a background thread
+    private void prefetchApplications(List<Application> applications) {
+        for (Application application : applications) {
+            if (canDownloadInAdvance(context, application)) {
+                downloadPrefetcher.prefetch(application.getUrl(), null);
+            }
+        }
+    }
+
+    /**
+     * Download the pending applications into the download cache while the app update
+     * is not allowed by the schedule, so only the installation remains for the update window.
+     * This function is called from a background thread.
+     */
+    public static void stageApplications(Context context, List<Application> applications) {
+        if (!BuildConfig.PRESTAGE_APP_UPDATES) {
+            return;
+        }
+        for (Application application : applications) {
+            if (canDownloadInAdvance(context, application)) {
+                DownloadPrefetcher.stage(context, application.getUrl());
+            }
+        }
+    }
+
+    private static boolean canDownloadInAdvance(Context context, Application application) {
+        if (application.isRemove() || application.getUrl() == null ||
+                application.getUrl().startsWith("market://") || application.getUrl().startsWith("file:///")) {
+            return false;
+        }
+        if (application.isStreamInstall() && InstallUtils.canStreamInstall(context, application.getUrl())) {
+            // Downloaded right into the installer session
+            return false;
+        }
+        if (application.getPatches() != null && !application.getPatches().isEmpty()) {
+            // May be rebuilt from a patch
+            return false;
+        }
+        // Apps with earlier download or install errors are checked in the main flow
+        String tempPath = InstallUtils.getAppTempPath(context, application.getUrl());
+        return DownloadTable.selectByPath(DatabaseHelper.instance(context).getReadableDatabase(), tempPath) == null;
+    }
+
+    // Download the app or rebuild it from a patch, returns null if the download failed
+    // This function is called from a background thread
+    private File downloadApplication(Application application, Download lastDownload, String tempPath) {
+        File file = null;
+        try {
+            // An update could be rebuilt from the installed version with a much smaller patch
+            file = patchApplication(application, tempPath);
+            if (file == null) {
+                RemoteLogger.log(context, Const.LOG_DEBUG, "Downloading app: " + application.getPkg());
+                file = downloadPrefetcher.download(application.getUrl(),
+                        new InstallUtils.DownloadProgress() {
+                            @Override
+                            public void onDownloadProgress(final int progress, final long total, final long current) {
+                                if (uiNotifier != null) {
+                                    uiNotifier.onDownloadProgress(progress, total, current);
+                                }
+                                /*
+                                handler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        binding.progress.setMax(100);
+                                        binding.progress.setProgress(progress);
+
+                                        binding.setFileLength(total);
+                                        binding.setDownloadedLength(current);
+                                    }
+                                });
+                                 */
+                            }
+                        }, null);
+            }
+        } catch (Exception e) {
+            RemoteLogger.log(context, Const.LOG_WARN, "Failed to download app " + application.getPkg() + ": " + e.getMessage());
+            e.printStackTrace();
+            // Save the download attempt in the database
+            saveFailedAttempt(context, lastDownload, application.getUrl(), tempPath, false, false);
+        }
+        return file;
+    }
+
+    // In the device owner mode, several apps are installed in batches and removed concurrently
+    private boolean canInstallInBulk() {
+        if (!BuildConfig.BULK_APP_INSTALL || bulkInstallDone || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ||
+                !(Utils.isDeviceOwner(context) || BuildConfig.SYSTEM_PRIVILEGES)) {
+            return false;
+        }
+        return createBulkInstallPlan().canInstallInBulk(applicationsForInstall);
+    }
+
+    private BulkInstallPlan createBulkInstallPlan() {
+        // XAPKs are never installed in bulk, so only the device-wide part of the stream install check matters
+        return new BulkInstallPlan(BulkInstaller.isMultiPackageSupported(),
+                InstallUtils.canStreamInstall(context, ""), context.getPackageName());
+    }
+
+    // Removes and installs the suitable apps at once, then the rest of the apps
+    // (including the ones failed to download) are handled one by one by loadAndInstallApplications()
+    private void installApplicationsInBulk() {
+        bulkInstallDone = true;
+        final BulkInstallPlan plan = createBulkInstallPlan();
+        plan.take(applicationsForInstall);
+        final String appPermissionStrategy = settingsHelper.getConfig().getAppPermissions();
+
+        new AsyncTask<Void, Void, List<Application>>() {
+            @Override
+            protected List<Application> doInBackground(Void... voids) {
+                BulkInstaller bulkInstaller = new BulkInstaller(context, Const.INSTALL_COMPLETE_TIMEOUT);
+                try {
+                    bulkInstaller.open();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    plan.fallBackAll();
+                    return plan.getFallback();
+                }
+                try {
+                    List<Application> removals = plan.getRemovals();
+                    if (removals.size() > 0) {
+                        List<String> packageNames = new ArrayList<>();
+                        for (Application application : removals) {
+                            packageNames.add(application.getPkg());
+                            if (uiNotifier != null) {
+                                uiNotifier.onAppRemoving(application);
+                            }
+                        }
+                        long start = SystemClock.elapsedRealtime();
+                        Map<String, String> failures = bulkInstaller.uninstall(packageNames);
+                        RemoteLogger.log(context, Const.LOG_INFO, "Removed " + (removals.size() - failures.size()) + " of " +
+                                removals.size() + " apps in " + (SystemClock.elapsedRealtime() - start) + " ms");
+                        for (Map.Entry<String, String> failure : failures.entrySet()) {
+                            RemoteLogger.log(context, Const.LOG_WARN, "Failed to remove app " + failure.getKey() +
+                                    " in a batch: " + failure.getValue());
+                        }
+                        plan.onRemoved(failures);
+                    }
+
+                    DatabaseHelper dbHelper = DatabaseHelper.instance(context);
+                    for (int n = 0; n < plan.getBatchCount(); n++) {
+                        List<Application> batch = plan.getBatch(n);
+                        prefetchApplications(plan.getPrefetch(n));
+
+                        Map<String, File> apks = new LinkedHashMap<>();
+                        for (Application application : batch) {
+                            String tempPath = InstallUtils.getAppTempPath(context, application.getUrl());
+                            Download lastDownload = DownloadTable.selectByPath(dbHelper.getReadableDatabase(), tempPath);
+                            if (!canDownload(lastDownload, application.getPkg())) {
+                                plan.addFallback(application);
+                                continue;
+                            }
+                            if (uiNotifier != null) {
+                                uiNotifier.onAppDownloading(application);
+                            }
+                            File file = downloadApplication(application, lastDownload, tempPath);
+                            if (file == null) {
+                                plan.addFallback(application);
+                                continue;
+                            }
+                            if (lastDownload != null) {
+                                DownloadTable.deleteByPath(dbHelper.getWritableDatabase(), lastDownload.getPath());
+                            }
+                            apks.put(application.getPkg(), file);
+                            if (uiNotifier != null) {
+                                uiNotifier.onAppInstalling(application);
+                            }
+                        }
+
+                        long start = SystemClock.elapsedRealtime();
+                        Map<String, String> failures = bulkInstaller.install(apks);
+                        RemoteLogger.log(context, Const.LOG_INFO, "Installed " + (apks.size() - failures.size()) + " of " +
+                                apks.size() + " apps in a batch in " + (SystemClock.elapsedRealtime() - start) + " ms");
+                        for (File file : apks.values()) {
+                            InstallUtils.deleteTempApk(file);
+                        }
+                        for (Application application : plan.onBatchInstalled(batch, apks, failures)) {
+                            RemoteLogger.log(context, Const.LOG_WARN, "Failed to install app " + application.getPkg() +
+                                    ": " + failures.get(application.getPkg()));
+                            // Save failed install attempt to prevent next downloads
+                            saveFailedAttempt(context, null, "", apks.get(application.getPkg()).getAbsolutePath(), true, false);
+                            if (uiNotifier != null) {
+                                uiNotifier.onAppInstallError(application.getPkg());
+                            }
+                        }
+                    }
+                } finally {
+                    bulkInstaller.close();
+                }
+                return plan.getFallback();
+            }
+
+            @Override
+            protected void onPostExecute(List<Application> fallback) {
+                for (Application application : plan.getInstalled()) {
+                    onAppInstalled(application.getPkg(), appPermissionStrategy);
+                    if (application.isRunAfterInstall()) {
+                        applicationsForRun.add(application);
+                    }
+                }
+                applicationsForInstall.addAll(0, fallback);
+                loadAndInstallApplications();
+            }
+        }.execute();
+    }
+
     private class ApplicationStatus {
         public Application application;
         public boolean installed;
@@ -751,8 +1163,17 @@ public class ConfigUpdater {
         if (applicationsForInstall.size() > 0 && !isGoodNetworkForUpdate) {
             RemoteLogger.log(context, Const.LOG_DEBUG, "Application update not enabled: waiting for WiFi connection");
         }
-        if (applicationsForInstall.size() > 0 && isGoodTimeForAppUpdate && isGoodNetworkForUpdate) {
+        if (applicationsForInstall.size() > 0 && !isGoodTimeForAppUpdate && isGoodNetworkForUpdate) {
+            // Download the updates now, they will be installed from the download cache in the scheduled time
+            final List<Application> pendingApplications = new ArrayList<>(applicationsForInstall);
+            AsyncTask.execute(() -> stageApplications(context, pendingApplications));
+        }
+        if (applicationsForInstall.size() > 0 && isGoodTimeForAppUpdate && isGoodNetworkForUpdate && canInstallInBulk()) {
+            installApplicationsInBulk();
+        } else if (applicationsForInstall.size() > 0 && isGoodTimeForAppUpdate && isGoodNetworkForUpdate) {
             Application application = applicationsForInstall.remove(0);
+            final List<Application> nextApplications = new ArrayList<>(applicationsForInstall.subList(0,
+                    Math.min(applicationsForInstall.size(), DownloadPrefetcher.MAX_PARALLEL_DOWNLOADS)));
 
             new AsyncTask<Application, Void, ApplicationStatus>() {
 
@@ -760,6 +1181,8 @@ public class ConfigUpdater {
                 protected ApplicationStatus doInBackground(Application... applications) {
                     final Application application = applications[0];
                     ApplicationStatus applicationStatus = null;
+                    // Next apps are downloaded while this one is being installed
+                    prefetchApplications(nextApplications);
 
                     if (application.isRemove()) {
                         // Remove the app
@@ -831,37 +1254,14 @@ public class ConfigUpdater {
                             return applicationStatus;
                         }
 
-                        File file = null;
-                        try {
-                            RemoteLogger.log(context, Const.LOG_DEBUG, "Downloading app: " + application.getPkg());
-                            file = InstallUtils.downloadFile(context, application.getUrl(),
-                                    new InstallUtils.DownloadProgress() {
-                                        @Override
-                                        public void onDownloadProgress(final int progress, final long total, final long current) {
-                                            if (uiNotifier != null) {
-                                                uiNotifier.onDownloadProgress(progress, total, current);
-                                            }
-                                            /*
-                                            handler.post(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    binding.progress.setMax(100);
-                                                    binding.progress.setProgress(progress);
-
-                                                    binding.setFileLength(total);
-                                                    binding.setDownloadedLength(current);
-                                                }
-                                            });
-                                             */
-                                        }
-                                    });
-                        } catch (Exception e) {
-                            RemoteLogger.log(context, Const.LOG_WARN, "Failed to download app " + application.getPkg() + ": " + e.getMessage());
-                            e.printStackTrace();
-                            // Save the download attempt in the database
-                            saveFailedAttempt(context, lastDownload, application.getUrl(), tempPath, false, false);
+                        if (application.isStreamInstall() && InstallUtils.canStreamInstall(context, application.getUrl()) &&
+                                (application.getPatches() == null || application.getPatches().isEmpty())) {
+                            applicationStatus.installed = streamInstallApplication(application, lastDownload, tempPath);
+                            return applicationStatus;
                         }
 
+                        File file = downloadApplication(application, lastDownload, tempPath);
+
                         if (file != null) {
                             if (uiNotifier != null) {
                                 uiNotifier.onAppInstalling(application);
@@ -921,6 +1321,10 @@ public class ConfigUpdater {
     }
 
     private void lockRestrictions() {
+        // Restrictions are released at the start of each update, so they're always locked again
+        startStage("restrictions");
+        // Downloads which have not been used (for example, due to an install error) are not needed any more
+        downloadPrefetcher.cancel();
         if (settingsHelper.getConfig() != null && settingsHelper.getConfig().getRestrictions() != null) {
             Utils.lockUserRestrictions(context, settingsHelper.getConfig().getRestrictions());
         }
@@ -939,13 +1343,19 @@ public class ConfigUpdater {
 
     private void setActions() {
         final ServerConfig config = settingsHelper.getConfig();
+        final boolean actionsChanged = isStageChanged(ConfigDiff.STAGE_ACTIONS);
+        if (actionsChanged) {
+            startStage(ConfigDiff.STAGE_ACTIONS);
+        } else {
+            skipStage(ConfigDiff.STAGE_ACTIONS);
+        }
         // As per the documentation, setting the default preferred activity should not be done on the main thread
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... voids) {
                 // If kiosk browser is installed, make it a default browser
                 // This is a temporary solution! Perhaps user wants only to open specific hosts / schemes
-                if (Utils.isDeviceOwner(context)) {
+                if (actionsChanged && Utils.isDeviceOwner(context)) {
                     if (config.getActions() != null && config.getActions().size() > 0) {
                         for (Action action : config.getActions()) {
                             Utils.setAction(context, action);
@@ -957,6 +1367,7 @@ public class ConfigUpdater {
 
             @Override
             protected void onPostExecute(Void v) {
+                finishStages();
                 if (uiNotifier != null) {
                     uiNotifier.onConfigUpdateComplete();
                 }
@@ -966,7 +1377,7 @@ public class ConfigUpdater {
                 context.sendBroadcast(intent);
 
                 RemoteLogger.log(context, Const.LOG_VERBOSE, "Update flow completed");
-                if (pendingInstallations.size() > 0) {
+                if (!installTracker.isEmpty()) {
                     // Some apps are still pending installation
                     // Let's wait until they're all installed
                     // Then notify UI about that so it could refresh the screen
@@ -989,15 +1400,15 @@ public class ConfigUpdater {
 
             @Override
             protected Void doInBackground(Void... voids) {
-                for (int n = 0; n < 60; n++) {
-                    if (pendingInstallations.size() == 0) {
-                        break;
-                    }
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                try {
+                    List<String> timedOut = installTracker.awaitAll(Const.INSTALL_COMPLETE_TIMEOUT);
+                    for (String packageName : timedOut) {
+                        InstallTracker.InstallStats stats = InstallTracker.getStats(packageName);
+                        RemoteLogger.log(context, Const.LOG_WARN, "App " + packageName + " not installed in " +
+                                Const.INSTALL_COMPLETE_TIMEOUT / 1000 + " sec, timeouts: " + (stats != null ? stats.getTimeouts() : 1));
                     }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
                 }
                 unregisterAppInstallReceiver();
                 if (uiNotifier != null) {
@@ -1044,33 +1455,22 @@ public class ConfigUpdater {
                             case PackageInstaller.STATUS_SUCCESS:
                                 RemoteLogger.log(context, Const.LOG_DEBUG, "App installed successfully");
                                 String packageName = intent.getStringExtra(Const.PACKAGE_NAME);
+                                // Uninstall results have no PACKAGE_NAME, the package name is set by the system
+                                String changedPackage = packageName != null ? packageName :
+                                        intent.getStringExtra(PackageInstaller.EXTRA_PACKAGE_NAME);
+                                if (changedPackage != null) {
+                                    // Don't wait for the package broadcast: the next steps may read the index
+                                    PackageIndex.getInstance(context).updatePackageAsync(changedPackage);
+                                }
                                 if (packageName != null) {
-                                    Log.i(Const.LOG_TAG, "Install complete: " + packageName);
-                                    File file = pendingInstallations.get(packageName);
-                                    if (file != null) {
-                                        pendingInstallations.remove(packageName);
-                                        InstallUtils.deleteTempApk(file);
-                                    }
-                                    if (BuildConfig.SYSTEM_PRIVILEGES || Utils.isDeviceOwner(context)) {
-                                        // Always grant all dangerous rights to the app
-                                        Utils.autoGrantRequestedPermissions(context, packageName,
-                                                appPermissionStrategy, false);
-                                        if (BuildConfig.SYSTEM_PRIVILEGES && packageName.equals(Const.APUPPET_PACKAGE_NAME)) {
-                                            // Automatically grant required permissions to aPuppet if we can
-                                            // Note: device owner can only grant permissions to self, not to other apps!
-                                            try {
-                                                SystemUtils.autoSetAccessibilityPermission(context,
-                                                        Const.APUPPET_PACKAGE_NAME, Const.APUPPET_SERVICE_CLASS_NAME);
-                                                SystemUtils.autoSetOverlayPermission(context,
-                                                        Const.APUPPET_PACKAGE_NAME);
-                                            } catch (Exception e) {
-                                                e.printStackTrace();
-                                            }
-                                        }
-                                    }
-                                    if (uiNotifier != null) {
-                                        uiNotifier.onAppInstallComplete(packageName);
+                                    InstallTracker.InstallFuture installation = installTracker.complete(packageName, true);
+                                    if (installation != null) {
+                                        Log.i(Const.LOG_TAG, "Install complete: " + packageName + " in " + installation.getLatency() + " ms");
+                                        InstallUtils.deleteTempApk(installation.getFile());
+                                    } else {
+                                        Log.i(Const.LOG_TAG, "Install complete: " + packageName);
                                     }
+                                    onAppInstalled(packageName, appPermissionStrategy);
                                 }
                                 break;
                             default:
@@ -1084,9 +1484,9 @@ public class ConfigUpdater {
                                 RemoteLogger.log(context, Const.LOG_ERROR, logRecord);
                                 packageName = intent.getStringExtra(Const.PACKAGE_NAME);
                                 if (packageName != null) {
-                                    File file = pendingInstallations.get(packageName);
-                                    if (file != null) {
-                                        pendingInstallations.remove(packageName);
+                                    InstallTracker.InstallFuture installation = installTracker.complete(packageName, false);
+                                    if (installation != null) {
+                                        File file = installation.getFile();
                                         InstallUtils.deleteTempApk(file);
                                         // Save failed install attempt to prevent next downloads
                                         saveFailedAttempt(context, null, "", file.getAbsolutePath(), true, false);
@@ -1119,6 +1519,29 @@ public class ConfigUpdater {
         }
     }
 
+    private void onAppInstalled(String packageName, String appPermissionStrategy) {
+        if (BuildConfig.SYSTEM_PRIVILEGES || Utils.isDeviceOwner(context)) {
+            // Always grant all dangerous rights to the app
+            Utils.autoGrantRequestedPermissions(context, packageName,
+                    appPermissionStrategy, false);
+            if (BuildConfig.SYSTEM_PRIVILEGES && packageName.equals(Const.APUPPET_PACKAGE_NAME)) {
+                // Automatically grant required permissions to aPuppet if we can
+                // Note: device owner can only grant permissions to self, not to other apps!
+                try {
+                    SystemUtils.autoSetAccessibilityPermission(context,
+                            Const.APUPPET_PACKAGE_NAME, Const.APUPPET_SERVICE_CLASS_NAME);
+                    SystemUtils.autoSetOverlayPermission(context,
+                            Const.APUPPET_PACKAGE_NAME);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (uiNotifier != null) {
+            uiNotifier.onAppInstallComplete(packageName);
+        }
+    }
+
     private void unregisterAppInstallReceiver() {
         if (appInstallReceiver != null) {
             try {
@@ -1152,13 +1575,13 @@ public class ConfigUpdater {
         }
         String versionData = version == null || version.equals("0") ? "" : " " + version;
         if (Utils.isDeviceOwner(context) || BuildConfig.SYSTEM_PRIVILEGES) {
-            pendingInstallations.put(packageName, file);
+            installTracker.start(packageName, file);
             RemoteLogger.log(context, Const.LOG_INFO, "Silently installing app " + packageName + versionData);
             InstallUtils.silentInstallApplication(context, file, packageName, new InstallUtils.InstallErrorHandler() {
                 @Override
                 public void onInstallError(String msg) {
                     Log.i(Const.LOG_TAG, "installApplication(): error installing app " + packageName);
-                    pendingInstallations.remove(packageName);
+                    installTracker.complete(packageName, false);
                     if (file.exists()) {
                         file.delete();
                     }
@@ -1194,7 +1617,7 @@ public class ConfigUpdater {
             InstallUtils.requestInstallApplication(context, file, new InstallUtils.InstallErrorHandler() {
                 @Override
                 public void onInstallError(String msg) {
-                    pendingInstallations.remove(packageName);
+                    installTracker.complete(packageName, false);
                     if (file.exists()) {
                         file.delete();
                     }
@@ -1214,6 +1637,110 @@ public class ConfigUpdater {
         }
     }
 
+    // Download a patch from the installed version and rebuild the new APK
+    // Returns null if there's no suitable patch or patching failed, so the full APK should be downloaded
+    // This function is called from a background thread
+    private File patchApplication(Application application, String tempPath) {
+        if (application.getPatches() == null || application.getPatches().isEmpty()) {
+            return null;
+        }
+        PackageInfo packageInfo;
+        try {
+            packageInfo = context.getPackageManager().getPackageInfo(application.getPkg(), 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && packageInfo.applicationInfo.splitSourceDirs != null) {
+            // Only single APKs are patched
+            return null;
+        }
+        ApplicationPatch patch = null;
+        for (ApplicationPatch p : application.getPatches()) {
+            if (p.getFromCode() == packageInfo.versionCode && p.getUrl() != null && p.getChecksum() != null) {
+                patch = p;
+                break;
+            }
+        }
+        if (patch == null) {
+            return null;
+        }
+
+        File patchFile = null;
+        File file = new File(tempPath);
+        try {
+            RemoteLogger.log(context, Const.LOG_DEBUG, "Downloading patch for app " + application.getPkg() +
+                    " from version code " + patch.getFromCode());
+            patchFile = InstallUtils.downloadFile(context, patch.getUrl(),
+                    new InstallUtils.DownloadProgress() {
+                        @Override
+                        public void onDownloadProgress(final int progress, final long total, final long current) {
+                            if (uiNotifier != null) {
+                                uiNotifier.onDownloadProgress(progress, total, current);
+                            }
+                        }
+                    });
+            DownloadDigest digest = new DownloadDigest();
+            ApkPatcher.apply(new File(packageInfo.applicationInfo.sourceDir), patchFile, file, digest);
+            if (!patch.getChecksum().equalsIgnoreCase(digest.getChecksum())) {
+                throw new Exception("checksum mismatch: expected " + patch.getChecksum() + ", got " + digest.getChecksum());
+            }
+            String savedData = patch.getSize() > 0 ? ", saved " + (patch.getSize() - patchFile.length()) + " bytes" : "";
+            RemoteLogger.log(context, Const.LOG_INFO, "App " + application.getPkg() + " rebuilt from a patch of " +
+                    patchFile.length() + " bytes" + savedData);
+            return file;
+        } catch (Exception e) {
+            RemoteLogger.log(context, Const.LOG_WARN, "Failed to patch app " + application.getPkg() +
+                    ", downloading the full APK: " + e.getMessage());
+            e.printStackTrace();
+            file.delete();
+            return null;
+        } finally {
+            if (patchFile != null) {
+                patchFile.delete();
+            }
+        }
+    }
+
+    // Install the app while downloading it (device owner mode only), returns false if the download failed
+    // This function is called from a background thread
+    private boolean streamInstallApplication(Application application, Download lastDownload, String tempPath) {
+        final String packageName = application.getPkg();
+        if (packageName.equals(context.getPackageName()) &&
+                context.getPackageManager().getLaunchIntentForPackage(Const.LAUNCHER_RESTARTER_PACKAGE_ID) != null) {
+            // Restart self in EMUI: there's no auto restart after update in EMUI, we must use a helper app
+            startLauncherRestarter();
+        }
+        String versionData = application.getVersion() == null || application.getVersion().equals("0") ? "" : " " + application.getVersion();
+        // There's no temporary file here, but its path is used to save failed install attempts
+        installTracker.start(packageName, new File(tempPath));
+        RemoteLogger.log(context, Const.LOG_INFO, "Silently installing app " + packageName + versionData + " while downloading");
+        try {
+            InstallUtils.streamInstallApplication(context, application.getUrl(), packageName,
+                    new InstallUtils.DownloadProgress() {
+                        @Override
+                        public void onDownloadProgress(final int progress, final long total, final long current) {
+                            if (uiNotifier != null) {
+                                uiNotifier.onDownloadProgress(progress, total, current);
+                            }
+                        }
+                    });
+        } catch (Exception e) {
+            installTracker.complete(packageName, false);
+            RemoteLogger.log(context, Const.LOG_WARN, "Failed to download app " + packageName + ": " + e.getMessage());
+            e.printStackTrace();
+            // Save the download attempt in the database
+            saveFailedAttempt(context, lastDownload, application.getUrl(), tempPath, false, false);
+            return false;
+        }
+        if (uiNotifier != null) {
+            uiNotifier.onAppInstalling(application);
+        }
+        if (lastDownload != null) {
+            DownloadTable.deleteByPath(DatabaseHelper.instance(context).getWritableDatabase(), lastDownload.getPath());
+        }
+        return true;
+    }
+
     private void uninstallApplication(final String packageName) {
         if (Utils.isDeviceOwner(context) || BuildConfig.SYSTEM_PRIVILEGES) {
             RemoteLogger.log(context, Const.LOG_INFO, "Silently uninstall app " + packageName);
@@ -22,12 +22,13 @@ package com.hmdm.launcher.helper;
 import android.content.Context;
 import android.content.SharedPreferences;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.json.Application;
 import com.hmdm.launcher.json.ApplicationSetting;
 import com.hmdm.launcher.json.RemoteFile;
 import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.server.ConditionalGetInterceptor;
+import com.hmdm.launcher.util.JsonCodecs;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -35,6 +36,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 public class SettingsHelper {
 
@@ -48,6 +50,7 @@ public class SettingsHelper {
     private static final String PREF_KEY_GROUP = ".helpers.GROUP";
     private static final String PREF_KEY_DEVICE_ID_USE = ".helpers.DEVICE_ID_USE";
     private static final String PREF_KEY_CONFIG = ".helpers.CONFIG";
+    private static final String PREF_KEY_CONFIG_VERSION = ".helpers.CONFIG_VERSION";
     private static final String PREF_KEY_IP_ADDRESS = ".helpers.IP_ADDRESS";
     private static final String PREF_QR_PROVISIONING = ".helpers.QR_PROVISIONING";
     private static final String PREF_CFG_UPDATE_TIMESTAMP = ".helpers.CFG_UPDATE_TIMESTAMP";
@@ -59,7 +62,29 @@ public class SettingsHelper {
     // This prefix is for the compatibility with a legacy package name
     private static String PACKAGE_NAME;
 
+    // Full preference keys, built once
+    private final String baseUrlKey;
+    private final String secondaryBaseUrlKey;
+    private final String serverProjectKey;
+    private final String deviceIdKey;
+    private final String customerKey;
+    private final String configNameKey;
+    private final String groupKey;
+    private final String deviceIdUseKey;
+    private final String configKey;
+    private final String configVersionKey;
+    private final String ipAddressKey;
+    private final String qrProvisioningKey;
+    private final String cfgUpdateTimestampKey;
+    private final String activityRunningKey;
+    private final String restoreLauncherKey;
+    private final String integratedProvisioningFlowKey;
+    private final String lastAppUpdateStateKey;
+    private final String appStartTimeKey;
+
     private SharedPreferences sharedPreferences;
+    private ConfigStore configStore;
+    private final CountDownLatch configLoaded = new CountDownLatch(1);
     private ServerConfig config;
     private ServerConfig oldConfig;
     private Map<String,ApplicationSetting> appSettings = new HashMap<>();
@@ -77,188 +102,225 @@ public class SettingsHelper {
 
     public SettingsHelper(Context context) {
         PACKAGE_NAME = context.getPackageName();
+        baseUrlKey = PACKAGE_NAME + PREF_KEY_BASE_URL;
+        secondaryBaseUrlKey = PACKAGE_NAME + PREF_KEY_SECONDARY_BASE_URL;
+        serverProjectKey = PACKAGE_NAME + PREF_KEY_SERVER_PROJECT;
+        deviceIdKey = PACKAGE_NAME + PREF_KEY_DEVICE_ID;
+        customerKey = PACKAGE_NAME + PREF_KEY_CUSTOMER;
+        configNameKey = PACKAGE_NAME + PREF_KEY_CONFIG_NAME;
+        groupKey = PACKAGE_NAME + PREF_KEY_GROUP;
+        deviceIdUseKey = PACKAGE_NAME + PREF_KEY_DEVICE_ID_USE;
+        configKey = PACKAGE_NAME + PREF_KEY_CONFIG;
+        configVersionKey = PACKAGE_NAME + PREF_KEY_CONFIG_VERSION;
+        ipAddressKey = PACKAGE_NAME + PREF_KEY_IP_ADDRESS;
+        qrProvisioningKey = PACKAGE_NAME + PREF_QR_PROVISIONING;
+        cfgUpdateTimestampKey = PACKAGE_NAME + PREF_CFG_UPDATE_TIMESTAMP;
+        activityRunningKey = PACKAGE_NAME + PREF_KEY_ACTIVITY_RUNNING;
+        restoreLauncherKey = PACKAGE_NAME + PREF_KEY_RESTORE_LAUNCHER;
+        integratedProvisioningFlowKey = PACKAGE_NAME + PREF_KEY_INTEGRATED_PROVISIONING_FLOW;
+        lastAppUpdateStateKey = PACKAGE_NAME + PREF_KEY_LAST_APP_UPDATE_STATE;
+        appStartTimeKey = PACKAGE_NAME + PREF_KEY_APP_START_TIME;
         sharedPreferences = context.getSharedPreferences(PACKAGE_NAME + PREFERENCES_ID, Context.MODE_PRIVATE );
-        initConfig();
+        configStore = new ConfigStore(context);
+        // The config may be large, so it is loaded in background while the app is starting
+        // Methods accessing the config wait until it's loaded
+        new Thread(() -> {
+            initConfig();
+            configLoaded.countDown();
+        }).start();
     }
 
     public void refreshConfig(Context context) {
+        awaitConfig();
         if (config == null) {
             sharedPreferences = context.getSharedPreferences(PACKAGE_NAME + PREFERENCES_ID, Context.MODE_PRIVATE );
             initConfig();
         }
     }
 
+    private void awaitConfig() {
+        try {
+            configLoaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void initConfig() {
         try {
-            if ( sharedPreferences.contains(PACKAGE_NAME + PREF_KEY_CONFIG) ) {
-                ObjectMapper mapper = new ObjectMapper();
-                config = mapper.readValue(
-                        sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CONFIG, "" ),
-                        ServerConfig.class );
-                updateAppSettingsMap(config);
-                updateAllowedClassesSet(config);
+            if (configStore.exists()) {
+                config = configStore.read();
+            } else if ( sharedPreferences.contains(configKey) ) {
+                config = JsonCodecs.readServerConfig(
+                        sharedPreferences.getString(configKey, "" ) );
+                migrateConfig(config);
             }
+            updateAppSettingsMap(config);
+            updateAllowedClassesSet(config);
         } catch ( Exception e ) {
             e.printStackTrace();
         }
     }
 
+    // Move the config stored by older versions from shared preferences to the config file
+    private void migrateConfig(ServerConfig config) {
+        try {
+            configStore.write(config);
+            sharedPreferences.edit().remove(configKey).commit();
+        } catch (Exception e) {
+            // Keep the legacy config, try again at next start
+            e.printStackTrace();
+        }
+    }
+
     // Warning: this may return false if the launcher has been updated from older version
     public boolean isQrProvisioning() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_QR_PROVISIONING, false);
+        return sharedPreferences.getBoolean(qrProvisioningKey, false);
     }
 
     public boolean setQrProvisioning(boolean value) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_QR_PROVISIONING, value).commit();
+        return beginTransaction().setQrProvisioning(value).commit();
     }
 
     public boolean isIntegratedProvisioningFlow() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_KEY_INTEGRATED_PROVISIONING_FLOW, false);
+        return sharedPreferences.getBoolean(integratedProvisioningFlowKey, false);
     }
 
     public boolean setIntegratedProvisioningFlow(boolean value) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_KEY_INTEGRATED_PROVISIONING_FLOW, value).commit();
+        return beginTransaction().setIntegratedProvisioningFlow(value).commit();
     }
 
     public boolean isBaseUrlSet() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_BASE_URL, null ) != null;
+        return sharedPreferences.getString(baseUrlKey, null ) != null;
     }
 
     public String getBaseUrl() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_BASE_URL, BuildConfig.BASE_URL );
+        return sharedPreferences.getString(baseUrlKey, BuildConfig.BASE_URL );
     }
 
-    public boolean setBaseUrl( String baseUrl ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_BASE_URL, baseUrl ).commit();
+    public boolean setBaseUrl(String baseUrl) {
+        return beginTransaction().setBaseUrl(baseUrl).commit();
     }
 
     public String getSecondaryBaseUrl() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_SECONDARY_BASE_URL, BuildConfig.SECONDARY_BASE_URL );
+        return sharedPreferences.getString(secondaryBaseUrlKey, BuildConfig.SECONDARY_BASE_URL );
     }
 
-    public boolean setSecondaryBaseUrl( String secondaryBaseUrl ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_SECONDARY_BASE_URL, secondaryBaseUrl ).commit();
+    public boolean setSecondaryBaseUrl(String secondaryBaseUrl) {
+        return beginTransaction().setSecondaryBaseUrl(secondaryBaseUrl).commit();
     }
 
     public String getServerProject() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_SERVER_PROJECT, BuildConfig.SERVER_PROJECT );
+        return sharedPreferences.getString(serverProjectKey, BuildConfig.SERVER_PROJECT );
     }
 
-    public boolean setServerProject( String serverProject ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_SERVER_PROJECT, serverProject ).commit();
+    public boolean setServerProject(String serverProject) {
+        return beginTransaction().setServerProject(serverProject).commit();
     }
 
     public String getDeviceId() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_DEVICE_ID,"" );
+        return sharedPreferences.getString(deviceIdKey,"" );
     }
 
-    public boolean setDeviceId( String deviceId ) {
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_DEVICE_ID, deviceId ).commit();
+    public boolean setDeviceId(String deviceId) {
+        return beginTransaction().setDeviceId(deviceId).commit();
     }
 
     public String getExternalIp() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_IP_ADDRESS, "" );
+        return sharedPreferences.getString(ipAddressKey, "" );
     }
 
-    public boolean setExternalIp( String externalIp ) {
-        if (externalIp == null) {
-            externalIp = "";
-        }
-        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_IP_ADDRESS, externalIp ).commit();
+    // The external IP is informational and updated by most requests, so it's written in background
+    public boolean setExternalIp(String externalIp) {
+        beginTransaction().setExternalIp(externalIp).apply();
+        return true;
     }
 
     public boolean isMainActivityRunning() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_KEY_ACTIVITY_RUNNING, false );
+        return sharedPreferences.getBoolean(activityRunningKey, false );
     }
 
     public boolean setMainActivityRunning(boolean running) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_KEY_ACTIVITY_RUNNING, running ).commit();
+        return beginTransaction().setMainActivityRunning(running).commit();
     }
 
     public boolean isRestoreLauncher() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_KEY_RESTORE_LAUNCHER, false);
+        return sharedPreferences.getBoolean(restoreLauncherKey, false);
     }
 
     public boolean setRestoreLauncher(boolean restore) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_KEY_RESTORE_LAUNCHER, restore ).commit();
+        return beginTransaction().setRestoreLauncher(restore).commit();
     }
 
     public long getConfigUpdateTimestamp() {
-        return sharedPreferences.getLong(PACKAGE_NAME + PREF_CFG_UPDATE_TIMESTAMP, 0);
+        return sharedPreferences.getLong(cfgUpdateTimestampKey, 0);
     }
 
     public boolean setConfigUpdateTimestamp(long timestamp) {
-        return sharedPreferences.edit().putLong(PACKAGE_NAME + PREF_CFG_UPDATE_TIMESTAMP, timestamp).commit();
+        return beginTransaction().setConfigUpdateTimestamp(timestamp).commit();
     }
 
     public boolean setCreateOptionCustomer(String customer) {
-        if (customer == null) {
-            return sharedPreferences.edit().remove(PACKAGE_NAME + PREF_KEY_CUSTOMER).commit();
-        } else {
-            return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CUSTOMER, customer ).commit();
-        }
+        return beginTransaction().setCreateOptionCustomer(customer).commit();
     }
 
     public String getCreateOptionCustomer() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CUSTOMER, null);
+        return sharedPreferences.getString(customerKey, null);
     }
 
     public boolean setDeviceIdUse(String deviceIdUse) {
-        if (deviceIdUse == null) {
-            return sharedPreferences.edit().remove(PACKAGE_NAME + PREF_KEY_DEVICE_ID_USE).commit();
-        } else {
-            return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_DEVICE_ID_USE, deviceIdUse ).commit();
-        }
+        return beginTransaction().setDeviceIdUse(deviceIdUse).commit();
     }
 
     public String getDeviceIdUse() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_DEVICE_ID_USE, null);
+        return sharedPreferences.getString(deviceIdUseKey, null);
     }
 
     public boolean setLastAppUpdateState(boolean lastAppUpdateState) {
-        return sharedPreferences.edit().putBoolean(PACKAGE_NAME + PREF_KEY_LAST_APP_UPDATE_STATE, lastAppUpdateState).commit();
+        return beginTransaction().setLastAppUpdateState(lastAppUpdateState).commit();
     }
 
     public boolean getLastAppUpdateState() {
-        return sharedPreferences.getBoolean(PACKAGE_NAME + PREF_KEY_LAST_APP_UPDATE_STATE, false);
+        return sharedPreferences.getBoolean(lastAppUpdateStateKey, false);
     }
 
     public boolean setAppStartTime(long time) {
-        return sharedPreferences.edit().putLong(PACKAGE_NAME + PREF_KEY_APP_START_TIME, time).commit();
+        return beginTransaction().setAppStartTime(time).commit();
     }
 
     public long getAppStartTime() {
-        return sharedPreferences.getLong(PACKAGE_NAME + PREF_KEY_APP_START_TIME, 0);
+        return sharedPreferences.getLong(appStartTimeKey, 0);
     }
 
     public boolean setCreateOptionConfigName(String configName) {
-        if (configName == null) {
-            return sharedPreferences.edit().remove(PACKAGE_NAME + PREF_KEY_CONFIG_NAME).commit();
-        } else {
-            return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CONFIG_NAME, configName ).commit();
-        }
+        return beginTransaction().setCreateOptionConfigName(configName).commit();
     }
 
     public String getCreateOptionConfigName() {
-        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CONFIG_NAME, null);
+        return sharedPreferences.getString(configNameKey, null);
     }
 
     public boolean setCreateOptionGroup(Set<String> group) {
-        if (group == null) {
-            return sharedPreferences.edit().remove(PACKAGE_NAME + PREF_KEY_GROUP).commit();
-        } else {
-            return sharedPreferences.edit().putStringSet(PACKAGE_NAME + PREF_KEY_GROUP, group).commit();
-        }
+        return beginTransaction().setCreateOptionGroup(group).commit();
     }
 
     public Set<String> getCreateOptionGroup() {
-        return sharedPreferences.getStringSet(PACKAGE_NAME + PREF_KEY_GROUP, null);
+        return sharedPreferences.getStringSet(groupKey, null);
+    }
+
+    // Server version of the stored config, used as a base for config patches
+    public String getConfigVersion() {
+        return sharedPreferences.getString(configVersionKey, null);
+    }
+
+    public boolean setConfigVersion(String configVersion) {
+        return beginTransaction().setConfigVersion(configVersion).commit();
     }
 
     public void updateConfig( ServerConfig config ) {
+        awaitConfig();
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CONFIG, objectMapper.writeValueAsString( config ) ).commit();
+            configStore.write( config );
         } catch ( Exception e ) {
             e.printStackTrace();
             // Do not apply changes when there's an error while writing settings
@@ -271,45 +333,56 @@ public class SettingsHelper {
     }
 
     public ServerConfig getConfig() {
+        awaitConfig();
         return config;
     }
 
     public void removeRemoteFile(RemoteFile remoteFile) {
+        ServerConfig config = getConfig();
         Iterator<RemoteFile> it = config.getFiles().iterator();
         while (it.hasNext()) {
             RemoteFile file = it.next();
             if ( file.getPath().equals( remoteFile.getPath() ) ) {
                 it.remove();
-                updateConfig(config);
+                saveLocallyModifiedConfig(config);
                 return;
             }
         }
     }
 
     public void removeApplication(Application application) {
+        ServerConfig config = getConfig();
         Iterator<Application> it = config.getApplications().iterator();
         while (it.hasNext()) {
             Application app = it.next();
             if (app.getPkg().equals(application.getPkg())) {
                 it.remove();
-                updateConfig(config);
+                saveLocallyModifiedConfig(config);
                 return;
             }
         }
     }
 
     public void removeApplicationUrl(Application application) {
+        ServerConfig config = getConfig();
         Iterator<Application> it = config.getApplications().iterator();
         while (it.hasNext()) {
             Application app = it.next();
             if (app.getPkg().equals(application.getPkg())) {
                 app.setUrl(null);
-                updateConfig(config);
+                saveLocallyModifiedConfig(config);
                 return;
             }
         }
     }
 
+    private void saveLocallyModifiedConfig(ServerConfig config) {
+        updateConfig(config);
+        // Local config differs from the server one now, so request the full config next time
+        ConditionalGetInterceptor.reset();
+        setConfigVersion(null);
+    }
+
     private void updateAppSettingsMap(ServerConfig config) {
         if (config == null || config.getApplicationSettings() == null) {
             return;
@@ -334,6 +407,7 @@ public class SettingsHelper {
     }
 
     public String getAppPreference(String packageId, String attr) {
+        awaitConfig();
         String key = packageId + "." + attr;
         ApplicationSetting setting = appSettings.get(key);
         if (setting == null) {
@@ -343,6 +417,7 @@ public class SettingsHelper {
     }
 
     public boolean setAppPreference(String packageId, String attr, String value) {
+        awaitConfig();
         String key = packageId + "." + attr;
         ApplicationSetting setting = appSettings.get(key);
         if (setting == null) {
@@ -366,6 +441,143 @@ public class SettingsHelper {
     }
 
     public Set<String> getAllowedClasses() {
+        awaitConfig();
         return allowedClasses;
     }
+
+    public Transaction beginTransaction() {
+        return new Transaction(sharedPreferences.edit());
+    }
+
+    /**
+     * Groups several settings changes into a single write.
+     * New values are visible to getters right after commit() or apply().
+     * commit() writes to disk synchronously: use it for the values which must survive a crash
+     * (device ID, server URL, config version which must match the stored config).
+     * apply() writes to disk in background; Android flushes pending writes when an activity
+     * is paused or a service is stopped, but the changes may be lost if the process is killed.
+     */
+    public class Transaction {
+        private final SharedPreferences.Editor editor;
+
+        private Transaction(SharedPreferences.Editor editor) {
+            this.editor = editor;
+        }
+
+        public boolean commit() {
+            return editor.commit();
+        }
+
+        public void apply() {
+            editor.apply();
+        }
+
+        public Transaction setQrProvisioning(boolean value) {
+            editor.putBoolean(qrProvisioningKey, value);
+            return this;
+        }
+
+        public Transaction setIntegratedProvisioningFlow(boolean value) {
+            editor.putBoolean(integratedProvisioningFlowKey, value);
+            return this;
+        }
+
+        public Transaction setBaseUrl(String baseUrl) {
+            editor.putString(baseUrlKey, baseUrl);
+            return this;
+        }
+
+        public Transaction setSecondaryBaseUrl(String secondaryBaseUrl) {
+            editor.putString(secondaryBaseUrlKey, secondaryBaseUrl);
+            return this;
+        }
+
+        public Transaction setServerProject(String serverProject) {
+            editor.putString(serverProjectKey, serverProject);
+            return this;
+        }
+
+        public Transaction setDeviceId(String deviceId) {
+            editor.putString(deviceIdKey, deviceId);
+            return this;
+        }
+
+        public Transaction setExternalIp(String externalIp) {
+            if (externalIp == null) {
+                externalIp = "";
+            }
+            editor.putString(ipAddressKey, externalIp);
+            return this;
+        }
+
+        public Transaction setMainActivityRunning(boolean running) {
+            editor.putBoolean(activityRunningKey, running);
+            return this;
+        }
+
+        public Transaction setRestoreLauncher(boolean restore) {
+            editor.putBoolean(restoreLauncherKey, restore);
+            return this;
+        }
+
+        public Transaction setConfigUpdateTimestamp(long timestamp) {
+            editor.putLong(cfgUpdateTimestampKey, timestamp);
+            return this;
+        }
+
+        public Transaction setCreateOptionCustomer(String customer) {
+            if (customer == null) {
+                editor.remove(customerKey);
+            } else {
+                editor.putString(customerKey, customer);
+            }
+            return this;
+        }
+
+        public Transaction setDeviceIdUse(String deviceIdUse) {
+            if (deviceIdUse == null) {
+                editor.remove(deviceIdUseKey);
+            } else {
+                editor.putString(deviceIdUseKey, deviceIdUse);
+            }
+            return this;
+        }
+
+        public Transaction setLastAppUpdateState(boolean lastAppUpdateState) {
+            editor.putBoolean(lastAppUpdateStateKey, lastAppUpdateState);
+            return this;
+        }
+
+        public Transaction setAppStartTime(long time) {
+            editor.putLong(appStartTimeKey, time);
+            return this;
+        }
+
+        public Transaction setCreateOptionConfigName(String configName) {
+            if (configName == null) {
+                editor.remove(configNameKey);
+            } else {
+                editor.putString(configNameKey, configName);
+            }
+            return this;
+        }
+
+        public Transaction setCreateOptionGroup(Set<String> group) {
+            if (group == null) {
+                editor.remove(groupKey);
+            } else {
+                editor.putStringSet(groupKey, group);
+            }
+            return this;
+        }
+
+        public Transaction setConfigVersion(String configVersion) {
+            if (configVersion == null) {
+                editor.remove(configVersionKey);
+            } else {
+                editor.putString(configVersionKey, configVersion);
+            }
+            return this;
+        }
+    }
 }
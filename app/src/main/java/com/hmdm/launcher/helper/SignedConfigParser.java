@@ -0,0 +1,220 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.helper;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.util.JsonCodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Parses the configuration response {"status":"OK","message":null,"data":{...}}
+ * in a single pass over the response stream.
+ *
+ * While Jackson builds ServerConfig from the "data" field, the raw bytes starting from
+ * that field are hashed the same way as the server signs them:
+ * SHA1(REQUEST_SIGNATURE + data without whitespace). As before, the signed part ends
+ * right before the last byte of the response (the closing brace of the envelope).
+ */
+public class SignedConfigParser {
+
+    private String status;
+    private String message;
+    private ServerConfig data;
+    private String signature;
+    private String head;
+
+    public void parse(InputStream inputStream, String secret) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(secret.getBytes("UTF-8"));
+
+        DigestingInputStream in = new DigestingInputStream(inputStream, digest);
+        try {
+            JsonParser parser = JsonCodecs.getMapper().getFactory().createParser(in);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("JSON object expected");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("status".equals(field)) {
+                    status = parser.getValueAsString();
+                } else if ("message".equals(field)) {
+                    message = parser.getValueAsString();
+                } else if ("data".equals(field) && token == JsonToken.START_OBJECT) {
+                    in.startDigest(parser.getTokenLocation().getByteOffset());
+                    data = JsonCodecs.readServerConfig(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            // Trailing bytes belong to the signed part as well
+            in.drain();
+        } finally {
+            head = in.getHead();
+        }
+        signature = toHex(digest.digest());
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public ServerConfig getData() {
+        return data;
+    }
+
+    // Calculated signature, null if there's no data in the response
+    public String getSignature() {
+        return data != null ? signature : null;
+    }
+
+    // Beginning of the response body for error reporting
+    public String getHead() {
+        return head;
+    }
+
+    private static String toHex(byte[] digest) {
+        final char[] hexArray = "0123456789ABCDEF".toCharArray();
+        char[] hexChars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            int v = digest[i] & 0xFF;
+            hexChars[i * 2] = hexArray[v >>> 4];
+            hexChars[i * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * Feeds the stream bytes to the digest starting from the given offset.
+     * The parser reads ahead, so the offset of the data field becomes known only after
+     * the bytes have passed; a small window of recent bytes covers this read-ahead.
+     * The last byte of the stream is never hashed.
+     */
+    private static class DigestingInputStream extends FilterInputStream {
+        // Must exceed the parser input buffer (8000 bytes in Jackson)
+        private static final int WINDOW_SIZE = 65536;
+        private static final int HEAD_SIZE = 1024;
+
+        private final MessageDigest digest;
+        private final byte[] window = new byte[WINDOW_SIZE];
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        private long position = 0;
+        private boolean digesting = false;
+        private int pending = -1;
+
+        DigestingInputStream(InputStream in, MessageDigest digest) {
+            super(in);
+            this.digest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) {
+                consume((byte) c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            for (int i = 0; i < count; i++) {
+                consume(b[off + i]);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must be hashed as well
+            byte[] buffer = new byte[4096];
+            int count = read(buffer, 0, (int) Math.min(n, buffer.length));
+            return count > 0 ? count : 0;
+        }
+
+        void startDigest(long offset) throws IOException {
+            if (offset < 0 || offset > position || position - offset > WINDOW_SIZE) {
+                throw new IOException("Signed data offset is out of the buffer");
+            }
+            digesting = true;
+            for (long p = offset; p < position; p++) {
+                update(window[(int) (p % WINDOW_SIZE)]);
+            }
+        }
+
+        void drain() throws IOException {
+            byte[] buffer = new byte[4096];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // Bytes are hashed by read()
+            }
+        }
+
+        String getHead() {
+            try {
+                return head.toString("UTF-8");
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        private void consume(byte b) {
+            if (head.size() < HEAD_SIZE) {
+                head.write(b);
+            }
+            if (digesting) {
+                update(b);
+            } else {
+                window[(int) (position % WINDOW_SIZE)] = b;
+            }
+            position++;
+        }
+
+        private void update(byte b) {
+            // The last byte is held back until the next one arrives
+            if (pending != -1 && !isWhitespace(pending)) {
+                digest.update((byte) pending);
+            }
+            pending = b & 0xFF;
+        }
+
+        // Same set as \s in Java regular expressions
+        private static boolean isWhitespace(int c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+        }
+    }
+}
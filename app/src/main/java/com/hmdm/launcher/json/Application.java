@@ -21,6 +21,8 @@ package com.hmdm.launcher.json;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
+import java.util.List;
+
 @JsonIgnoreProperties( ignoreUnknown = true )
 public class Application {
 
@@ -47,6 +49,11 @@ public class Application {
     private boolean bottom;
     private boolean longTap;
     private String intent;
+    // Write the APK into the installer session while downloading it, without a temporary file
+    // Used only in the device owner mode
+    private boolean streamInstall;
+    // Patches from earlier versions, used instead of downloading the full APK
+    private List<ApplicationPatch> patches;
 
     public Application() {}
 
@@ -201,4 +208,20 @@ public class Application {
     public void setIntent(String intent) {
         this.intent = intent;
     }
+
+    public boolean isStreamInstall() {
+        return streamInstall;
+    }
+
+    public void setStreamInstall(boolean streamInstall) {
+        this.streamInstall = streamInstall;
+    }
+
+    public List<ApplicationPatch> getPatches() {
+        return patches;
+    }
+
+    public void setPatches(List<ApplicationPatch> patches) {
+        this.patches = patches;
+    }
 }
@@ -0,0 +1,68 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.json;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+// Binary patch which updates an installed version of the application to the version in the config
+@JsonIgnoreProperties( ignoreUnknown = true )
+public class ApplicationPatch {
+    // Version code of the installed application which the patch applies to
+    private int fromCode;
+    private String url;
+    // MD5 of the resulting APK
+    private String checksum;
+    // Size of the full APK, used to report the saved traffic
+    private long size;
+
+    public ApplicationPatch() {}
+
+    public int getFromCode() {
+        return fromCode;
+    }
+
+    public void setFromCode(int fromCode) {
+        this.fromCode = fromCode;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+}
@@ -36,6 +36,9 @@ public class Download {
     private long lastAttemptTime;
     private boolean downloaded;
     private boolean installed;
+    private long partOffset;
+    private String etag;
+    private String lastModified;
 
     public Download() {}
 
@@ -47,6 +50,9 @@ public class Download {
         lastAttemptTime = download.lastAttemptTime;
         downloaded = download.downloaded;
         installed = download.installed;
+        partOffset = download.partOffset;
+        etag = download.etag;
+        lastModified = download.lastModified;
     }
 
     @SuppressLint("Range")
@@ -58,6 +64,9 @@ public class Download {
         setLastAttemptTime(cursor.getLong(cursor.getColumnIndex("lastAttemptTime")));
         setDownloaded(cursor.getInt(cursor.getColumnIndex("downloaded")) != 0);
         setInstalled(cursor.getInt(cursor.getColumnIndex("installed")) != 0);
+        setPartOffset(cursor.getLong(cursor.getColumnIndex("partOffset")));
+        setEtag(cursor.getString(cursor.getColumnIndex("etag")));
+        setLastModified(cursor.getString(cursor.getColumnIndex("lastModified")));
     }
 
     @JsonIgnore
@@ -117,4 +126,28 @@ public class Download {
     public void setInstalled(boolean installed) {
         this.installed = installed;
     }
+
+    public long getPartOffset() {
+        return partOffset;
+    }
+
+    public void setPartOffset(long partOffset) {
+        this.partOffset = partOffset;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
 }
@@ -0,0 +1,100 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Turns polling of the configuration endpoints into conditional GET requests.
+ * Only requests marked by ServerService.CONDITIONAL_GET_HEADER are affected.
+ * A 304 response is passed to the caller as is, so Retrofit doesn't parse any body.
+ *
+ * Validators are not stored automatically: the caller must call remember()
+ * after the response has been successfully applied, otherwise a failed update
+ * could be "confirmed" by the next 304.
+ */
+public class ConditionalGetInterceptor implements Interceptor {
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static class Validators {
+        String etag;
+        String lastModified;
+    }
+
+    // Validators are kept in memory only: after restart, the first request is unconditional
+    private static final Map<String, Validators> validators = new ConcurrentHashMap<>();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (request.header(ServerService.CONDITIONAL_GET_HEADER) == null) {
+            return chain.proceed(request);
+        }
+
+        Request.Builder builder = request.newBuilder().removeHeader(ServerService.CONDITIONAL_GET_HEADER);
+        Validators v = validators.get(request.url().toString());
+        if (v != null && "GET".equals(request.method())) {
+            if (v.etag != null) {
+                builder.header(HEADER_IF_NONE_MATCH, v.etag);
+            }
+            if (v.lastModified != null) {
+                builder.header(HEADER_IF_MODIFIED_SINCE, v.lastModified);
+            }
+        }
+        return chain.proceed(builder.build());
+    }
+
+    public static boolean isNotModified(retrofit2.Response<?> response) {
+        return response != null && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    // Call this after the response body has been parsed and applied
+    public static void remember(retrofit2.Response<?> response) {
+        if (response == null || !response.isSuccessful()) {
+            return;
+        }
+        Response raw = response.raw();
+        Validators v = new Validators();
+        v.etag = raw.header(HEADER_ETAG);
+        v.lastModified = raw.header(HEADER_LAST_MODIFIED);
+        String url = raw.request().url().toString();
+        if (v.etag == null && v.lastModified == null) {
+            validators.remove(url);
+        } else {
+            validators.put(url, v);
+        }
+    }
+
+    // Call this when the local copy of the data doesn't match the server copy any more
+    public static void reset() {
+        validators.clear();
+    }
+}
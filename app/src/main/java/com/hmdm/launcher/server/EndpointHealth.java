@@ -0,0 +1,216 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Tracks the health of every server (scheme, host and port) the app talks to.
+ *
+ * All requests of the shared HTTP client pass through this interceptor, which records
+ * the latency and the failure rate. A host which is not reachable (connection refused or timed out,
+ * DNS failure) gets its circuit opened: HedgedCall then calls the other server first,
+ * so failover costs nothing after the first failure. When the open period expires, the host
+ * is probed in the background; the circuit is closed once the host responds.
+ * The open period doubles after each failed probe.
+ */
+public class EndpointHealth implements Interceptor {
+
+    private static final long MIN_OPEN_PERIOD = 30000;
+    private static final long MAX_OPEN_PERIOD = 600000;
+    // Weight of the last request in the average latency
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private static class Endpoint {
+        long requests;
+        long failures;
+        double latency;
+        long openUntil;
+        long openPeriod;
+        boolean probing;
+    }
+
+    private static final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    // Set by the network interceptor once a connection to the server is established.
+    // The interceptor chain of a call runs in a single thread, so a thread local is enough
+    private static final ThreadLocal<Boolean> connected = new ThreadLocal<>();
+
+    // Network interceptor: network interceptors are only called on an established connection,
+    // so a timeout after this point is a slow response, not an unreachable server
+    public static final Interceptor CONNECTION_TRACKER = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            connected.set(true);
+            return chain.proceed(chain.request());
+        }
+    };
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        HttpUrl url = chain.request().url();
+        long start = System.currentTimeMillis();
+        connected.remove();
+        try {
+            Response response = chain.proceed(chain.request());
+            onSuccess(url, System.currentTimeMillis() - start);
+            return response;
+        } catch (IOException e) {
+            // Other errors (such as a cancelled call or a read timeout) do not say anything
+            // about the server availability
+            if (connected.get() != null) {
+                // The server has accepted the connection, so it is reachable
+                onConnected(url);
+            } else if (isUnreachable(e)) {
+                onFailure(url);
+            }
+            throw e;
+        } finally {
+            connected.remove();
+        }
+    }
+
+    // Returns false if the circuit is open; starts a probe if it's time to check the server again
+    public static boolean isAvailable(HttpUrl url) {
+        Endpoint endpoint = endpoints.get(getKey(url));
+        if (endpoint == null) {
+            return true;
+        }
+        synchronized (endpoint) {
+            if (endpoint.openUntil == 0) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= endpoint.openUntil && !endpoint.probing) {
+                endpoint.probing = true;
+                probe(url);
+            }
+            return false;
+        }
+    }
+
+    // Forget all collected data, for example after the server URL has been changed
+    public static void reset() {
+        endpoints.clear();
+    }
+
+    private static void probe(HttpUrl url) {
+        final HttpUrl root = url.newBuilder().encodedPath("/").query(null).fragment(null).build();
+        Request request = new Request.Builder().url(root).head().build();
+        // The request passes through this interceptor, so the result is recorded there
+        ServerServiceKeeper.getHttpClient().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                if (!isUnreachable(e)) {
+                    // Not recorded by the interceptor, but the server is still not healthy
+                    EndpointHealth.onFailure(root);
+                }
+                finishProbe(root);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                response.close();
+                finishProbe(root);
+            }
+        });
+    }
+
+    private static void finishProbe(HttpUrl url) {
+        Endpoint endpoint = getEndpoint(url);
+        synchronized (endpoint) {
+            endpoint.probing = false;
+        }
+    }
+
+    private static void onSuccess(HttpUrl url, long latency) {
+        Endpoint endpoint = getEndpoint(url);
+        synchronized (endpoint) {
+            endpoint.requests++;
+            endpoint.latency = endpoint.requests == 1 ? latency :
+                    endpoint.latency + LATENCY_WEIGHT * (latency - endpoint.latency);
+            close(url, endpoint);
+        }
+    }
+
+    private static void onConnected(HttpUrl url) {
+        Endpoint endpoint = getEndpoint(url);
+        synchronized (endpoint) {
+            close(url, endpoint);
+        }
+    }
+
+    private static void close(HttpUrl url, Endpoint endpoint) {
+        if (endpoint.openUntil != 0) {
+            Log.i(Const.LOG_TAG, "Server " + getKey(url) + " is available again");
+        }
+        endpoint.openUntil = 0;
+        endpoint.openPeriod = 0;
+    }
+
+    private static void onFailure(HttpUrl url) {
+        Endpoint endpoint = getEndpoint(url);
+        synchronized (endpoint) {
+            endpoint.requests++;
+            endpoint.failures++;
+            endpoint.openPeriod = endpoint.openPeriod == 0 ? MIN_OPEN_PERIOD :
+                    Math.min(endpoint.openPeriod * 2, MAX_OPEN_PERIOD);
+            endpoint.openUntil = System.currentTimeMillis() + endpoint.openPeriod;
+            Log.w(Const.LOG_TAG, "Server " + getKey(url) + " is not available, failures: " +
+                    endpoint.failures + "/" + endpoint.requests + ", average latency: " +
+                    (long) endpoint.latency + " ms; next check in " + endpoint.openPeriod / 1000 + " s");
+        }
+    }
+
+    private static boolean isUnreachable(IOException e) {
+        return e instanceof ConnectException || e instanceof NoRouteToHostException ||
+                e instanceof UnknownHostException || e instanceof SocketTimeoutException;
+    }
+
+    private static Endpoint getEndpoint(HttpUrl url) {
+        String key = getKey(url);
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            endpoints.putIfAbsent(key, new Endpoint());
+            endpoint = endpoints.get(key);
+        }
+        return endpoint;
+    }
+
+    private static String getKey(HttpUrl url) {
+        return url.scheme() + "://" + url.host() + ":" + url.port();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Executes a request to the primary server and falls back to the secondary server.
+ * If the primary server is known to be unavailable (see EndpointHealth), the secondary server
+ * is called first.
+ *
+ * With zero delay, the calls are sequential: the secondary server is called only
+ * if the primary call failed with an exception (the legacy behavior).
+ * With a positive delay, the secondary call is started when the primary call hasn't completed
+ * within the delay (or has already failed), and the first response wins; the other call is cancelled.
+ * As in the sequential mode, any HTTP response (even an error) is a valid result.
+ *
+ * Use hedging only for idempotent requests: both servers may receive the request.
+ */
+public class HedgedCall<T> {
+
+    private final Call<T> primary;
+    private final Call<T> secondary;
+    private boolean secondaryResponse;
+    // Set when the result has been chosen: responses arriving later are closed
+    private boolean finished;
+
+    private static class Outcome<T> {
+        final boolean fromSecondary;
+        final Response<T> response;
+        final IOException error;
+
+        Outcome(boolean fromSecondary, Response<T> response, IOException error) {
+            this.fromSecondary = fromSecondary;
+            this.response = response;
+            this.error = error;
+        }
+    }
+
+    public HedgedCall(Call<T> primary, Call<T> secondary) {
+        this.primary = primary;
+        this.secondary = secondary;
+    }
+
+    // True if the returned response has been received from the secondary server
+    public boolean isSecondaryResponse() {
+        return secondaryResponse;
+    }
+
+    // Sequential call, use it for non-idempotent requests
+    public Response<T> execute() throws IOException {
+        return execute(0);
+    }
+
+    public Response<T> execute(long delay) throws IOException {
+        boolean swap = !EndpointHealth.isAvailable(primary.request().url()) &&
+                EndpointHealth.isAvailable(secondary.request().url());
+        Call<T> first = swap ? secondary : primary;
+        Call<T> second = swap ? primary : secondary;
+
+        if (delay <= 0) {
+            try {
+                secondaryResponse = swap;
+                return first.execute();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            secondaryResponse = !swap;
+            return second.execute();
+        }
+
+        final BlockingQueue<Outcome<T>> outcomes = new LinkedBlockingQueue<>();
+        try {
+            first.enqueue(new Collector(outcomes, swap));
+            Outcome<T> outcome = outcomes.poll(delay, TimeUnit.MILLISECONDS);
+            if (outcome != null && outcome.response != null) {
+                secondaryResponse = swap;
+                return outcome.response;
+            }
+
+            // First server is slow or has failed: race the other one
+            int running = outcome == null ? 2 : 1;
+            IOException error = outcome != null ? outcome.error : null;
+            second.enqueue(new Collector(outcomes, !swap));
+            while (running > 0) {
+                outcome = outcomes.take();
+                running--;
+                if (outcome.response != null) {
+                    secondaryResponse = outcome.fromSecondary;
+                    // Do not cancel the winner: its body may be still unread
+                    (outcome.fromSecondary ? primary : secondary).cancel();
+                    finish(outcomes);
+                    return outcome.response;
+                }
+                error = outcome.error;
+            }
+            secondaryResponse = !swap;
+            throw error;
+        } catch (InterruptedException e) {
+            primary.cancel();
+            secondary.cancel();
+            finish(outcomes);
+            throw new InterruptedIOException("Interrupted while waiting for server response");
+        }
+    }
+
+    // Close the responses of the losing call, otherwise their connections are never released
+    private void finish(BlockingQueue<Outcome<T>> outcomes) {
+        synchronized (outcomes) {
+            finished = true;
+            Outcome<T> outcome;
+            while ((outcome = outcomes.poll()) != null) {
+                if (outcome.response != null) {
+                    close(outcome.response);
+                }
+            }
+        }
+    }
+
+    private static void close(Response<?> response) {
+        if (response.body() instanceof Closeable) {
+            closeQuietly((Closeable) response.body());
+        }
+        if (response.errorBody() != null) {
+            closeQuietly(response.errorBody());
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    private class Collector implements Callback<T> {
+        private final BlockingQueue<Outcome<T>> outcomes;
+        private final boolean fromSecondary;
+
+        Collector(BlockingQueue<Outcome<T>> outcomes, boolean fromSecondary) {
+            this.outcomes = outcomes;
+            this.fromSecondary = fromSecondary;
+        }
+
+        @Override
+        public void onResponse(Call<T> call, Response<T> response) {
+            synchronized (outcomes) {
+                if (finished) {
+                    close(response);
+                    return;
+                }
+                outcomes.add(new Outcome<>(fromSecondary, response, null));
+            }
+        }
+
+        @Override
+        public void onFailure(Call<T> call, Throwable t) {
+            if (!call.isCanceled()) {
+                t.printStackTrace();
+            }
+            IOException error = t instanceof IOException ? (IOException) t : new IOException(t);
+            outcomes.add(new Outcome<>(fromSecondary, null, error));
+        }
+    }
+}
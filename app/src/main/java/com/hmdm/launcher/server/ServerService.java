@@ -46,6 +46,10 @@ public interface ServerService {
 
     static final String REQUEST_SIGNATURE_HEADER = "X-Request-Signature";
     static final String CPU_ARCH_HEADER = "X-CPU-Arch";
+    // Marker header processed (and removed) by ConditionalGetInterceptor
+    static final String CONDITIONAL_GET_HEADER = "X-Conditional-Get";
+    // Version of the config stored on the device, the server may respond with a patch to this version
+    static final String CONFIG_VERSION_HEADER = "X-Config-Version";
 
     @POST("{project}/rest/public/sync/configuration/{number}")
     Call<ResponseBody> createAndGetRawServerConfig(@Path("project") String project,
@@ -55,11 +59,20 @@ public interface ServerService {
                                                    @Body DeviceCreateOptions createOptions);
 
     @GET("{project}/rest/public/sync/configuration/{number}")
+    @Headers(CONDITIONAL_GET_HEADER + ": 1")
     Call<ResponseBody> getRawServerConfig(@Path("project") String project,
                                           @Path("number") String number,
                                           @Header(REQUEST_SIGNATURE_HEADER) String signature,
                                           @Header(CPU_ARCH_HEADER) String cpuArch);
 
+    @GET("{project}/rest/public/sync/configuration/{number}")
+    @Headers(CONDITIONAL_GET_HEADER + ": 1")
+    Call<ResponseBody> getRawServerConfigDelta(@Path("project") String project,
+                                               @Path("number") String number,
+                                               @Header(REQUEST_SIGNATURE_HEADER) String signature,
+                                               @Header(CPU_ARCH_HEADER) String cpuArch,
+                                               @Header(CONFIG_VERSION_HEADER) String configVersion);
+
     @POST("{project}/rest/public/sync/configuration/{number}")
     Call<ServerConfigResponse> createAndGetServerConfig(@Path("project") String project,
                                                         @Path("number") String number,
@@ -68,6 +81,7 @@ public interface ServerService {
                                                         @Body DeviceCreateOptions createOptions);
 
     @GET("{project}/rest/public/sync/configuration/{number}")
+    @Headers(CONDITIONAL_GET_HEADER + ": 1")
     Call<ServerConfigResponse> getServerConfig(@Path("project") String project,
                                                @Path("number") String number,
                                                @Header(REQUEST_SIGNATURE_HEADER) String signature,
@@ -88,6 +102,7 @@ public interface ServerService {
                                             @Header(REQUEST_SIGNATURE_HEADER) String signature);
 
     @GET( "{project}/rest/plugins/devicelog/log/rules/{number}" )
+    @Headers(CONDITIONAL_GET_HEADER + ": 1")
     Call<RemoteLogConfigResponse> getRemoteLogConfig(@Path("project") String project, @Path("number") String number);
 
     @POST("{project}/rest/plugins/devicelog/log/list/{number}")
@@ -21,10 +21,10 @@ package com.hmdm.launcher.server;
 
 import android.content.Context;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.SettingsHelper;
+import com.hmdm.launcher.util.JsonCodecs;
 
 import java.util.concurrent.TimeUnit;
 
@@ -37,10 +37,17 @@ public class ServerServiceKeeper {
     private static ServerService serverServiceInstance;
     private static ServerService secondaryServerServiceInstance;
 
+    private static OkHttpClient httpClient;
+
+    private static final ConditionalGetInterceptor conditionalGetInterceptor = new ConditionalGetInterceptor();
+    private static final EndpointHealth endpointHealth = new EndpointHealth();
+
     // This is called after changing the server URL
     public static void resetServices() {
         serverServiceInstance = null;
         secondaryServerServiceInstance = null;
+        ConditionalGetInterceptor.reset();
+        EndpointHealth.reset();
     }
 
     public static ServerService getServerServiceInstance(Context context) {
@@ -81,21 +88,38 @@ public class ServerServiceKeeper {
         return createBuilder(baseUrl, readTimeout).build().create(ServerService.class);
     }
 
+    // Shared HTTP client: all clients derived from it by newBuilder() share its connection pool
+    // and dispatcher, so connections and TLS sessions are reused across the app
+    public static synchronized OkHttpClient getHttpClient() {
+        if (httpClient == null) {
+            if (BuildConfig.TRUST_ANY_CERTIFICATE) {
+                httpClient = UnsafeOkHttpClient.getUnsafeOkHttpClient().newBuilder().
+                        addInterceptor(endpointHealth).
+                        addNetworkInterceptor(EndpointHealth.CONNECTION_TRACKER).
+                        build();
+            } else {
+                httpClient = new OkHttpClient.Builder().
+                        connectTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS).
+                        readTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS).
+                        writeTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS).
+                        addInterceptor(endpointHealth).
+                        addNetworkInterceptor(EndpointHealth.CONNECTION_TRACKER).
+                        build();
+            }
+        }
+        return httpClient;
+    }
+
     private static Retrofit.Builder createBuilder(String baseUrl, long readTimeout) {
         Retrofit.Builder builder = new Retrofit.Builder();
 
-        if (BuildConfig.TRUST_ANY_CERTIFICATE) {
-            builder.client(UnsafeOkHttpClient.getUnsafeOkHttpClient());
-        } else {
-            OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder().
-                    connectTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS).
-                    readTimeout(readTimeout, TimeUnit.MILLISECONDS).
-                    writeTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
-            builder.client(clientBuilder.build());
-        }
+        builder.client(getHttpClient().newBuilder().
+                readTimeout(readTimeout, TimeUnit.MILLISECONDS).
+                addInterceptor(conditionalGetInterceptor).
+                build());
 
         builder.baseUrl( baseUrl )
-                .addConverterFactory( JacksonConverterFactory.create( new ObjectMapper()) );
+                .addConverterFactory( JacksonConverterFactory.create( JsonCodecs.getMapper() ) );
 
         return builder;
     }
@@ -25,6 +25,7 @@ import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.PushMessage;
 import com.hmdm.launcher.json.PushResponse;
 import com.hmdm.launcher.pro.ProUtils;
+import com.hmdm.launcher.server.HedgedCall;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 import com.hmdm.launcher.util.RemoteLogger;
@@ -126,21 +127,12 @@ public class PushLongPollingService extends Service {
             Response<PushResponse> response = null;
 
             RemoteLogger.log(context, Const.LOG_VERBOSE, "Push long polling inquiry");
+            HedgedCall<PushResponse> call = new HedgedCall<>(
+                    serverService.queryPushLongPolling(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature),
+                    secondaryServerService.queryPushLongPolling(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature));
             try {
                 // This is the long operation
-                response = serverService.
-                        queryPushLongPolling(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature).execute();
-            } catch (Exception e) {
-                RemoteLogger.log(context, Const.LOG_WARN, "Failed to query push notifications from "
-                        + settingsHelper.getBaseUrl() + " : " + e.getMessage());
-                e.printStackTrace();
-            }
-
-            try {
-                if (response == null) {
-                    response = secondaryServerService.
-                            queryPushLongPolling(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature).execute();
-                }
+                response = call.execute();
 
                 if ( response.isSuccessful() ) {
                     if ( Const.STATUS_OK.equals( response.body().getStatus() ) && response.body().getData() != null ) {
@@ -159,7 +151,8 @@ public class PushLongPollingService extends Service {
                 } else if (response.code() >= 400 && response.code() < 500) {
                     // Response code 500 is fine (Timeout), so here we log only 4xx requests (403 Forbidden in particular)
                     RemoteLogger.log(context, Const.LOG_WARN, "Wrong response while querying push notifications from "
-                            + settingsHelper.getSecondaryBaseUrl() + " : HTTP status " + response.code());
+                            + (call.isSecondaryResponse() ? settingsHelper.getSecondaryBaseUrl() : settingsHelper.getBaseUrl())
+                            + " : HTTP status " + response.code());
                     try {
                         // On exception, we need to wait to avoid looping
                         Thread.sleep(DELAY_AFTER_EXCEPTION_MS);
@@ -172,7 +165,8 @@ public class PushLongPollingService extends Service {
 
             } catch ( Exception e ) {
                 RemoteLogger.log(context, Const.LOG_WARN, "Failed to query push notifications from "
-                        + settingsHelper.getSecondaryBaseUrl() + " : " + e.getMessage());
+                        + (call.isSecondaryResponse() ? settingsHelper.getSecondaryBaseUrl() : settingsHelper.getBaseUrl())
+                        + " : " + e.getMessage());
                 e.printStackTrace();
                 try {
                     // On exception, we need to wait to avoid looping
@@ -25,6 +25,7 @@ import android.os.AsyncTask;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.DeviceInfo;
+import com.hmdm.launcher.server.HedgedCall;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 
@@ -45,18 +46,11 @@ public class ConfirmDeviceResetTask extends AsyncTask< DeviceInfo, Integer, Inte
     protected Integer doInBackground( DeviceInfo... info ) {
         ServerService serverService = ServerServiceKeeper.getServerServiceInstance(context);
         ServerService secondaryServerService = ServerServiceKeeper.getSecondaryServerServiceInstance(context);
-        Response< ResponseBody > response = null;
 
         try {
-            response = serverService.confirmDeviceReset(settingsHelper.getServerProject(), info[0].getDeviceId(), info[0]).execute();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        try {
-            if (response == null) {
-                response = secondaryServerService.confirmDeviceReset(settingsHelper.getServerProject(), info[0].getDeviceId(), info[0]).execute();
-            }
+            Response< ResponseBody > response = new HedgedCall<>(
+                    serverService.confirmDeviceReset(settingsHelper.getServerProject(), info[0].getDeviceId(), info[0]),
+                    secondaryServerService.confirmDeviceReset(settingsHelper.getServerProject(), info[0].getDeviceId(), info[0])).execute();
             if ( response.isSuccessful() ) {
                 return Const.TASK_SUCCESS;
             }
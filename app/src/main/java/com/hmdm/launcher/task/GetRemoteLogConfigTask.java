@@ -22,9 +22,12 @@ package com.hmdm.launcher.task;
 import android.content.Context;
 import android.os.AsyncTask;
 
+import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.RemoteLogConfigResponse;
+import com.hmdm.launcher.server.ConditionalGetInterceptor;
+import com.hmdm.launcher.server.HedgedCall;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 import com.hmdm.launcher.util.RemoteLogger;
@@ -47,21 +50,20 @@ public class GetRemoteLogConfigTask extends AsyncTask< Void, Integer, Integer >
         Response<RemoteLogConfigResponse> response = null;
 
         try {
-            response = serverService.
-                    getRemoteLogConfig(settingsHelper.getServerProject(), settingsHelper.getDeviceId()).execute();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+            response = new HedgedCall<>(
+                    serverService.getRemoteLogConfig(settingsHelper.getServerProject(), settingsHelper.getDeviceId()),
+                    secondaryServerService.getRemoteLogConfig(settingsHelper.getServerProject(), settingsHelper.getDeviceId())).
+                    execute(BuildConfig.HEDGED_REQUEST_DELAY);
 
-        try {
-            if (response == null) {
-                response = secondaryServerService.
-                        getRemoteLogConfig(settingsHelper.getServerProject(), settingsHelper.getDeviceId()).execute();
+            if (ConditionalGetInterceptor.isNotModified(response)) {
+                // Logging rules are not changed, keep the stored ones
+                return Const.TASK_NOT_MODIFIED;
             }
 
             if ( response.isSuccessful() ) {
                 if ( Const.STATUS_OK.equals( response.body().getStatus() ) && response.body().getData() != null ) {
                     RemoteLogger.updateConfig(context, response.body().getData());
+                    ConditionalGetInterceptor.remember(response);
 
                     return Const.TASK_SUCCESS;
                 } else {
@@ -25,21 +25,30 @@ import android.os.Build;
 import android.provider.Settings;
 import android.util.Log;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.helper.SettingsHelper;
+import com.hmdm.launcher.helper.SignedConfigParser;
 import com.hmdm.launcher.json.DeviceCreateOptions;
 import com.hmdm.launcher.json.ServerConfig;
 import com.hmdm.launcher.json.ServerConfigResponse;
 import com.hmdm.launcher.pro.ProUtils;
+import com.hmdm.launcher.server.ConditionalGetInterceptor;
+import com.hmdm.launcher.server.HedgedCall;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
+import com.hmdm.launcher.util.JsonCodecs;
+import com.hmdm.launcher.util.JsonPatchUtils;
 import com.hmdm.launcher.util.PushNotificationMqttWrapper;
 import com.hmdm.launcher.util.RemoteLogger;
 
+import java.io.IOException;
+
 import okhttp3.ResponseBody;
+import retrofit2.Call;
 import retrofit2.Response;
 
 public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
@@ -59,6 +68,10 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
     private boolean isDeviceNotFound;
     // This is the only application error which requires reporting in the background
     private String notFoundError = "error.notfound.device";
+    // Set when the server responded 304 to the conditional request
+    private boolean isNotModified;
+    // Successful response, its validators are remembered after the config is applied
+    private Response<?> configResponse;
 
     public GetServerConfigTask( Context context ) {
         this.context = context;
@@ -86,6 +99,11 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
             }
         }
 
+        if (settingsHelper.getConfig() == null) {
+            // Nothing stored locally, so the server must send the full config
+            ConditionalGetInterceptor.reset();
+        }
+
         try {
             serverService = ServerServiceKeeper.getServerServiceInstance(context);
             secondaryServerService = ServerServiceKeeper.getSecondaryServerServiceInstance(context);
@@ -102,19 +120,39 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         }
 
         isDeviceNotFound = false;
+        isNotModified = false;
+        configResponse = null;
         try {
             ServerConfig serverConfig = null;
-            if (createOptions == null) {
-                serverConfig = BuildConfig.CHECK_SIGNATURE ?
-                        getServerConfigSecure(deviceId, signature) :
-                        getServerConfigPlain(deviceId, signature);
-            } else {
-                serverConfig = BuildConfig.CHECK_SIGNATURE ?
-                        createAndGetServerConfigSecure(deviceId, createOptions, signature) :
-                        createAndGetServerConfigPlain(deviceId, createOptions, signature);
+            String configVersion = settingsHelper.getConfigVersion();
+            if (createOptions == null && configVersion != null && settingsHelper.getConfig() != null) {
+                serverConfig = getServerConfigDelta(deviceId, signature, configVersion);
+                if (serverConfig == null && !isNotModified && !isDeviceNotFound) {
+                    // Patch not available or failed to apply: forget the version and get the full config
+                    Log.w(Const.LOG_TAG, "Failed to get config patch, requesting full config");
+                    settingsHelper.setConfigVersion(null);
+                    errorText = null;
+                }
+            }
+            if (serverConfig == null && !isNotModified && !isDeviceNotFound) {
+                if (createOptions == null) {
+                    serverConfig = BuildConfig.CHECK_SIGNATURE ?
+                            getServerConfigSecure(deviceId, signature) :
+                            getServerConfigPlain(deviceId, signature);
+                } else {
+                    serverConfig = BuildConfig.CHECK_SIGNATURE ?
+                            createAndGetServerConfigSecure(deviceId, createOptions, signature) :
+                            createAndGetServerConfigPlain(deviceId, createOptions, signature);
+                }
+            }
+
+            if (isNotModified) {
+                // Configuration not changed since the last update: skip parsing and processing
+                return Const.TASK_NOT_MODIFIED;
             }
 
             if (serverConfig != null) {
+                boolean adjustedLocally = false;
                 if (serverConfig.getNewNumber() != null) {
                     RemoteLogger.log(context, Const.LOG_INFO, "Device number changed from " + settingsHelper.getDeviceId() + " to " + serverConfig.getNewNumber());
                     settingsHelper.setDeviceId(serverConfig.getNewNumber());
@@ -128,10 +166,11 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
                 settingsHelper.updateConfig(serverConfig);
 
                 // Device already created, erase the device creation options
-                settingsHelper.setDeviceIdUse(null);
-                settingsHelper.setCreateOptionCustomer(null);
-                settingsHelper.setCreateOptionConfigName(null);
-                settingsHelper.setCreateOptionGroup(null);
+                SettingsHelper.Transaction transaction = settingsHelper.beginTransaction()
+                        .setDeviceIdUse(null)
+                        .setCreateOptionCustomer(null)
+                        .setCreateOptionConfigName(null)
+                        .setCreateOptionGroup(null);
 
                 // Prevent from occasional launch in the kiosk mode without any possibility to exit!
                 if (ProUtils.kioskModeRequired(context) &&
@@ -141,10 +180,21 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
                         RemoteLogger.log(context, Const.LOG_WARN, "Kiosk mode disabled: no permission to draw over other windows.");
                         settingsHelper.getConfig().setKioskMode(false);
                         settingsHelper.updateConfig(settingsHelper.getConfig());
+                        adjustedLocally = true;
                 }
 
                 ProUtils.processConfig(context, serverConfig);
 
+                if (!adjustedLocally) {
+                    // Next request may be conditional or delta only if the stored config matches the server one
+                    ConditionalGetInterceptor.remember(configResponse);
+                    transaction.setConfigVersion(configResponse.headers().get(Const.HEADER_CONFIG_VERSION));
+                } else {
+                    transaction.setConfigVersion(null);
+                }
+                // Synchronous write as the config version is the base for the next config patch
+                transaction.commit();
+
                 return Const.TASK_SUCCESS;
             } else {
                 return isDeviceNotFound ? Const.TASK_ERROR : Const.TASK_NETWORK_ERROR;
@@ -158,23 +208,20 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
     }
 
     private ServerConfig getServerConfigPlain(String deviceId, String signature) throws Exception {
-        Response<ServerConfigResponse> response = null;
-        try {
-            serverHost = settingsHelper.getBaseUrl();
-            response = serverService.getServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        if (response == null) {
-            serverHost = settingsHelper.getSecondaryBaseUrl();
-            response = secondaryServerService.getServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+        Response<ServerConfigResponse> response = execute(
+                serverService.getServerConfig(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI),
+                secondaryServerService.getServerConfig(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI), BuildConfig.HEDGED_REQUEST_DELAY);
+
+        if (ConditionalGetInterceptor.isNotModified(response)) {
+            onNotModified(response);
+            return null;
         }
 
         if (response.isSuccessful() && Const.STATUS_OK.equals(response.body().getStatus()) && response.body().getData() != null) {
             SettingsHelper.getInstance(context).setExternalIp(response.headers().get(Const.HEADER_IP_ADDRESS));
+            configResponse = response;
             return response.body().getData();
         } else {
             isDeviceNotFound = response.body() != null && notFoundError.equals(response.body().getMessage());
@@ -186,71 +233,19 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
     // Check server signature before accepting server response
     // This is an additional protection against Man-In-The-Middle attacks
     private ServerConfig getServerConfigSecure(String deviceId, String signature) throws Exception {
-        Response<ResponseBody> response = null;
-
-        try {
-            serverHost = settingsHelper.getBaseUrl();
-            response = serverService.getRawServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        if (response == null) {
-            serverHost = settingsHelper.getSecondaryBaseUrl();
-            response = secondaryServerService.getRawServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+        Response<ResponseBody> response = execute(
+                serverService.getRawServerConfig(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI),
+                secondaryServerService.getRawServerConfig(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI), BuildConfig.HEDGED_REQUEST_DELAY);
+
+        if (ConditionalGetInterceptor.isNotModified(response)) {
+            onNotModified(response);
+            return null;
         }
 
         if (response.isSuccessful()) {
-            String serverResponse = response.body().string();
-
-            ServerConfigResponse serverConfigResponse;
-            try {
-                serverConfigResponse = new ObjectMapper().readValue(serverResponse, ServerConfigResponse.class);
-            } catch (Exception e) {
-                errorText = "Failed to parse JSON";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-
-            // Check for application errors before checking the signature
-            // Because the errors are not signed
-            if (!Const.STATUS_OK.equals(serverConfigResponse.getStatus())) {
-                isDeviceNotFound = notFoundError.equals(serverConfigResponse.getMessage());
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-
-            // Check response signature
-            String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
-            if (serverSignature == null) {
-                errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-
-            // We need to extract data from the response body
-            // Here we assume the specific form of response body: {"status":"OK","message":null,"data":{...}}
-            final String dataMarker = "\"data\":";
-            int pos = serverResponse.indexOf(dataMarker);
-            if (pos == -1) {
-                errorText = "Wrong server response, missing data";
-                Log.e(Const.LOG_TAG, errorText + ": " + serverResponse);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-            String serverData = serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1);
-            String calculatedSignature = CryptoHelper.getSHA1String(BuildConfig.REQUEST_SIGNATURE + serverData.replaceAll("\\s", ""));
-            if (!calculatedSignature.equalsIgnoreCase(serverSignature)) {
-                errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-            return new ObjectMapper().readValue(serverData, ServerConfig.class);
+            return readRawServerConfig(response);
         } else {
             buildTaskErrorTextSecure(response, null);
         }
@@ -260,23 +255,20 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
     // Apply extra device creation options (need to be used only at first start when config=null!)
     private ServerConfig createAndGetServerConfigPlain(String deviceId, DeviceCreateOptions createOptions,
                                                        String signature) throws Exception {
-        Response<ServerConfigResponse> response = null;
-        try {
-            serverHost = settingsHelper.getBaseUrl();
-            response = serverService.createAndGetServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI, createOptions).execute();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        if (response == null) {
-            serverHost = settingsHelper.getSecondaryBaseUrl();
-            response = secondaryServerService.createAndGetServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI, createOptions).execute();
+        Response<ServerConfigResponse> response = execute(
+                serverService.createAndGetServerConfig(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI, createOptions),
+                secondaryServerService.createAndGetServerConfig(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI, createOptions), 0);
+
+        if (ConditionalGetInterceptor.isNotModified(response)) {
+            onNotModified(response);
+            return null;
         }
 
         if (response.isSuccessful() && Const.STATUS_OK.equals(response.body().getStatus()) && response.body().getData() != null) {
             SettingsHelper.getInstance(context).setExternalIp(response.headers().get(Const.HEADER_IP_ADDRESS));
+            configResponse = response;
             return response.body().getData();
         } else {
             isDeviceNotFound = response.body() != null && notFoundError.equals(response.body().getMessage());
@@ -291,76 +283,206 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
     private ServerConfig createAndGetServerConfigSecure(String deviceId,
                                                         DeviceCreateOptions createOptions,
                                                         String signature) throws Exception {
-        Response<ResponseBody> response = null;
+        Response<ResponseBody> response = execute(
+                serverService.createAndGetRawServerConfig(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI, createOptions),
+                secondaryServerService.createAndGetRawServerConfig(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI, createOptions), 0);
+
+        if (ConditionalGetInterceptor.isNotModified(response)) {
+            onNotModified(response);
+            return null;
+        }
 
+        if (response.isSuccessful()) {
+            return readRawServerConfig(response);
+        } else {
+            buildTaskErrorTextSecure(response, null);
+        }
+        return null;
+    }
+
+    // Parse the response and check the server signature (if required) in a single pass over the response stream
+    private ServerConfig readRawServerConfig(Response<ResponseBody> response) {
+        SignedConfigParser parser = new SignedConfigParser();
         try {
-            serverHost = settingsHelper.getBaseUrl();
-            response = serverService.
-                    createAndGetRawServerConfig(settingsHelper.getServerProject(),
-                            deviceId, signature, Build.CPU_ABI, createOptions).execute();
+            parser.parse(response.body().byteStream(), BuildConfig.REQUEST_SIGNATURE);
         } catch (Exception e) {
-            e.printStackTrace();
+            errorText = "Failed to parse JSON";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, parser.getHead());
+            return null;
+        } finally {
+            response.body().close();
         }
 
-        if (response == null) {
-            serverHost = settingsHelper.getSecondaryBaseUrl();
-            response = secondaryServerService.
-                    createAndGetRawServerConfig(settingsHelper.getServerProject(),
-                            deviceId, signature, Build.CPU_ABI, createOptions).execute();
+        // Check for application errors before checking the signature
+        // Because the errors are not signed
+        if (!Const.STATUS_OK.equals(parser.getStatus())) {
+            isDeviceNotFound = notFoundError.equals(parser.getMessage());
+            buildTaskErrorTextSecure(response, parser.getHead());
+            return null;
         }
 
-        if (response.isSuccessful()) {
-            String serverResponse = response.body().string();
-
-            ServerConfigResponse serverConfigResponse;
-            try {
-                serverConfigResponse = new ObjectMapper().readValue(serverResponse, ServerConfigResponse.class);
-            } catch (Exception e) {
-                errorText = "Failed to parse JSON";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
+        // Check response signature
+        String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
+        if (BuildConfig.CHECK_SIGNATURE && serverSignature == null) {
+            errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, parser.getHead());
+            return null;
+        }
 
-            // Check for application errors before checking the signature
-            // Because the errors are not signed
-            if (!Const.STATUS_OK.equals(serverConfigResponse.getStatus())) {
-                isDeviceNotFound = notFoundError.equals(serverConfigResponse.getMessage());
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
+        if (parser.getData() == null) {
+            errorText = "Wrong server response, missing data";
+            Log.e(Const.LOG_TAG, errorText + ": " + parser.getHead());
+            buildTaskErrorTextSecure(response, parser.getHead());
+            return null;
+        }
 
-            // Check response signature
-            String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
-            if (serverSignature == null) {
-                errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
+        String calculatedSignature = parser.getSignature();
+        if (BuildConfig.CHECK_SIGNATURE && !calculatedSignature.equalsIgnoreCase(serverSignature)) {
+            errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, parser.getHead());
+            return null;
+        }
+        configResponse = response;
+        return parser.getData();
+    }
+
+    // Check server signature and return the signed "data" part of the response
+    // Returns null if the signature is missing or doesn't match
+    private String getSignedData(Response<ResponseBody> response, String serverResponse) {
+        String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
+        if (serverSignature == null) {
+            errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, serverResponse);
+            return null;
+        }
+
+        // We need to extract data from the response body
+        // Here we assume the specific form of response body: {"status":"OK","message":null,"data":{...}}
+        final String dataMarker = "\"data\":";
+        int pos = serverResponse.indexOf(dataMarker);
+        if (pos == -1) {
+            errorText = "Wrong server response, missing data";
+            Log.e(Const.LOG_TAG, errorText + ": " + serverResponse);
+            buildTaskErrorTextSecure(response, serverResponse);
+            return null;
+        }
+        String serverData = serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1);
+        String calculatedSignature = CryptoHelper.getSHA1String(BuildConfig.REQUEST_SIGNATURE + serverData.replaceAll("\\s", ""));
+        if (!calculatedSignature.equalsIgnoreCase(serverSignature)) {
+            errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, serverResponse);
+            return null;
+        }
+        return serverData;
+    }
+
+    // Request a patch to the stored config (config version is known)
+    // The server may respond with a full config as well, or with 304 if nothing is changed
+    // Returns null if the patch can't be applied, so the caller falls back to the full config request
+    private ServerConfig getServerConfigDelta(String deviceId, String signature, String configVersion) throws Exception {
+        Response<ResponseBody> response = execute(
+                serverService.getRawServerConfigDelta(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI, configVersion),
+                secondaryServerService.getRawServerConfigDelta(settingsHelper.getServerProject(),
+                        deviceId, signature, Build.CPU_ABI, configVersion), BuildConfig.HEDGED_REQUEST_DELAY);
+
+        if (ConditionalGetInterceptor.isNotModified(response)) {
+            onNotModified(response);
+            return null;
+        }
+
+        if (!response.isSuccessful()) {
+            return null;
+        }
+
+        String patchType = response.headers().get(Const.HEADER_CONFIG_PATCH);
+        if (patchType == null) {
+            // Full config, parse it from the stream
+            ServerConfig serverConfig = readRawServerConfig(response);
+            if (serverConfig != null) {
+                settingsHelper.setExternalIp(response.headers().get(Const.HEADER_IP_ADDRESS));
             }
+            return serverConfig;
+        }
 
-            // We need to extract data from the response body
-            // Here we assume the specific form of response body: {"status":"OK","message":null,"data":{...}}
-            final String dataMarker = "\"data\":";
-            int pos = serverResponse.indexOf(dataMarker);
-            if (pos == -1) {
-                errorText = "Wrong server response, missing data";
-                Log.e(Const.LOG_TAG, errorText + ": " + serverResponse);
+        // Patches are small so the response is read at once
+        String serverResponse = response.body().string();
+        ObjectMapper mapper = JsonCodecs.getMapper();
+        JsonNode root;
+        try {
+            root = mapper.readTree(serverResponse);
+        } catch (Exception e) {
+            Log.e(Const.LOG_TAG, "Failed to parse JSON");
+            return null;
+        }
+
+        if (!Const.STATUS_OK.equals(root.path("status").asText())) {
+            isDeviceNotFound = notFoundError.equals(root.path("message").asText());
+            if (isDeviceNotFound) {
                 buildTaskErrorTextSecure(response, serverResponse);
-                return null;
             }
-            String serverData = serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1);
-            String calculatedSignature = CryptoHelper.getSHA1String(BuildConfig.REQUEST_SIGNATURE + serverData.replaceAll("\\s", ""));
-            if (!calculatedSignature.equalsIgnoreCase(serverSignature)) {
-                errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
+            return null;
+        }
+
+        if (BuildConfig.CHECK_SIGNATURE && getSignedData(response, serverResponse) == null) {
+            return null;
+        }
+
+        JsonNode data = root.get("data");
+        if (data == null || data.isNull()) {
+            return null;
+        }
+
+        ServerConfig serverConfig;
+        try {
+            JsonNode base = mapper.valueToTree(settingsHelper.getConfig());
+            if (Const.CONFIG_PATCH_MERGE.equals(patchType)) {
+                base = JsonPatchUtils.applyMergePatch(base, data);
+            } else if (Const.CONFIG_PATCH_JSON.equals(patchType)) {
+                base = JsonPatchUtils.applyJsonPatch(base, data);
+            } else {
+                RemoteLogger.log(context, Const.LOG_WARN, "Unsupported config patch type: " + patchType);
                 return null;
             }
-            return new ObjectMapper().readValue(serverData, ServerConfig.class);
-        } else {
-            buildTaskErrorTextSecure(response, null);
+            serverConfig = mapper.treeToValue(base, ServerConfig.class);
+            RemoteLogger.log(context, Const.LOG_DEBUG, "Config patch applied, " + serverResponse.length() + " bytes received");
+        } catch (Exception e) {
+            RemoteLogger.log(context, Const.LOG_WARN, "Failed to apply config patch: " + e.getMessage());
+            return null;
+        }
+
+        settingsHelper.setExternalIp(response.headers().get(Const.HEADER_IP_ADDRESS));
+        configResponse = response;
+        return serverConfig;
+    }
+
+    private void onNotModified(Response<?> response) {
+        isNotModified = true;
+        String ipAddress = response.headers().get(Const.HEADER_IP_ADDRESS);
+        if (ipAddress != null) {
+            settingsHelper.setExternalIp(ipAddress);
+        }
+    }
+
+    // Calls the primary and the secondary server, and sets serverHost for error messages
+    // Only GET requests are idempotent and may be hedged (delay > 0)
+    private <T> Response<T> execute(Call<T> primaryCall, Call<T> secondaryCall, long delay) throws IOException {
+        HedgedCall<T> call = new HedgedCall<>(primaryCall, secondaryCall);
+        try {
+            Response<T> response = call.execute(delay);
+            serverHost = call.isSecondaryResponse() ? settingsHelper.getSecondaryBaseUrl() : settingsHelper.getBaseUrl();
+            return response;
+        } catch (IOException e) {
+            serverHost = settingsHelper.getSecondaryBaseUrl();
+            throw e;
         }
-        return null;
     }
 
     private void buildTaskErrorText(Response<ServerConfigResponse> response) {
@@ -2,15 +2,18 @@ package com.hmdm.launcher.ui;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
 
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.Application;
 import com.hmdm.launcher.util.AppInfo;
+import com.hmdm.launcher.util.PackageIndex;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,20 +32,7 @@ public class AppShortcutManager {
         Map<String, Application> requiredPackages = new HashMap();
         Map<String, Application> requiredLinks = new HashMap();
         getConfiguredApps(context, bottom, requiredPackages, requiredLinks);
-        List<ApplicationInfo> packs = context.getPackageManager().getInstalledApplications(0);
-        if (packs == null) {
-            return requiredLinks.size();
-        }
-        // Calculate applications
-        int packageCount = 0;
-        for(int i = 0; i < packs.size(); i++) {
-            ApplicationInfo p = packs.get(i);
-            if (context.getPackageManager().getLaunchIntentForPackage(p.packageName) != null &&
-                    requiredPackages.containsKey(p.packageName)) {
-                packageCount++;
-            }
-        }
-        return requiredLinks.size() + packageCount;
+        return requiredLinks.size() + getLaunchablePackages(context, requiredPackages).size();
     }
 
     public List<AppInfo> getInstalledApps(Context context, boolean bottom) {
@@ -51,26 +41,19 @@ public class AppShortcutManager {
         getConfiguredApps(context, bottom, requiredPackages, requiredLinks);
 
         List<AppInfo> appInfos = new ArrayList<>();
-        List<ApplicationInfo> packs = context.getPackageManager().getInstalledApplications(0);
-        if (packs == null) {
-            return new ArrayList<AppInfo>();
-        }
+        Map<String, String> packs = getLaunchablePackages(context, requiredPackages);
         // First we display app icons
-        for(int i = 0; i < packs.size(); i++) {
-            ApplicationInfo p = packs.get(i);
-            if ( context.getPackageManager().getLaunchIntentForPackage(p.packageName) != null &&
-                    requiredPackages.containsKey( p.packageName ) ) {
-                Application app = requiredPackages.get(p.packageName);
-                AppInfo newInfo = new AppInfo();
-                newInfo.type = AppInfo.TYPE_APP;
-                newInfo.keyCode = app.getKeyCode();
-                newInfo.name = app.getIconText() != null ? app.getIconText() : p.loadLabel(context.getPackageManager()).toString();
-                newInfo.packageName = p.packageName;
-                newInfo.iconUrl = app.getIcon();
-                newInfo.screenOrder = app.getScreenOrder();
-                newInfo.longTap = app.isLongTap() ? 1 : 0;
-                appInfos.add(newInfo);
-            }
+        for (Map.Entry<String, String> p : packs.entrySet()) {
+            Application app = requiredPackages.get(p.getKey());
+            AppInfo newInfo = new AppInfo();
+            newInfo.type = AppInfo.TYPE_APP;
+            newInfo.keyCode = app.getKeyCode();
+            newInfo.name = app.getIconText() != null ? app.getIconText() : p.getValue();
+            newInfo.packageName = p.getKey();
+            newInfo.iconUrl = app.getIcon();
+            newInfo.screenOrder = app.getScreenOrder();
+            newInfo.longTap = app.isLongTap() ? 1 : 0;
+            appInfos.add(newInfo);
         }
 
         // Then we display weblinks
@@ -93,6 +76,38 @@ public class AppShortcutManager {
         return appInfos;
     }
 
+    // Returns the installed configured packages having a launcher activity and their labels,
+    // in the order of the installed package list
+    private Map<String, String> getLaunchablePackages(Context context, Map<String, Application> requiredPackages) {
+        Map<String, String> result = new LinkedHashMap<>();
+        PackageManager packageManager = context.getPackageManager();
+        Map<String, PackageIndex.Entry> packages = PackageIndex.getInstance(context).getPackages();
+        if (packages != null) {
+            for (PackageIndex.Entry entry : packages.values()) {
+                if (entry.isLaunchable() && requiredPackages.containsKey(entry.getPackageName())) {
+                    // Labels are loaded only if required
+                    Application app = requiredPackages.get(entry.getPackageName());
+                    result.put(entry.getPackageName(), app.getIconText() != null ? null : entry.getLabel(packageManager));
+                }
+            }
+            return result;
+        }
+
+        // The package index is not ready yet
+        List<ApplicationInfo> packs = packageManager.getInstalledApplications(0);
+        if (packs == null) {
+            return result;
+        }
+        for (ApplicationInfo p : packs) {
+            if (requiredPackages.containsKey(p.packageName) &&
+                    packageManager.getLaunchIntentForPackage(p.packageName) != null) {
+                Application app = requiredPackages.get(p.packageName);
+                result.put(p.packageName, app.getIconText() != null ? null : p.loadLabel(packageManager).toString());
+            }
+        }
+        return result;
+    }
+
     private void getConfiguredApps(Context context, boolean bottom, Map<String, Application> requiredPackages, Map<String, Application> requiredLinks) {
         SettingsHelper config = SettingsHelper.getInstance( context );
         if ( config.getConfig() != null ) {
@@ -339,9 +339,11 @@ public class BaseActivity extends AppCompatActivity {
             }
 
             SettingsHelper settingsHelper = SettingsHelper.getInstance( this );
-            settingsHelper.setBaseUrl(url.baseUrl);
-            settingsHelper.setSecondaryBaseUrl(url.baseUrl);
-            settingsHelper.setServerProject(url.serverProject);
+            settingsHelper.beginTransaction()
+                    .setBaseUrl(url.baseUrl)
+                    .setSecondaryBaseUrl(url.baseUrl)
+                    .setServerProject(url.serverProject)
+                    .commit();
             dialogEnterServerBinding.setError( false );
 
             dismissDialog(enterServerDialog);
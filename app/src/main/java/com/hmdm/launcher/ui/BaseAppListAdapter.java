@@ -25,7 +25,7 @@ import com.hmdm.launcher.R;
 import com.hmdm.launcher.databinding.ItemAppBinding;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.ServerConfig;
-import com.hmdm.launcher.server.UnsafeOkHttpClient;
+import com.hmdm.launcher.server.ServerServiceKeeper;
 import com.hmdm.launcher.util.AppInfo;
 import com.hmdm.launcher.util.InstallUtils;
 import com.hmdm.launcher.util.Utils;
@@ -123,12 +123,12 @@ public class BaseAppListAdapter extends RecyclerView.Adapter<BaseAppListAdapter.
                 if (picasso == null) {
                     Picasso.Builder builder = new Picasso.Builder(parentActivity);
                     if (BuildConfig.TRUST_ANY_CERTIFICATE) {
-                        builder.downloader(new OkHttp3Downloader(UnsafeOkHttpClient.getUnsafeOkHttpClient()));
+                        builder.downloader(new OkHttp3Downloader(ServerServiceKeeper.getHttpClient()));
                     } else {
                         // Add signature to all requests to protect against unauthorized API calls
                         // For TRUST_ANY_CERTIFICATE, we won't add signatures because it's unsafe anyway
                         // and is just a workaround to use Headwind MDM on the LAN
-                        OkHttpClient clientWithSignature = new OkHttpClient.Builder()
+                        OkHttpClient clientWithSignature = ServerServiceKeeper.getHttpClient().newBuilder()
                                 .cache(new Cache(new File(parentActivity.getApplication().getCacheDir(), "image_cache"), 1000000L))
                                 .addInterceptor(chain -> {
                                     okhttp3.Request.Builder requestBuilder = chain.request().newBuilder();
@@ -99,7 +99,6 @@ import com.hmdm.launcher.pro.ProUtils;
 import com.hmdm.launcher.pro.service.CheckForegroundAppAccessibilityService;
 import com.hmdm.launcher.pro.service.CheckForegroundApplicationService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
-import com.hmdm.launcher.server.UnsafeOkHttpClient;
 import com.hmdm.launcher.service.LocationService;
 import com.hmdm.launcher.service.PluginApiService;
 import com.hmdm.launcher.service.StatusControlService;
@@ -1668,12 +1667,12 @@ public class MainActivity
                     // Initialize it once because otherwise it doesn't work offline
                     Picasso.Builder builder = new Picasso.Builder(this);
                     if (BuildConfig.TRUST_ANY_CERTIFICATE) {
-                        builder.downloader(new OkHttp3Downloader(UnsafeOkHttpClient.getUnsafeOkHttpClient()));
+                        builder.downloader(new OkHttp3Downloader(ServerServiceKeeper.getHttpClient()));
                     } else {
                         // Add signature to all requests to protect against unauthorized API calls
                         // For TRUST_ANY_CERTIFICATE, we won't add signatures because it's unsafe anyway
                         // and is just a workaround to use Headwind MDM on the LAN
-                        OkHttpClient clientWithSignature = new OkHttpClient.Builder()
+                        OkHttpClient clientWithSignature = ServerServiceKeeper.getHttpClient().newBuilder()
                                 .cache(new Cache(new File(getApplication().getCacheDir(), "image_cache"), 1000000L))
                                 .addInterceptor(chain -> {
                                     okhttp3.Request.Builder requestBuilder = chain.request().newBuilder();
@@ -2202,9 +2201,11 @@ public class MainActivity
 
         Log.i(Const.LOG_TAG, "networkErrorResetClicked(): calling updateConfig()");
         settingsHelper.setDeviceId("");
-        settingsHelper.setBaseUrl("");
-        settingsHelper.setSecondaryBaseUrl("");
-        settingsHelper.setServerProject("");
+        settingsHelper.beginTransaction()
+                .setBaseUrl("")
+                .setSecondaryBaseUrl("")
+                .setServerProject("")
+                .commit();
         createAndShowServerDialog(false, settingsHelper.getBaseUrl(), settingsHelper.getServerProject());
     }
 
@@ -0,0 +1,253 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a new APK from the installed one and a binary patch.
+ * The patch has the bsdiff 4.0 layout, but its blocks are compressed by gzip instead of bzip2:
+ * "BSDIFFGZ", control block length, diff block length, new file length (8 bytes each),
+ * followed by the gzipped control, diff and extra blocks.
+ * The old file is read by positions and the new file is written as a stream,
+ * so large APKs are not loaded into memory.
+ */
+public class ApkPatcher {
+    private static final String MAGIC = "BSDIFFGZ";
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Apply the patch to the old file and write the result to the new file.
+     * If digest is not null, it receives the checksum of the new file.
+     */
+    public static void apply(File oldFile, File patchFile, File newFile, DownloadDigest digest) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        InputStream headerStream = new FileInputStream(patchFile);
+        try {
+            readFully(headerStream, header, 0, HEADER_SIZE);
+        } finally {
+            headerStream.close();
+        }
+        if (!new String(header, 0, 8, "US-ASCII").equals(MAGIC)) {
+            throw new IOException("Bad patch header");
+        }
+        long ctrlLength = offtin(header, 8);
+        long diffLength = offtin(header, 16);
+        long newSize = offtin(header, 24);
+        if (ctrlLength < 0 || diffLength < 0 || newSize < 0 ||
+                HEADER_SIZE + ctrlLength + diffLength > patchFile.length()) {
+            throw new IOException("Corrupt patch");
+        }
+
+        long extraOffset = HEADER_SIZE + ctrlLength + diffLength;
+        InputStream ctrlStream = openBlock(patchFile, HEADER_SIZE, ctrlLength);
+        InputStream diffStream = openBlock(patchFile, HEADER_SIZE + ctrlLength, diffLength);
+        InputStream extraStream = openBlock(patchFile, extraOffset, patchFile.length() - extraOffset);
+        RandomAccessFile oldData = new RandomAccessFile(oldFile, "r");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE);
+        try {
+            long oldSize = oldData.length();
+            byte[] ctrl = new byte[24];
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            long oldPos = 0;
+            long newPos = 0;
+            if (digest != null) {
+                digest.reset();
+            }
+
+            while (newPos < newSize) {
+                readFully(ctrlStream, ctrl, 0, ctrl.length);
+                long diffCount = offtin(ctrl, 0);
+                long extraCount = offtin(ctrl, 8);
+                long seek = offtin(ctrl, 16);
+                if (diffCount < 0 || extraCount < 0 || newPos + diffCount + extraCount > newSize) {
+                    throw new IOException("Corrupt patch");
+                }
+
+                // Add the diff block to the old data
+                long remaining = diffCount;
+                while (remaining > 0) {
+                    int count = (int) Math.min(BUFFER_SIZE, remaining);
+                    readFully(diffStream, buffer, 0, count);
+                    readOld(oldData, oldSize, oldPos, oldBuffer, count);
+                    for (int i = 0; i < count; i++) {
+                        buffer[i] += oldBuffer[i];
+                    }
+                    write(out, digest, buffer, count);
+                    oldPos += count;
+                    newPos += count;
+                    remaining -= count;
+                }
+
+                // Copy the extra block
+                remaining = extraCount;
+                while (remaining > 0) {
+                    int count = (int) Math.min(BUFFER_SIZE, remaining);
+                    readFully(extraStream, buffer, 0, count);
+                    write(out, digest, buffer, count);
+                    newPos += count;
+                    remaining -= count;
+                }
+
+                oldPos += seek;
+            }
+            // Reading past the end checks the gzip trailers, so a truncated patch is not accepted
+            if (ctrlStream.read() != -1 || diffStream.read() != -1 || extraStream.read() != -1) {
+                throw new IOException("Corrupt patch");
+            }
+            out.flush();
+        } finally {
+            out.close();
+            oldData.close();
+            ctrlStream.close();
+            diffStream.close();
+            extraStream.close();
+        }
+        if (digest != null) {
+            digest.finish();
+        }
+    }
+
+    private static InputStream openBlock(File patchFile, long offset, long length) throws IOException {
+        FileInputStream fis = new FileInputStream(patchFile);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = fis.skip(offset - skipped);
+                if (n <= 0) {
+                    throw new EOFException();
+                }
+                skipped += n;
+            }
+            return new GZIPInputStream(new BlockInputStream(new BufferedInputStream(fis, BUFFER_SIZE), length), BUFFER_SIZE);
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
+    // Bytes outside of the old file are treated as zeroes
+    private static void readOld(RandomAccessFile oldData, long oldSize, long oldPos, byte[] oldBuffer, int count) throws IOException {
+        int start = 0;
+        if (oldPos < 0) {
+            start = (int) Math.min(count, -oldPos);
+        }
+        int end = (int) Math.max(start, Math.min(count, oldSize - oldPos));
+        for (int i = 0; i < start; i++) {
+            oldBuffer[i] = 0;
+        }
+        if (end > start) {
+            oldData.seek(oldPos + start);
+            oldData.readFully(oldBuffer, start, end - start);
+        }
+        for (int i = end; i < count; i++) {
+            oldBuffer[i] = 0;
+        }
+    }
+
+    private static void write(OutputStream out, DownloadDigest digest, byte[] buffer, int count) throws IOException {
+        out.write(buffer, 0, count);
+        if (digest != null) {
+            digest.update(buffer, 0, count);
+        }
+    }
+
+    private static void readFully(InputStream is, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = is.read(buffer, offset, length);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of patch");
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // Ends at the end of the block, so gzip doesn't take the next block for its continuation
+    private static class BlockInputStream extends FilterInputStream {
+        private long remaining;
+
+        BlockInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = super.read();
+            if (c != -1) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+    }
+
+    // Sign-magnitude little endian 64-bit integer used by bsdiff
+    private static long offtin(byte[] buffer, int offset) {
+        long y = buffer[offset + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            y = (y << 8) | (buffer[offset + i] & 0xFF);
+        }
+        if ((buffer[offset + 7] & 0x80) != 0) {
+            y = -y;
+        }
+        return y;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.json.Application;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the apps waiting for installation into the ones removed and installed in batches
+ * by BulkInstaller and the ones handled one by one, and collects the apps which must be
+ * retried one by one after the batches.
+ */
+public class BulkInstallPlan {
+    private boolean multiPackageSupported;
+    private boolean streamInstallSupported;
+    private String selfPackage;
+
+    private final List<Application> removals = new ArrayList<>();
+    private final List<Application> installs = new ArrayList<>();
+    private final List<Application> fallback = new ArrayList<>();
+    private final List<Application> installed = new ArrayList<>();
+
+    /**
+     * @param multiPackageSupported whether APKs can be committed in one multi-package session
+     * @param streamInstallSupported whether APKs can be streamed into the installer (see InstallUtils.canStreamInstall)
+     * @param selfPackage package of the launcher, which is always updated last
+     */
+    public BulkInstallPlan(boolean multiPackageSupported, boolean streamInstallSupported, String selfPackage) {
+        this.multiPackageSupported = multiPackageSupported;
+        this.streamInstallSupported = streamInstallSupported;
+        this.selfPackage = selfPackage;
+    }
+
+    public boolean isBulkInstallable(Application application) {
+        if (application.isRemove()) {
+            return true;
+        }
+        if (!multiPackageSupported || application.getUrl() == null ||
+                application.getUrl().startsWith("market://") || application.getUrl().startsWith("file:///") ||
+                application.getUrl().endsWith(".xapk") || application.getPkg().equals(selfPackage)) {
+            // Self update is always the last one
+            return false;
+        }
+        // Streamed apps have no file to add to a batch
+        return !(application.isStreamInstall() && streamInstallSupported);
+    }
+
+    // A batch of a single app is not worth it
+    public boolean canInstallInBulk(List<Application> applications) {
+        int count = 0;
+        for (Application application : applications) {
+            if (isBulkInstallable(application) && ++count > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move the suitable apps from the list to the plan. The rest of the apps stay in the list in their order.
+     */
+    public void take(List<Application> applications) {
+        Iterator<Application> iterator = applications.iterator();
+        while (iterator.hasNext()) {
+            Application application = iterator.next();
+            if (isBulkInstallable(application)) {
+                if (application.isRemove()) {
+                    removals.add(application);
+                } else {
+                    installs.add(application);
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    public List<Application> getRemovals() {
+        return removals;
+    }
+
+    public List<Application> getInstalls() {
+        return installs;
+    }
+
+    public int getBatchCount() {
+        return (installs.size() + BulkInstaller.MAX_BATCH_SIZE - 1) / BulkInstaller.MAX_BATCH_SIZE;
+    }
+
+    public List<Application> getBatch(int index) {
+        int start = index * BulkInstaller.MAX_BATCH_SIZE;
+        return installs.subList(start, Math.min(start + BulkInstaller.MAX_BATCH_SIZE, installs.size()));
+    }
+
+    // The next batch is downloaded while this one is being installed
+    public List<Application> getPrefetch(int index) {
+        int start = index * BulkInstaller.MAX_BATCH_SIZE;
+        return installs.subList(start, Math.min(start + 2 * BulkInstaller.MAX_BATCH_SIZE, installs.size()));
+    }
+
+    /**
+     * The app will be installed or removed one by one, e.g. because it failed to download.
+     */
+    public void addFallback(Application application) {
+        fallback.add(application);
+    }
+
+    // The batches couldn't be started, all apps are handled one by one
+    public void fallBackAll() {
+        fallback.addAll(removals);
+        fallback.addAll(installs);
+    }
+
+    /**
+     * Apps failed to be removed in a batch are removed one by one.
+     */
+    public void onRemoved(Map<String, String> failures) {
+        for (Application application : removals) {
+            if (failures.containsKey(application.getPkg())) {
+                fallback.add(application);
+            }
+        }
+    }
+
+    /**
+     * Returns the apps of the batch which failed to install. They are not retried,
+     * so a broken APK is not downloaded again and again.
+     * Apps missing from apks have not been downloaded and are already in the fallback list.
+     */
+    public List<Application> onBatchInstalled(List<Application> batch, Map<String, File> apks, Map<String, String> failures) {
+        List<Application> failed = new ArrayList<>();
+        for (Application application : batch) {
+            if (!apks.containsKey(application.getPkg())) {
+                continue;
+            }
+            if (failures.containsKey(application.getPkg())) {
+                failed.add(application);
+            } else {
+                installed.add(application);
+            }
+        }
+        return failed;
+    }
+
+    public List<Application> getInstalled() {
+        return installed;
+    }
+
+    // To be installed one by one before the other apps
+    public List<Application> getFallback() {
+        return fallback;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.IntentSender;
+import android.content.pm.PackageInstaller;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import com.hmdm.launcher.Const;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Silently installs and uninstalls several apps at once (device owner mode only).
+ * APKs are committed in one multi-package session (Android 10 and above) instead of one
+ * session and broadcast round trip per app; if a batch fails, its apps are installed one by one.
+ * Uninstalls run concurrently with bounded parallelism.
+ * All methods wait for the results, so they must be called from a background thread.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class BulkInstaller {
+    public static final int MAX_BATCH_SIZE = 10;
+    public static final int MAX_PARALLEL_UNINSTALLS = 4;
+
+    private static final String EXTRA_REQUEST_ID = "REQUEST_ID";
+    private static final AtomicInteger requestCounter = new AtomicInteger();
+
+    private static class Result {
+        CountDownLatch latch = new CountDownLatch(1);
+        int status = PackageInstaller.STATUS_FAILURE;
+        String message;
+    }
+
+    private Context context;
+    private long timeout;
+    private final Map<Integer, Result> results = new HashMap<>();
+    private BroadcastReceiver receiver;
+
+    /**
+     * The timeout is applied to each installer operation.
+     */
+    public BulkInstaller(Context context, long timeout) {
+        this.context = context.getApplicationContext();
+        this.timeout = timeout;
+    }
+
+    public static boolean isMultiPackageSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+    @SuppressLint("WrongConstant,UnspecifiedRegisterReceiverFlag")
+    public synchronized void open() {
+        if (receiver != null) {
+            return;
+        }
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Result result;
+                synchronized (results) {
+                    result = results.get(intent.getIntExtra(EXTRA_REQUEST_ID, -1));
+                }
+                if (result == null) {
+                    return;
+                }
+                result.status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+                result.message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+                result.latch.countDown();
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.registerReceiver(receiver, new IntentFilter(Const.ACTION_BULK_INSTALL_COMPLETE), Context.RECEIVER_EXPORTED);
+        } else {
+            context.registerReceiver(receiver, new IntentFilter(Const.ACTION_BULK_INSTALL_COMPLETE));
+        }
+    }
+
+    public synchronized void close() {
+        if (receiver != null) {
+            try {
+                context.unregisterReceiver(receiver);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            receiver = null;
+        }
+    }
+
+    /**
+     * Install the APKs (package name to file). Returns the error messages of the packages failed to install.
+     */
+    public Map<String, String> install(Map<String, File> apks) {
+        Map<String, String> failures = new LinkedHashMap<>();
+        if (apks.isEmpty()) {
+            return failures;
+        }
+        // Checked here rather than by isMultiPackageSupported(), so lint sees the API level
+        if (apks.size() > 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                installMultiPackage(apks);
+                for (String packageName : apks.keySet()) {
+                    PackageIndex.getInstance(context).updatePackage(packageName);
+                }
+                return failures;
+            } catch (Exception e) {
+                RemoteLogger.log(context, Const.LOG_WARN, "Batch install of " + apks.size() +
+                        " apps failed, installing them one by one: " + e.getMessage());
+            }
+        }
+        for (Map.Entry<String, File> apk : apks.entrySet()) {
+            try {
+                installSingle(apk.getKey(), apk.getValue());
+                PackageIndex.getInstance(context).updatePackage(apk.getKey());
+            } catch (Exception e) {
+                failures.put(apk.getKey(), e.getMessage());
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Uninstall the packages concurrently. Returns the error messages of the packages failed to uninstall.
+     */
+    public Map<String, String> uninstall(List<String> packageNames) {
+        Map<String, String> failures = new LinkedHashMap<>();
+        if (packageNames.isEmpty()) {
+            return failures;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(packageNames.size(), MAX_PARALLEL_UNINSTALLS));
+        List<Future<String>> futures = new ArrayList<>();
+        try {
+            for (final String packageName : packageNames) {
+                futures.add(executor.submit(() -> {
+                    try {
+                        int requestId = requestCounter.incrementAndGet();
+                        Result result = prepareResult(requestId);
+                        context.getPackageManager().getPackageInstaller().uninstall(packageName,
+                                createIntentSender(requestId));
+                        awaitResult(requestId, result);
+                        PackageIndex.getInstance(context).updatePackage(packageName);
+                        return null;
+                    } catch (Exception e) {
+                        return e.getMessage() != null ? e.getMessage() : e.toString();
+                    }
+                }));
+            }
+            for (int n = 0; n < futures.size(); n++) {
+                String error;
+                try {
+                    error = futures.get(n).get();
+                } catch (Exception e) {
+                    error = e.toString();
+                }
+                if (error != null) {
+                    failures.put(packageNames.get(n), error);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private void installMultiPackage(Map<String, File> apks) throws Exception {
+        PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
+        PackageInstaller.SessionParams parentParams = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        parentParams.setMultiPackage();
+        int parentId = packageInstaller.createSession(parentParams);
+        PackageInstaller.Session parent = packageInstaller.openSession(parentId);
+        boolean committed = false;
+        try {
+            for (Map.Entry<String, File> apk : apks.entrySet()) {
+                int childId = createSession(packageInstaller, apk.getKey(), apk.getValue());
+                parent.addChildSessionId(childId);
+            }
+            int requestId = requestCounter.incrementAndGet();
+            Result result = prepareResult(requestId);
+            Log.i(Const.LOG_TAG, "Installing " + apks.size() + " apps in a batch");
+            parent.commit(createIntentSender(requestId));
+            committed = true;
+            awaitResult(requestId, result);
+        } finally {
+            if (!committed) {
+                // Child sessions are abandoned together with the parent
+                parent.abandon();
+            }
+            parent.close();
+        }
+    }
+
+    private void installSingle(String packageName, File file) throws Exception {
+        PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
+        int sessionId = createSession(packageInstaller, packageName, file);
+        PackageInstaller.Session session = packageInstaller.openSession(sessionId);
+        boolean committed = false;
+        try {
+            int requestId = requestCounter.incrementAndGet();
+            Result result = prepareResult(requestId);
+            Log.i(Const.LOG_TAG, "Installing " + packageName);
+            session.commit(createIntentSender(requestId));
+            committed = true;
+            awaitResult(requestId, result);
+        } finally {
+            if (!committed) {
+                session.abandon();
+            }
+            session.close();
+        }
+    }
+
+    // Create a session with the APK written to it
+    private int createSession(PackageInstaller packageInstaller, String packageName, File file) throws Exception {
+        PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        params.setAppPackageName(packageName);
+        params.setSize(file.length());
+        int sessionId = packageInstaller.createSession(params);
+        PackageInstaller.Session session = packageInstaller.openSession(sessionId);
+        try {
+            InputStream in = new FileInputStream(file);
+            OutputStream out = session.openWrite("COSU", 0, file.length());
+            try {
+                byte[] buffer = new byte[65536];
+                int c;
+                while ((c = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, c);
+                }
+                session.fsync(out);
+            } finally {
+                in.close();
+                out.close();
+            }
+        } catch (Exception e) {
+            session.abandon();
+            throw e;
+        } finally {
+            session.close();
+        }
+        return sessionId;
+    }
+
+    private Result prepareResult(int requestId) {
+        Result result = new Result();
+        synchronized (results) {
+            results.put(requestId, result);
+        }
+        return result;
+    }
+
+    private void awaitResult(int requestId, Result result) throws Exception {
+        try {
+            if (!result.latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                throw new Exception("no result in " + timeout / 1000 + " sec");
+            }
+            if (result.status != PackageInstaller.STATUS_SUCCESS) {
+                // User action is not expected in the device owner mode, so it is a failure as well
+                String message = InstallUtils.getPackageInstallerStatusMessage(result.status);
+                if (result.message != null && result.message.length() > 0) {
+                    message += ", extra: " + result.message;
+                }
+                throw new Exception(message);
+            }
+        } finally {
+            synchronized (results) {
+                results.remove(requestId);
+            }
+        }
+    }
+
+    private IntentSender createIntentSender(int requestId) {
+        Intent intent = new Intent(Const.ACTION_BULK_INSTALL_COMPLETE);
+        intent.putExtra(EXTRA_REQUEST_ID, requestId);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(
+                context,
+                requestId,
+                intent,
+                PendingIntent.FLAG_MUTABLE | PendingIntent.FLAG_ALLOW_UNSAFE_IMPLICIT_INTENT);
+        return pendingIntent.getIntentSender();
+    }
+}
@@ -19,40 +19,46 @@
 
 package com.hmdm.launcher.util;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class CryptoUtils {
-    public static String calculateChecksum(InputStream fileContent) {
-        // Calculate checksum
-        MessageDigest md = null;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static MessageDigest createChecksumDigest() {
         try {
-            md = MessageDigest.getInstance("MD5");
+            return MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             return null;
         }
-        try (InputStream is = new BufferedInputStream(fileContent);
-             DigestInputStream dis = new DigestInputStream(is, md)) {
-            /* Read decorated stream (dis) to EOF as normal... */
-            int b;
-            while ((b = dis.read()) != -1) {
-                // digest will consume the content when read() called
+    }
+
+    public static String calculateChecksum(InputStream fileContent) {
+        // Calculate checksum
+        MessageDigest md = createChecksumDigest();
+        if (md == null) {
+            return null;
+        }
+        // Read the stream in large blocks: per-byte reads are very slow on large files
+        try (InputStream is = fileContent) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                md.update(buffer, 0, length);
             }
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
 
-        // to calculate message digest of the input string
-        // returned as array of byte
-        byte[] digest = md.digest();
+        return toChecksumString(md.digest());
+    }
 
+    public static String toChecksumString(byte[] digest) {
         // Convert byte array into signum representation
         BigInteger no = new BigInteger(1, digest);
 
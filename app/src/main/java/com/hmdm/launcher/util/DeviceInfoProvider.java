@@ -50,6 +50,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.List;
+import java.util.Map;
 
 public class DeviceInfoProvider {
     public static DeviceInfo getDeviceInfo(Context context, boolean queryPermissions, boolean queryApps) {
@@ -71,18 +72,27 @@ public class DeviceInfoProvider {
         if (queryApps) {
             PackageManager packageManager = context.getPackageManager();
             if (config.getConfig() != null) {
+                Map<String, PackageIndex.Entry> packages = PackageIndex.getInstance(context).getPackages();
                 List<Application> requiredApps = SettingsHelper.getInstance(context).getConfig().getApplications();
                 for (Application application : requiredApps) {
                     if (application.isRemove()) {
                         continue;
                     }
                     try {
-                        PackageInfo packageInfo = packageManager.getPackageInfo(application.getPkg(), 0);
-
                         Application installedApp = new Application();
                         installedApp.setName(application.getName());
-                        installedApp.setPkg(packageInfo.packageName);
-                        installedApp.setVersion(packageInfo.versionName);
+                        if (packages != null) {
+                            PackageIndex.Entry entry = packages.get(application.getPkg());
+                            if (entry == null) {
+                                throw new PackageManager.NameNotFoundException();
+                            }
+                            installedApp.setPkg(entry.getPackageName());
+                            installedApp.setVersion(entry.getVersionName());
+                        } else {
+                            PackageInfo packageInfo = packageManager.getPackageInfo(application.getPkg(), 0);
+                            installedApp.setPkg(packageInfo.packageName);
+                            installedApp.setVersion(packageInfo.versionName);
+                        }
 
                         // Verify there's no duplicates (due to different versions in config), otherwise it causes an error on the server
                         boolean appPresents = false;
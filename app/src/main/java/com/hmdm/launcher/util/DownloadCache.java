@@ -0,0 +1,220 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.CacheTable;
+import com.hmdm.launcher.db.DatabaseHelper;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Cache of downloaded files, addressed by their MD5 checksum, so identical content is stored once.
+ * Files with a known checksum are taken from the cache without downloading.
+ * Other files are found by the URL and revalidated by the server (If-None-Match / If-Modified-Since).
+ * Least recently used files are evicted when the cache exceeds its budget.
+ */
+public class DownloadCache {
+    public static final String CACHE_DIR = "download_cache";
+    private static final long MAX_CACHE_SIZE = 512L * 1024 * 1024;
+
+    private static File getCacheDir(Context context) {
+        File dir = new File(context.getExternalFilesDir(null), CACHE_DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    private static boolean isValidChecksum(String checksum) {
+        // Checksums are used as file names
+        return checksum != null && checksum.matches("[0-9a-fA-F]{32}");
+    }
+
+    /**
+     * Copy the cached file with the specified checksum to the target file.
+     * The content is verified: a cached file may be hard linked to a file modified outside the cache.
+     * @return true if the file has been found in the cache and its checksum matches
+     */
+    public static synchronized boolean restore(Context context, String checksum, File target) {
+        if (!isValidChecksum(checksum)) {
+            return false;
+        }
+        File cached = new File(getCacheDir(context), checksum.toLowerCase());
+        if (!cached.exists()) {
+            return false;
+        }
+        try {
+            linkOrCopy(cached, target);
+            if (!cached.getName().equalsIgnoreCase(CryptoUtils.calculateChecksum(new FileInputStream(target)))) {
+                Log.w(Const.LOG_TAG, "Cached file " + cached.getName() + " has been modified, evicting");
+                target.delete();
+                cached.delete();
+                CacheTable.deleteByChecksum(DatabaseHelper.instance(context).getWritableDatabase(), cached.getName());
+                return false;
+            }
+            cached.setLastModified(System.currentTimeMillis());
+            Log.d(Const.LOG_TAG, "Restored " + target.getName() + " from the download cache");
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            target.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Get the cached file data for the URL, or null if the file is not in the cache.
+     */
+    public static synchronized CacheTable.Entry getEntry(Context context, String url) {
+        SQLiteDatabase db = DatabaseHelper.instance(context).getWritableDatabase();
+        CacheTable.Entry entry = CacheTable.selectByUrl(db, url);
+        if (entry != null && (!isValidChecksum(entry.getChecksum()) ||
+                !new File(getCacheDir(context), entry.getChecksum().toLowerCase()).exists())) {
+            CacheTable.deleteByUrl(db, url);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Save the downloaded file in the cache. The file itself is left in place.
+     * The URL is remembered only if the server provided validators for it.
+     */
+    public static synchronized void put(Context context, File file, String checksum, String url, String etag, String lastModified) {
+        if (!isValidChecksum(checksum)) {
+            return;
+        }
+        File dir = getCacheDir(context);
+        File cached = new File(dir, checksum.toLowerCase());
+        try {
+            if (!cached.exists()) {
+                File temp = new File(dir, cached.getName() + ".tmp");
+                linkOrCopy(file, temp);
+                if (!temp.renameTo(cached)) {
+                    temp.delete();
+                    return;
+                }
+            }
+            cached.setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+            // No space left?
+            e.printStackTrace();
+            return;
+        }
+
+        SQLiteDatabase db = DatabaseHelper.instance(context).getWritableDatabase();
+        if (url != null) {
+            if (etag != null || lastModified != null) {
+                CacheTable.Entry entry = new CacheTable.Entry();
+                entry.setUrl(url);
+                entry.setChecksum(cached.getName());
+                entry.setEtag(etag);
+                entry.setLastModified(lastModified);
+                CacheTable.insert(db, entry);
+            } else {
+                CacheTable.deleteByUrl(db, url);
+            }
+        }
+        evict(context, db, cached);
+    }
+
+    public static synchronized void remove(Context context, String url) {
+        CacheTable.deleteByUrl(DatabaseHelper.instance(context).getWritableDatabase(), url);
+    }
+
+    public static synchronized void clear(Context context) {
+        File[] files = getCacheDir(context).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        CacheTable.deleteAll(DatabaseHelper.instance(context).getWritableDatabase());
+    }
+
+    // Remove least recently used files exceeding the budget: 512 MB,
+    // but not more than a quarter of the space which would be free without the cache
+    private static void evict(Context context, SQLiteDatabase db, File keep) {
+        File dir = getCacheDir(context);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cacheSize = 0;
+        for (File file : files) {
+            cacheSize += file.length();
+        }
+        long budget = Math.min(MAX_CACHE_SIZE, (dir.getUsableSpace() + cacheSize) / 4);
+        if (cacheSize <= budget) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified();
+                long t2 = f2.lastModified();
+                return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (cacheSize <= budget) {
+                break;
+            }
+            if (file.equals(keep)) {
+                continue;
+            }
+            cacheSize -= file.length();
+            Log.d(Const.LOG_TAG, "Evicting " + file.getName() + " from the download cache");
+            file.delete();
+            CacheTable.deleteByChecksum(db, file.getName());
+        }
+    }
+
+    // Hard links avoid copying when the file system supports them
+    private static void linkOrCopy(File src, File dst) throws IOException {
+        if (dst.exists()) {
+            dst.delete();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.link(src.getAbsolutePath(), dst.getAbsolutePath());
+                return;
+            } catch (ErrnoException e) {
+                // Not supported by the file system, copy the file
+            }
+        }
+        FileUtils.copyFile(src, dst);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Checksum of a file calculated while it is being downloaded,
+ * so the file doesn't need to be read once more to verify it.
+ */
+public class DownloadDigest {
+    private MessageDigest md = CryptoUtils.createChecksumDigest();
+    private String expectedChecksum;
+    private String checksum;
+
+    public DownloadDigest() {}
+
+    /**
+     * @param expectedChecksum checksum of the file if known: such files could be taken from the download cache
+     */
+    public DownloadDigest(String expectedChecksum) {
+        this.expectedChecksum = expectedChecksum;
+    }
+
+    public String getExpectedChecksum() {
+        return expectedChecksum;
+    }
+
+    public void update(byte[] buffer, int offset, int length) {
+        if (md != null) {
+            md.update(buffer, offset, length);
+        }
+    }
+
+    public void reset() {
+        if (md != null) {
+            md.reset();
+        }
+        checksum = null;
+    }
+
+    /**
+     * Add the first bytes of a file to the digest (used for resumed and segmented downloads).
+     */
+    public void updateFromFile(File file, long length) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        InputStream is = new FileInputStream(file);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file " + file.getAbsolutePath());
+                }
+                update(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    public void finish() {
+        if (md != null) {
+            checksum = CryptoUtils.toChecksumString(md.digest());
+        }
+    }
+
+    public void copyFrom(DownloadDigest digest) {
+        checksum = digest.checksum;
+    }
+
+    // Used when the file is taken from the cache
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * MD5 checksum in the same format as RemoteFile.getChecksum(), or null if the download is not complete.
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads the next files and applications of the update flow in the background
+ * while the current one is being installed.
+ * Prefetched files share the temporary location of InstallUtils.downloadFile(), so only
+ * one download per location is running at a time.
+ */
+public class DownloadPrefetcher {
+    // Bounded to avoid saturating a slow link: the installation is usually slower than the download
+    public static final int MAX_PARALLEL_DOWNLOADS = 2;
+
+    private static ExecutorService executor;
+    private static final Stager defaultStager = new Stager();
+
+    private Context context;
+    private Stager stager;
+    // Key is the temporary file path
+    private Map<String, Prefetch> downloads = new HashMap<>();
+    // Paths being downloaded in the foreground
+    private Set<String> activePaths = new HashSet<>();
+
+    private static class Prefetch {
+        String url;
+        Future<File> future;
+        DownloadDigest digest;
+        volatile boolean cancelled;
+    }
+
+    /**
+     * Background downloads into the download cache, shared by all prefetchers.
+     * The downloads and the cache lookups are package-private methods, replaced in tests.
+     */
+    static class Stager {
+        private ExecutorService executor;
+        // Temporary file paths of the files being staged
+        private final Set<String> stagingPaths = new HashSet<>();
+        // URLs which can't be revalidated from the cache, so staging them would be a waste of traffic
+        private final Set<String> uncacheableUrls = new HashSet<>();
+        // URLs staged until the next update window; they are not staged again even if evicted from the cache
+        private final Set<String> stagedUrls = new HashSet<>();
+        // Set when staging a file has evicted another staged file: the cache can't hold all pending updates
+        private boolean stagingBudgetReached;
+
+        File download(Context context, String url) throws Exception {
+            return InstallUtils.downloadFile(context, url, new InstallUtils.DownloadProgress() {
+                @Override
+                public void onDownloadProgress(int progress, long total, long current) {
+                }
+            });
+        }
+
+        boolean isCached(Context context, String url) {
+            return DownloadCache.getEntry(context, url) != null;
+        }
+
+        synchronized void execute(Runnable task) {
+            if (executor == null) {
+                ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(1, 1,
+                        30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+                threadPoolExecutor.allowCoreThreadTimeOut(true);
+                executor = threadPoolExecutor;
+            }
+            executor.execute(task);
+        }
+
+        void stage(Context context, final String url) {
+            final Context appContext = context.getApplicationContext();
+            final String path = InstallUtils.getAppTempPath(appContext, url);
+            synchronized (stagingPaths) {
+                if (!canStage(path, url)) {
+                    return;
+                }
+            }
+            // Looked up without the lock: a foreground download of another file may be waiting for it
+            if (new File(path).exists() || isCached(appContext, url)) {
+                return;
+            }
+            synchronized (stagingPaths) {
+                // The same file may have been staged meanwhile
+                if (!canStage(path, url)) {
+                    return;
+                }
+                stagingPaths.add(path);
+            }
+            Log.d(Const.LOG_TAG, "Staging " + url);
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        File file = download(appContext, url);
+                        // The download cache keeps its own copy
+                        file.delete();
+                        synchronized (stagingPaths) {
+                            stagedUrls.add(url);
+                        }
+                        if (!isCached(appContext, url)) {
+                            synchronized (stagingPaths) {
+                                uncacheableUrls.add(url);
+                            }
+                            Log.w(Const.LOG_TAG, "Staged file is not cached, the server sent no validators: " + url);
+                        }
+                        checkStagingBudget(appContext);
+                    } catch (Exception e) {
+                        Log.w(Const.LOG_TAG, "Failed to stage " + url + ": " + e.getMessage());
+                    } finally {
+                        synchronized (stagingPaths) {
+                            stagingPaths.remove(path);
+                            stagingPaths.notifyAll();
+                        }
+                    }
+                }
+            });
+        }
+
+        // Must be called with the stagingPaths lock
+        private boolean canStage(String path, String url) {
+            return !stagingBudgetReached && !stagingPaths.contains(path) && !stagedUrls.contains(url) &&
+                    !uncacheableUrls.contains(url);
+        }
+
+        // Stop staging if the cache has evicted a staged file: further files would only replace each other
+        private void checkStagingBudget(Context context) {
+            Set<String> urls;
+            synchronized (stagingPaths) {
+                urls = new HashSet<>(stagedUrls);
+                urls.removeAll(uncacheableUrls);
+            }
+            for (String url : urls) {
+                if (!isCached(context, url)) {
+                    Log.w(Const.LOG_TAG, "Download cache is full, staging stopped until the update window");
+                    synchronized (stagingPaths) {
+                        stagingBudgetReached = true;
+                    }
+                    return;
+                }
+            }
+        }
+
+        void reset() {
+            synchronized (stagingPaths) {
+                stagedUrls.clear();
+                stagingBudgetReached = false;
+            }
+        }
+
+        boolean isStaging(String path) {
+            synchronized (stagingPaths) {
+                return stagingPaths.contains(path);
+            }
+        }
+
+        void waitForStaging(String path) throws InterruptedException {
+            synchronized (stagingPaths) {
+                while (stagingPaths.contains(path)) {
+                    stagingPaths.wait();
+                }
+            }
+        }
+    }
+
+    public DownloadPrefetcher(Context context) {
+        this(context, defaultStager);
+    }
+
+    DownloadPrefetcher(Context context, Stager stager) {
+        this.context = context.getApplicationContext();
+        this.stager = stager;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(MAX_PARALLEL_DOWNLOADS, MAX_PARALLEL_DOWNLOADS,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            threadPoolExecutor.allowCoreThreadTimeOut(true);
+            executor = threadPoolExecutor;
+        }
+        return executor;
+    }
+
+    /**
+     * Download the URL into the download cache in the background, one file at a time.
+     * Used to get the files before they can be installed: the update flow then only
+     * revalidates the cached file by a conditional request.
+     */
+    public static void stage(Context context, String url) {
+        defaultStager.stage(context, url);
+    }
+
+    /**
+     * Allow staging again, called when the update window starts or ends.
+     */
+    public static void resetStaging() {
+        defaultStager.reset();
+    }
+
+    /**
+     * Start downloading the URL in the background unless it is already downloaded.
+     * The checksum, if known, allows taking the file from the download cache.
+     */
+    public synchronized void prefetch(final String url, String checksum) {
+        final String path = InstallUtils.getAppTempPath(context, url);
+        if (downloads.containsKey(path) || activePaths.contains(path) || new File(path).exists() || stager.isStaging(path)) {
+            // Either the same URL is already queued, or another URL with the same file name
+            // is queued or still being installed: it will be downloaded in the foreground when it's its turn
+            return;
+        }
+        final Prefetch prefetch = new Prefetch();
+        prefetch.url = url;
+        prefetch.digest = new DownloadDigest(checksum);
+        Log.d(Const.LOG_TAG, "Prefetching " + url);
+        prefetch.future = getExecutor().submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                if (prefetch.cancelled) {
+                    return null;
+                }
+                File file = downloadFile(url, new InstallUtils.DownloadProgress() {
+                    @Override
+                    public void onDownloadProgress(int progress, long total, long current) {
+                    }
+                }, prefetch.digest);
+                if (prefetch.cancelled) {
+                    file.delete();
+                    return null;
+                }
+                return file;
+            }
+        });
+        downloads.put(path, prefetch);
+    }
+
+    /**
+     * Get the downloaded file: wait for the prefetched download if any, or download it in the calling thread.
+     * If digest is not null, it receives the checksum of the file.
+     * This method must be called from a background thread.
+     */
+    public File download(String url, InstallUtils.DownloadProgress progressHandler, DownloadDigest digest) throws Exception {
+        String path = InstallUtils.getAppTempPath(context, url);
+        // A staged download of the same file is finishing: let it complete and take the file from the cache
+        stager.waitForStaging(path);
+        Prefetch prefetch;
+        synchronized (this) {
+            prefetch = downloads.remove(path);
+            activePaths.add(path);
+        }
+        try {
+            if (prefetch != null) {
+                try {
+                    File file = prefetch.future.get();
+                    if (prefetch.url.equals(url) && file != null) {
+                        if (digest != null) {
+                            digest.copyFrom(prefetch.digest);
+                        }
+                        progressHandler.onDownloadProgress(100, file.length(), file.length());
+                        return file;
+                    }
+                } catch (ExecutionException e) {
+                    if (prefetch.url.equals(url)) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : e;
+                    }
+                }
+            }
+            return downloadFile(url, progressHandler, digest);
+        } finally {
+            synchronized (this) {
+                activePaths.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Cancel pending downloads and remove the files which have been downloaded but not used.
+     */
+    public synchronized void cancel() {
+        for (Prefetch prefetch : downloads.values()) {
+            prefetch.cancelled = true;
+            if (!prefetch.future.cancel(false) && prefetch.future.isDone()) {
+                try {
+                    File file = prefetch.future.get();
+                    if (file != null) {
+                        file.delete();
+                    }
+                } catch (Exception e) {
+                    // Failed download, nothing to remove
+                }
+            }
+        }
+        downloads.clear();
+    }
+
+    File downloadFile(String url, InstallUtils.DownloadProgress progressHandler, DownloadDigest digest) throws Exception {
+        return InstallUtils.downloadFile(context, url, progressHandler, digest);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.Application;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans the installation and removal of the configured applications.
+ * Configured apps are indexed by package, and the installed versions are taken from
+ * the package index (or requested from the package manager once per package), so the plan
+ * is built in linear time.
+ */
+public class InstallPlanner {
+    // With fewer candidates, asking for each package is cheaper than listing all installed packages
+    public static final int INSTALLED_INDEX_THRESHOLD = 32;
+
+    public static class InstalledVersion {
+        public final String versionName;
+        public final int versionCode;
+
+        public InstalledVersion(String versionName, int versionCode) {
+            this.versionName = versionName;
+            this.versionCode = versionCode;
+        }
+    }
+
+    public interface InstalledVersions {
+        // Returns null if the package is not installed
+        InstalledVersion get(String packageName);
+    }
+
+    private Context context;
+    private InstalledVersions installedVersions;
+
+    public InstallPlanner(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * If installedVersions is null, they are taken from the package manager.
+     */
+    public InstallPlanner(Context context, InstalledVersions installedVersions) {
+        this.context = context;
+        this.installedVersions = installedVersions;
+    }
+
+    /**
+     * Returns the immutable list of apps to remove and install: the current list is kept (it may
+     * contain apps from an earlier update), then the configured removals, then the configured installs.
+     * Apps which don't require any action are excluded.
+     */
+    public List<Application> plan(List<Application> applications, List<Application> current,
+                                  Map<String, File> pendingInstallations) {
+        Set<String> keys = new HashSet<>();
+        List<Application> candidates = new ArrayList<>(current.size() + applications.size());
+        for (Application a : current) {
+            keys.add(getKey(a));
+            candidates.add(a);
+        }
+
+        // First handle apps to be removed, then apps to be installed
+        // We process only applications of type "app" (default) and skip web links and others
+        List<Application> installs = new ArrayList<>();
+        // Lower case package name to the versions to be removed, used to check downgrades
+        Map<String, List<Application>> removals = new HashMap<>();
+        for (Application a : applications) {
+            if (a.isRemove()) {
+                String pkg = a.getPkg().toLowerCase(Locale.ROOT);
+                List<Application> list = removals.get(pkg);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    removals.put(pkg, list);
+                }
+                list.add(a);
+            }
+            if (a.getType() != null && !a.getType().equals(Application.TYPE_APP)) {
+                continue;
+            }
+            if (a.isRemove()) {
+                if (keys.add(getKey(a))) {
+                    Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): marking app " + a.getPkg() + " to remove");
+                    candidates.add(a);
+                }
+            } else if (!pendingInstallations.containsKey(a.getPkg()) && keys.add(getKey(a))) {
+                Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): marking app " + a.getPkg() + " to install");
+                installs.add(a);
+            }
+        }
+        candidates.addAll(installs);
+
+        InstalledVersions installed = installedVersions != null ? installedVersions :
+                getInstalledVersions(context, candidates.size());
+        List<Application> plan = new ArrayList<>(candidates.size());
+        for (Application application : candidates) {
+            if (isActionRequired(application, installed.get(application.getPkg()), removals)) {
+                plan.add(application);
+            }
+        }
+        return Collections.unmodifiableList(plan);
+    }
+
+    private boolean isActionRequired(Application application, InstalledVersion installed,
+                                     Map<String, List<Application>> removals) {
+        if ((application.getUrl() == null || application.getUrl().trim().equals("")) && !application.isRemove()) {
+            // An app without URL is a system app which doesn't require installation
+            Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): app " + application.getPkg() + " is system, skipping");
+            return false;
+        }
+
+        if (installed == null) {
+            // The app isn't installed, let's keep it in the "To be installed" list
+            if (application.isRemove()) {
+                // The app requires removal but already removed, remove from the list so do nothing with the app
+                Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): app " + application.getPkg() + " not found, nothing to remove");
+                return false;
+            }
+            return true;
+        }
+
+        if (application.isRemove() && !application.getVersion().equals("0") &&
+                !InstallUtils.areVersionsEqual(installed.versionName, installed.versionCode, application.getVersion(), application.getCode())) {
+            // If a removal is required, but the app version doesn't match, do not remove
+            Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): app " + application.getPkg() + " version not match: "
+                    + application.getVersion() + " " + installed.versionName + ", skipping");
+            return false;
+        }
+
+        if (!application.isRemove() && !upgradingHmdmFreeToFull(application) &&
+                (application.isSkipVersion() || application.getVersion().equals("0") ||
+                        InstallUtils.areVersionsEqual(installed.versionName, installed.versionCode, application.getVersion(), application.getCode()))) {
+            // If installation is required, but the app of the same version already installed, do not install
+            Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): app " + application.getPkg() + " versions match: "
+                    + application.getVersion() + " " + installed.versionName + ", skipping");
+            return false;
+        }
+
+        if (!application.isRemove() &&
+                InstallUtils.compareVersions(installed.versionName, installed.versionCode, application.getVersion(), application.getCode()) > 0) {
+            // Downgrade requested!
+            // It will only succeed if a higher version is marked as "Remove"
+            // Let's check that condition to avoid failed attempts to install and downloads of the lower version each time
+            RemoteLogger.log(context, Const.LOG_DEBUG, "Downgrade requested for " + application.getPkg() +
+                    ": installed version " + installed.versionName + ", required version " + application.getVersion());
+            boolean canDowngrade = false;
+            List<Application> packageRemovals = removals.get(application.getPkg().toLowerCase(Locale.ROOT));
+            if (packageRemovals != null) {
+                for (Application a : packageRemovals) {
+                    if (InstallUtils.areVersionsEqual(installed.versionName, installed.versionCode, a.getVersion(), a.getCode())) {
+                        // Current version will be removed
+                        canDowngrade = true;
+                        break;
+                    }
+                }
+            }
+            if (canDowngrade) {
+                RemoteLogger.log(context, Const.LOG_DEBUG, "Current version of " + application.getPkg() + " will be removed, downgrade allowed");
+            } else {
+                RemoteLogger.log(context, Const.LOG_DEBUG, "Ignoring downgrade request for " + application.getPkg() + ": remove current version first!");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Apps are considered the same if they have the same package, version and action
+    private static String getKey(Application a) {
+        return a.getPkg().toLowerCase(Locale.ROOT) + '\n' + String.valueOf(a.getVersion()).toLowerCase(Locale.ROOT) +
+                '\n' + a.isRemove();
+    }
+
+    // Free and full versions of Headwind MDM launcher have the same version name but different version codes
+    // This is a dirty hack determining the full version by the URL
+    // It's however better to use different versions, for example 5.16.1 for free and 5.16.2 for full
+    private boolean upgradingHmdmFreeToFull(Application application) {
+        if (!application.getPkg().equals(context.getPackageName())) {
+            return false;
+        }
+        return Utils.getLauncherVariant().equals("opensource") && application.getUrl().endsWith("master.apk");
+    }
+
+    private static InstalledVersions getInstalledVersions(Context context, int count) {
+        final Map<String, PackageIndex.Entry> packages = PackageIndex.getInstance(context).getPackages();
+        if (packages != null) {
+            return packageName -> {
+                PackageIndex.Entry entry = packages.get(packageName);
+                return entry != null ? new InstalledVersion(entry.getVersionName(), entry.getVersionCode()) : null;
+            };
+        }
+        // The package index is not ready yet
+        final PackageManager packageManager = context.getPackageManager();
+        if (count >= INSTALLED_INDEX_THRESHOLD) {
+            try {
+                // One request for all packages
+                final Map<String, InstalledVersion> index = new HashMap<>();
+                for (PackageInfo packageInfo : packageManager.getInstalledPackages(0)) {
+                    index.put(packageInfo.packageName, new InstalledVersion(packageInfo.versionName, packageInfo.versionCode));
+                }
+                return index::get;
+            } catch (Exception e) {
+                // The list may be too large for a binder transaction on old Android versions
+                e.printStackTrace();
+            }
+        }
+        // One request per package, a package may be both removed and installed
+        final Map<String, InstalledVersion> cache = new HashMap<>();
+        return packageName -> {
+            if (cache.containsKey(packageName)) {
+                return cache.get(packageName);
+            }
+            InstalledVersion installedVersion = null;
+            try {
+                PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
+                installedVersion = new InstalledVersion(packageInfo.versionName, packageInfo.versionCode);
+            } catch (PackageManager.NameNotFoundException e) {
+                // Not installed
+            }
+            cache.put(packageName, installedVersion);
+            return installedVersion;
+        };
+    }
+}
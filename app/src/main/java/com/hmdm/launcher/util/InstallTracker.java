@@ -0,0 +1,230 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the pending silent installations: each package gets a completion future
+ * which is resolved by the install completion broadcast, so waiting threads wake up
+ * as soon as the installation completes.
+ * Install latencies and timeouts are collected per package for the process lifetime.
+ */
+public class InstallTracker {
+
+    public static class InstallFuture {
+        private String packageName;
+        private File file;
+        private long startTime;
+        private long latency;
+        private CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean success;
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * Time from the start to the completion of the installation, in milliseconds.
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+        /**
+         * Wait for the installation to complete, returns false on timeout.
+         */
+        public boolean await(long timeout) throws InterruptedException {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static class InstallStats {
+        private int installs;
+        private int failures;
+        private int timeouts;
+        private long lastLatency;
+        private long totalLatency;
+
+        public int getInstalls() {
+            return installs;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public int getTimeouts() {
+            return timeouts;
+        }
+
+        public long getLastLatency() {
+            return lastLatency;
+        }
+
+        public long getAverageLatency() {
+            return installs + failures > 0 ? totalLatency / (installs + failures) : 0;
+        }
+    }
+
+    private static final Map<String, InstallStats> stats = new HashMap<>();
+
+    private Map<String, InstallFuture> pending = new HashMap<>();
+
+    /**
+     * Register the installation of the package, the file is deleted when it's complete.
+     */
+    public synchronized InstallFuture start(String packageName, File file) {
+        InstallFuture future = new InstallFuture();
+        future.packageName = packageName;
+        future.file = file;
+        future.startTime = now();
+        InstallFuture previous = pending.put(packageName, future);
+        if (previous != null) {
+            // Superseded by the new installation
+            previous.latch.countDown();
+        }
+        return future;
+    }
+
+    /**
+     * Resolve the future of the package. Returns the completed installation,
+     * or null if the package was not pending.
+     */
+    public InstallFuture complete(String packageName, boolean success) {
+        InstallFuture future;
+        synchronized (this) {
+            future = pending.remove(packageName);
+        }
+        if (future == null) {
+            return null;
+        }
+        long latency = now() - future.startTime;
+        synchronized (stats) {
+            InstallStats packageStats = getOrCreateStats(packageName);
+            if (success) {
+                packageStats.installs++;
+            } else {
+                packageStats.failures++;
+            }
+            packageStats.lastLatency = latency;
+            packageStats.totalLatency += latency;
+        }
+        future.latency = latency;
+        future.success = success;
+        future.latch.countDown();
+        return future;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Get the pending packages and their files.
+     */
+    public synchronized Map<String, File> getPendingFiles() {
+        Map<String, File> files = new HashMap<>();
+        for (InstallFuture future : pending.values()) {
+            files.put(future.packageName, future.file);
+        }
+        return files;
+    }
+
+    /**
+     * Wait until all pending installations complete or the timeout expires.
+     * Returns the packages whose installation has timed out; they are still pending.
+     */
+    public List<String> awaitAll(long timeout) throws InterruptedException {
+        List<InstallFuture> futures;
+        synchronized (this) {
+            futures = new ArrayList<>(pending.values());
+        }
+        long deadline = now() + timeout;
+        List<String> timedOut = new ArrayList<>();
+        for (InstallFuture future : futures) {
+            long remaining = deadline - now();
+            if (!future.await(Math.max(remaining, 0))) {
+                timedOut.add(future.packageName);
+            }
+        }
+        if (!timedOut.isEmpty()) {
+            synchronized (stats) {
+                for (String packageName : timedOut) {
+                    getOrCreateStats(packageName).timeouts++;
+                }
+            }
+        }
+        return timedOut;
+    }
+
+    /**
+     * Get a copy of the install statistics of the package, or null if it was not installed yet.
+     */
+    public static InstallStats getStats(String packageName) {
+        synchronized (stats) {
+            InstallStats packageStats = stats.get(packageName);
+            if (packageStats == null) {
+                return null;
+            }
+            InstallStats copy = new InstallStats();
+            copy.installs = packageStats.installs;
+            copy.failures = packageStats.failures;
+            copy.timeouts = packageStats.timeouts;
+            copy.lastLatency = packageStats.lastLatency;
+            copy.totalLatency = packageStats.totalLatency;
+            return copy;
+        }
+    }
+
+    // Overridden by the unit tests
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private static InstallStats getOrCreateStats(String packageName) {
+        InstallStats packageStats = stats.get(packageName);
+        if (packageStats == null) {
+            packageStats = new InstallStats();
+            stats.put(packageName, packageStats);
+        }
+        return packageStats;
+    }
+}
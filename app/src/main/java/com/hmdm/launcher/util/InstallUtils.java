@@ -24,9 +24,8 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageInstaller;
-import android.content.pm.PackageManager;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
@@ -36,24 +35,25 @@ import androidx.core.content.FileProvider;
 
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.CacheTable;
 import com.hmdm.launcher.db.DatabaseHelper;
+import com.hmdm.launcher.db.DownloadTable;
 import com.hmdm.launcher.db.RemoteFileTable;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.json.Download;
 import com.hmdm.launcher.json.RemoteFile;
+import com.hmdm.launcher.server.ServerServiceKeeper;
 
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.RandomAccessFile;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -64,120 +64,20 @@ import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import okhttp3.Request;
+import okhttp3.Response;
+
 public class InstallUtils {
 
     public static void generateApplicationsForInstallList(Context context, List<Application> applications,
                                                           List<Application> applicationsForInstall,
                                                           Map<String, File> pendingInstallations) {
-        PackageManager packageManager = context.getPackageManager();
-
-        // First handle apps to be removed, then apps to be installed
-        // We process only applications of type "app" (default) and skip web links and others
-        for (Application a : applications) {
-            if ((a.getType() == null || a.getType().equals(Application.TYPE_APP)) && a.isRemove() &&
-                !isInList(applicationsForInstall, a)) {
-                Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): marking app " + a.getPkg() + " to remove");
-                applicationsForInstall.add(a);
-            }
-        }
-        for (Application a : applications) {
-            if ((a.getType() == null || a.getType().equals(Application.TYPE_APP)) && !a.isRemove() &&
-                    !pendingInstallations.containsKey(a.getPkg()) && !isInList(applicationsForInstall, a)) {
-                Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): marking app " + a.getPkg() + " to install");
-                applicationsForInstall.add(a);
-            }
-        }
-        Iterator< Application > it = applicationsForInstall.iterator();
-
-        while ( it.hasNext() ) {
-            Application application = it.next();
-            if ( (application.getUrl() == null || application.getUrl().trim().equals("")) && !application.isRemove() ) {
-                // An app without URL is a system app which doesn't require installation
-                Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): app " + application.getPkg() + " is system, skipping");
-                it.remove();
-                continue;
-            }
-
-            try {
-                PackageInfo packageInfo = packageManager.getPackageInfo( application.getPkg(), 0 );
-
-                if (application.isRemove() && !application.getVersion().equals("0") &&
-                        !areVersionsEqual(packageInfo.versionName, packageInfo.versionCode, application.getVersion(), application.getCode())) {
-                    // If a removal is required, but the app version doesn't match, do not remove
-                    Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): app " + application.getPkg() + " version not match: "
-                            + application.getVersion() + " " + packageInfo.versionName + ", skipping");
-                    it.remove();
-                    continue;
-                }
-
-                if (!application.isRemove() && !upgradingHmdmFreeToFull(context, application, packageInfo) &&
-                        (application.isSkipVersion() || application.getVersion().equals("0") ||
-                                areVersionsEqual(packageInfo.versionName, packageInfo.versionCode, application.getVersion(), application.getCode()))) {
-                    // If installation is required, but the app of the same version already installed, do not install
-                    Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): app " + application.getPkg() + " versions match: "
-                            + application.getVersion() + " " + packageInfo.versionName + ", skipping");
-                    it.remove();
-                    continue;
-                }
-
-                if (!application.isRemove() &&
-                        compareVersions(packageInfo.versionName, packageInfo.versionCode, application.getVersion(), application.getCode()) > 0) {
-                    // Downgrade requested!
-                    // It will only succeed if a higher version is marked as "Remove"
-                    // Let's check that condition to avoid failed attempts to install and downloads of the lower version each time
-                    RemoteLogger.log(context, Const.LOG_DEBUG, "Downgrade requested for " + application.getPkg() +
-                            ": installed version " + packageInfo.versionName + ", required version " + application.getVersion());
-                    boolean canDowngrade = false;
-                    for (Application a : applications) {
-                        if (a.getPkg().equalsIgnoreCase(application.getPkg()) && a.isRemove() &&
-                                areVersionsEqual(packageInfo.versionName, packageInfo.versionCode, a.getVersion(), a.getCode())) {
-                            // Current version will be removed
-                            canDowngrade = true;
-                            break;
-                        }
-                    }
-                    if (canDowngrade) {
-                        RemoteLogger.log(context, Const.LOG_DEBUG, "Current version of " + application.getPkg() + " will be removed, downgrade allowed");
-                    } else {
-                        RemoteLogger.log(context, Const.LOG_DEBUG, "Ignoring downgrade request for " + application.getPkg() + ": remove current version first!");
-                        it.remove();
-                        continue;
-                    }
-                }
-            } catch ( PackageManager.NameNotFoundException e ) {
-                // The app isn't installed, let's keep it in the "To be installed" list
-                if (application.isRemove()) {
-                    // The app requires removal but already removed, remove from the list so do nothing with the app
-                    Log.d(Const.LOG_TAG, "checkAndUpdateApplications(): app " + application.getPkg() + " not found, nothing to remove");
-                    it.remove();
-                    continue;
-                }
-            }
-        }
+        List<Application> plan = new InstallPlanner(context).plan(applications, applicationsForInstall, pendingInstallations);
+        applicationsForInstall.clear();
+        applicationsForInstall.addAll(plan);
     }
 
-    private static boolean isInList(List<Application> applicationsForInstall, Application a) {
-        for (Application b : applicationsForInstall) {
-            if (a.getPkg().equalsIgnoreCase(b.getPkg()) &&
-                    a.getVersion().equalsIgnoreCase(b.getVersion()) &&
-                    a.isRemove() == b.isRemove()) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    // Free and full versions of Headwind MDM launcher have the same version name but different version codes
-    // This is a dirty hack determining the full version by the URL
-    // It's however better to use different versions, for example 5.16.1 for free and 5.16.2 for full
-    private static boolean upgradingHmdmFreeToFull(Context context, Application application, PackageInfo packageInfo) {
-        if (!application.getPkg().equals(context.getPackageName())) {
-            return false;
-        }
-        return Utils.getLauncherVariant().equals("opensource") && application.getUrl().endsWith("master.apk");
-    }
-
-    private static boolean areVersionsEqual(String v1, int c1, String v2, Integer c2) {
+    static boolean areVersionsEqual(String v1, int c1, String v2, Integer c2) {
         if (c2 != null && c2 != 0) {
             // If version code is present, let's compare version codes instead of names
             return c1 == c2;
@@ -189,9 +89,7 @@ public class InstallUtils {
         }
 
         // Compare only digits (in Android 9 EMUI on Huawei Honor 8A, getPackageInfo doesn't get letters!)
-        String v1d = v1.replaceAll("[^\\d.]", "");
-        String v2d = v2.replaceAll("[^\\d.]", "");
-        return v1d.equals(v2d);
+        return ParsedVersion.of(v1).isSame(ParsedVersion.of(v2));
     }
 
     // Returns -1 if v1 < v2, 0 if v1 == v2 and 1 if v1 > v2
@@ -218,38 +116,7 @@ public class InstallUtils {
             return 1;
         }
         // Versions are numbers separated by a dot
-        String v1d = v1.replaceAll("[^\\d.]", "");
-        String v2d = v2.replaceAll("[^\\d.]", "");
-
-        String[] v1n = v1d.split("\\.");
-        String[] v2n = v2d.split("\\.");
-
-        // One version could contain more digits than another
-        int count = v1n.length < v2n.length ? v1n.length : v2n.length;
-
-        for (int n = 0; n < count; n++) {
-            try {
-                int n1 = Integer.parseInt(v1n[n]);
-                int n2 = Integer.parseInt(v2n[n]);
-                if (n1 < n2) {
-                    return -1;
-                } else if (n1 > n2) {
-                    return 1;
-                }
-                // If major version numbers are equals, continue to compare minor version numbers
-            } catch (Exception e) {
-                return 0;
-            }
-        }
-
-        // Here we are if common parts are equal
-        // Now we decide that if a version has more parts, it is considered as greater
-        if (v1n.length < v2n.length) {
-            return -1;
-        } else if (v1n.length > v2n.length) {
-            return 1;
-        }
-        return 0;
+        return ParsedVersion.of(v1).compareTo(ParsedVersion.of(v2));
     }
 
     public static void generateFilesForInstallList(Context context, List<RemoteFile> files,
@@ -301,76 +168,234 @@ public class InstallUtils {
         return tempFile.getAbsolutePath();
     }
 
+    // Partially downloaded files are kept with this suffix, so the download could be resumed later
+    public static final String PART_SUFFIX = ".part";
+    // The offset of a partially downloaded file is saved in the database after each chunk of this size
+    private static final long PART_SAVE_INTERVAL = 1024 * 1024;
+
     public static File downloadFile(Context context, String strUrl, DownloadProgress progressHandler ) throws Exception {
+        return downloadFile(context, strUrl, progressHandler, null);
+    }
+
+    /**
+     * Download a file, and if digest is not null, calculate its checksum while downloading.
+     * The file is taken from the download cache if possible.
+     */
+    public static File downloadFile(Context context, String strUrl, DownloadProgress progressHandler, DownloadDigest digest) throws Exception {
         File tempFile = new File(context.getExternalFilesDir(null), getFileName(strUrl));
         if (tempFile.exists()) {
             tempFile.delete();
         }
 
-        try {
-            try {
-                tempFile.createNewFile();
-            } catch (Exception e) {
-                e.printStackTrace();
+        // The checksum is required to save the file in the cache
+        DownloadDigest hash = digest != null ? digest : new DownloadDigest();
+        if (hash.getExpectedChecksum() != null && DownloadCache.restore(context, hash.getExpectedChecksum(), tempFile)) {
+            hash.setChecksum(hash.getExpectedChecksum());
+            progressHandler.onDownloadProgress(100, tempFile.length(), tempFile.length());
+            return tempFile;
+        }
 
-                tempFile = File.createTempFile(getFileName(strUrl), "temp");
+        // The file is downloaded to a .part file which is renamed when the download is complete
+        // If the download fails, the offset and the validators are saved in the database
+        // and the next attempt requests only the remaining bytes
+        File partFile = new File(tempFile.getAbsolutePath() + PART_SUFFIX);
+        boolean resumable = true;
+        try {
+            if (!partFile.exists()) {
+                partFile.createNewFile();
             }
+        } catch (Exception e) {
+            e.printStackTrace();
 
-            URL url = new URL(strUrl);
+            tempFile = File.createTempFile(getFileName(strUrl), "temp");
+            partFile = tempFile;
+            resumable = false;
+        }
 
-            HttpURLConnection connection;
-            if (BuildConfig.TRUST_ANY_CERTIFICATE && url.getProtocol().toLowerCase().equals("https")) {
-                connection = (HttpsURLConnection) url.openConnection();
-                ((HttpsURLConnection) connection).setHostnameVerifier(DO_NOT_VERIFY);
-            } else {
-                connection = (HttpURLConnection) url.openConnection();
-            }
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Accept-Encoding", "identity");
-            connection.setConnectTimeout((int) Const.CONNECTION_TIMEOUT);
-            connection.setReadTimeout((int) Const.CONNECTION_TIMEOUT);
+        SQLiteDatabase db = DatabaseHelper.instance(context).getWritableDatabase();
+        Download partial = resumable ? DownloadTable.selectByPath(db, partFile.getAbsolutePath()) : null;
+        long offset = 0;
+        if (partial != null && strUrl.equals(partial.getUrl()) && getRangeValidator(partial) != null &&
+                partial.getPartOffset() > 0 && partFile.length() >= partial.getPartOffset()) {
+            offset = partial.getPartOffset();
+            Log.d(Const.LOG_TAG, "Resuming download of " + strUrl + " from " + offset);
+        } else {
+            partial = null;
+        }
+        // If the URL has been downloaded earlier, the server may confirm that the cached file is still valid
+        CacheTable.Entry cached = resumable && offset == 0 ? DownloadCache.getEntry(context, strUrl) : null;
+
+        long written = offset;
+        try {
+            Request.Builder requestBuilder = new Request.Builder().
+                    url(strUrl).
+                    header("Accept-Encoding", "identity");
             String signature = getRequestSignature(strUrl);
             if (signature != null) {
-                connection.setRequestProperty("X-Request-Signature", signature);
+                requestBuilder.header("X-Request-Signature", signature);
             }
-            connection.connect();
-
-            if (connection.getResponseCode() != 200) {
-                throw new Exception("Bad server response for " + strUrl + ": " + connection.getResponseCode());
+            if (offset > 0) {
+                // If the file has been changed on the server, it is returned in full (200 instead of 206)
+                requestBuilder.header("Range", "bytes=" + offset + "-");
+                requestBuilder.header("If-Range", getRangeValidator(partial));
+            } else if (cached != null) {
+                if (cached.getEtag() != null) {
+                    requestBuilder.header("If-None-Match", cached.getEtag());
+                }
+                if (cached.getLastModified() != null) {
+                    requestBuilder.header("If-Modified-Since", cached.getLastModified());
+                }
             }
+            // The shared client reuses connections to the server across downloads
+            Response response = ServerServiceKeeper.getHttpClient().newCall(requestBuilder.build()).execute();
 
-            int lengthOfFile = connection.getContentLength();
+            try {
+                if (offset > 0 && response.code() == 416) {
+                    // The saved part doesn't match the file on the server, it will be downloaded from scratch
+                    throw new RestartDownloadException();
+                }
+                if (cached != null && response.code() == 304) {
+                    if (!DownloadCache.restore(context, cached.getChecksum(), tempFile)) {
+                        // Evicted meanwhile, download without the cache
+                        DownloadCache.remove(context, strUrl);
+                        throw new RestartDownloadException();
+                    }
+                    partFile.delete();
+                    hash.setChecksum(cached.getChecksum());
+                    progressHandler.onDownloadProgress(100, tempFile.length(), tempFile.length());
+                    return tempFile;
+                }
+                if (offset > 0 && response.code() == 206) {
+                    if (!isExpectedRange(response.header("Content-Range"), offset)) {
+                        throw new RestartDownloadException();
+                    }
+                    hash.reset();
+                    hash.updateFromFile(partFile, offset);
+                } else if (response.code() == 200) {
+                    offset = 0;
+                    written = 0;
+                    partial = new Download();
+                    partial.setUrl(strUrl);
+                    partial.setPath(partFile.getAbsolutePath());
+                    partial.setEtag(response.header("ETag"));
+                    partial.setLastModified(response.header("Last-Modified"));
+                    hash.reset();
+                } else {
+                    throw new Exception("Bad server response for " + strUrl + ": " + response.code());
+                }
 
-            progressHandler.onDownloadProgress(0, lengthOfFile, 0);
+                long contentLength = response.body().contentLength();
+                long lengthOfFile = contentLength >= 0 ? offset + contentLength : contentLength;
 
-            InputStream is = connection.getInputStream();
-            DataInputStream dis = new DataInputStream(is);
-
-            byte[] buffer = new byte[1024];
-            int length;
-            long total = 0;
-
-            FileOutputStream fos = new FileOutputStream(tempFile);
-            while ((length = dis.read(buffer)) > 0) {
-                total += length;
-                progressHandler.onDownloadProgress(
-                        (int) ((total * 100.0f) / lengthOfFile),
-                        lengthOfFile,
-                        total);
-                fos.write(buffer, 0, length);
-            }
-            fos.flush();
-            fos.close();
+                progressHandler.onDownloadProgress((int) ((offset * 100.0f) / lengthOfFile), lengthOfFile, offset);
 
-            dis.close();
+                if (offset > 0 && partFile.length() > offset) {
+                    // Drop the bytes which were written after the offset has been saved
+                    RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+                    raf.setLength(offset);
+                    raf.close();
+                }
+
+                String validator = getRangeValidator(partial);
+                if (resumable && offset == 0 && SegmentedDownloader.isSupported(response, validator)) {
+                    // Large file: download it over several connections
+                    SegmentedDownloader downloader = new SegmentedDownloader(response.request(), validator, partFile, contentLength);
+                    try {
+                        downloader.download(response, progressHandler);
+                    } finally {
+                        written = downloader.getContiguousLength();
+                    }
+                    // Segments are not downloaded in order, so the checksum is calculated afterwards
+                    hash.updateFromFile(partFile, contentLength);
+                } else {
+                    InputStream is = response.body().byteStream();
+                    byte[] buffer = new byte[16 * 1024];
+                    int length;
+                    long savedOffset = offset;
+
+                    FileOutputStream fos = new FileOutputStream(partFile, offset > 0);
+                    try {
+                        while ((length = is.read(buffer)) > 0) {
+                            fos.write(buffer, 0, length);
+                            hash.update(buffer, 0, length);
+                            written += length;
+                            progressHandler.onDownloadProgress(
+                                    (int) ((written * 100.0f) / lengthOfFile),
+                                    lengthOfFile,
+                                    written);
+                            if (resumable && written - savedOffset >= PART_SAVE_INTERVAL) {
+                                fos.flush();
+                                savePartialDownload(db, partial, written);
+                                savedOffset = written;
+                            }
+                        }
+                        fos.flush();
+                    } finally {
+                        fos.close();
+                    }
+                }
+            } finally {
+                response.close();
+            }
+        } catch (RestartDownloadException e) {
+            Log.d(Const.LOG_TAG, "Restarting download of " + strUrl);
+            partFile.delete();
+            DownloadTable.deleteByPath(db, partFile.getAbsolutePath());
+            return downloadFile(context, strUrl, progressHandler, digest);
         } catch (Exception e) {
-            tempFile.delete();
+            if (resumable && partial != null && written > 0 && getRangeValidator(partial) != null) {
+                // Keep the part to resume the download on the next attempt
+                savePartialDownload(db, partial, written);
+            } else {
+                partFile.delete();
+                if (resumable) {
+                    DownloadTable.deleteByPath(db, partFile.getAbsolutePath());
+                }
+            }
             throw e;
         }
 
+        if (resumable) {
+            if (!partFile.renameTo(tempFile)) {
+                partFile.delete();
+                DownloadTable.deleteByPath(db, partFile.getAbsolutePath());
+                throw new Exception("Failed to rename " + partFile.getAbsolutePath());
+            }
+            DownloadTable.deleteByPath(db, partFile.getAbsolutePath());
+        }
+        hash.finish();
+        if (resumable) {
+            DownloadCache.put(context, tempFile, hash.getChecksum(), strUrl, partial.getEtag(), partial.getLastModified());
+        }
         return tempFile;
     }
 
+    // Thrown when the saved part or the cached file can't be used, so the file is downloaded from scratch
+    private static class RestartDownloadException extends Exception {
+    }
+
+    private static void savePartialDownload(SQLiteDatabase db, Download partial, long offset) {
+        if (getRangeValidator(partial) == null) {
+            // The server doesn't provide validators, so the download can't be safely resumed
+            return;
+        }
+        partial.setPartOffset(offset);
+        DownloadTable.insert(db, partial);
+    }
+
+    // Weak ETags can't be used in If-Range
+    private static String getRangeValidator(Download partial) {
+        if (partial.getEtag() != null && !partial.getEtag().startsWith("W/")) {
+            return partial.getEtag();
+        }
+        return partial.getLastModified();
+    }
+
+    // Content-Range: bytes 1000-1999/2000
+    private static boolean isExpectedRange(String contentRange, long offset) {
+        return contentRange != null && contentRange.trim().startsWith("bytes " + offset + "-");
+    }
+
     public static String getRequestSignature(String strUrl) {
         int index = strUrl.indexOf("/files/", 0);
         if (index == -1) {
@@ -401,8 +426,7 @@ public class InstallUtils {
         }
 
         if (file.getName().endsWith(".xapk")) {
-            List<File> files = XapkUtils.extract(context, file);
-            XapkUtils.install(context, files, packageName, errorHandler);
+            XapkUtils.install(context, file, packageName, errorHandler);
             return;
         }
 
@@ -436,6 +460,82 @@ public class InstallUtils {
         }
     }
 
+    // Streaming install is possible only for regular APK files in the device owner mode
+    public static boolean canStreamInstall(Context context, String strUrl) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                (Utils.isDeviceOwner(context) || BuildConfig.SYSTEM_PRIVILEGES) &&
+                !strUrl.endsWith(".xapk");
+    }
+
+    /**
+     * Download the APK directly into a PackageInstaller session and commit it.
+     * Unlike downloadFile() + silentInstallApplication(), the APK is not saved to a temporary file.
+     * The result of the installation is delivered by the ACTION_INSTALL_COMPLETE broadcast;
+     * an exception means that the download failed and the session has been abandoned.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static void streamInstallApplication(Context context, String strUrl, String packageName,
+                                                DownloadProgress progressHandler) throws Exception {
+        Request.Builder requestBuilder = new Request.Builder().
+                url(strUrl).
+                header("Accept-Encoding", "identity");
+        String signature = getRequestSignature(strUrl);
+        if (signature != null) {
+            requestBuilder.header("X-Request-Signature", signature);
+        }
+        Response response = ServerServiceKeeper.getHttpClient().newCall(requestBuilder.build()).execute();
+        PackageInstaller.Session session = null;
+        try {
+            if (response.code() != 200) {
+                throw new Exception("Bad server response for " + strUrl + ": " + response.code());
+            }
+            long lengthOfFile = response.body().contentLength();
+
+            Log.i(Const.LOG_TAG, "Installing " + packageName + " while downloading");
+            PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
+            PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                    PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+            params.setAppPackageName(packageName);
+            if (lengthOfFile > 0) {
+                // Lets the installer check the free space before the download
+                params.setSize(lengthOfFile);
+            }
+            int sessionId = packageInstaller.createSession(params);
+            session = packageInstaller.openSession(sessionId);
+
+            progressHandler.onDownloadProgress(0, lengthOfFile, 0);
+            InputStream in = response.body().byteStream();
+            OutputStream out = session.openWrite("COSU", 0, lengthOfFile);
+            try {
+                byte[] buffer = new byte[65536];
+                long total = 0;
+                int c;
+                while ((c = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, c);
+                    total += c;
+                    progressHandler.onDownloadProgress((int) ((total * 100.0f) / lengthOfFile), lengthOfFile, total);
+                }
+                if (lengthOfFile >= 0 && total != lengthOfFile) {
+                    throw new Exception("Incomplete download of " + strUrl + ": " + total + " of " + lengthOfFile + " bytes");
+                }
+                session.fsync(out);
+            } finally {
+                out.close();
+            }
+
+            session.commit(createIntentSender(context, sessionId, packageName));
+            Log.i(Const.LOG_TAG, "Installation session committed");
+            session.close();
+            session = null;
+        } finally {
+            response.close();
+            if (session != null) {
+                // The download failed, nothing is installed
+                session.abandon();
+            }
+        }
+    }
+
     public static IntentSender createIntentSender(Context context, int sessionId, String packageName) {
         Intent intent = new Intent(Const.ACTION_INSTALL_COMPLETE);
         if (packageName != null) {
@@ -461,7 +561,7 @@ public class InstallUtils {
 
     public static void requestInstallApplication(Context context, File file, InstallErrorHandler errorHandler) {
         if (file.getName().endsWith(".xapk")) {
-            XapkUtils.install(context, XapkUtils.extract(context, file), null, errorHandler);
+            XapkUtils.install(context, file, null, errorHandler);
             return;
         }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
@@ -569,7 +669,8 @@ public class InstallUtils {
     public static void deleteTempApk(File file) {
         try {
             if (file.getName().endsWith(".xapk")) {
-                // For XAPK, we need to remove the directory with the same name
+                // XAPK files are not unpacked any more, but earlier versions may have left
+                // the directory with the same name
                 String path = file.getAbsolutePath();
                 File directory = new File(path.substring(0, path.length() - 5));
                 if (directory.exists()) {
@@ -595,10 +696,15 @@ public class InstallUtils {
         try {
             File filesDir = context.getExternalFilesDir(null);
             for (File child : filesDir.listFiles()) {
-                if (child.getName().equalsIgnoreCase("MqttConnection")) {
+                if (child.getName().equalsIgnoreCase("MqttConnection") || child.getName().equals(DownloadCache.CACHE_DIR)) {
                     // These are names which should be kept here
                     continue;
                 }
+                if (child.getName().endsWith(PART_SUFFIX) &&
+                        DownloadTable.selectByPath(DatabaseHelper.instance(context).getReadableDatabase(), child.getAbsolutePath()) != null) {
+                    // Partially downloaded file which could be resumed
+                    continue;
+                }
                 if (child.isDirectory()) {
                     deleteRecursive(child);
                 } else {
@@ -0,0 +1,71 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.hmdm.launcher.json.ServerConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Shared Jackson codecs.
+ * Creating an ObjectMapper is expensive, and each new mapper introspects the model classes
+ * again on first use. A single mapper keeps the (de)serializers of the json package cached
+ * for the whole process lifetime. The mapper is thread safe as long as it is not reconfigured,
+ * so never change its settings after creation.
+ */
+public class JsonCodecs {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectReader serverConfigReader = mapper.readerFor(ServerConfig.class);
+    private static final ObjectWriter serverConfigWriter = mapper.writerFor(ServerConfig.class);
+    private static final ObjectWriter serverConfigStreamWriter = serverConfigWriter.without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    public static ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    public static ServerConfig readServerConfig(String json) throws IOException {
+        return serverConfigReader.readValue(json);
+    }
+
+    public static ServerConfig readServerConfig(JsonParser parser) throws IOException {
+        return serverConfigReader.readValue(parser);
+    }
+
+    public static ServerConfig readServerConfig(InputStream inputStream) throws IOException {
+        return serverConfigReader.readValue(inputStream);
+    }
+
+    public static String writeServerConfig(ServerConfig config) throws IOException {
+        return serverConfigWriter.writeValueAsString(config);
+    }
+
+    // The stream is not closed so the caller can finish writing
+    public static void writeServerConfig(OutputStream outputStream, ServerConfig config) throws IOException {
+        serverConfigStreamWriter.writeValue(outputStream, config);
+    }
+}
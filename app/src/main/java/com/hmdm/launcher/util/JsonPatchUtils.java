@@ -0,0 +1,172 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * JSON Merge Patch (RFC 7386) and JSON Patch (RFC 6902) applied to Jackson trees.
+ * Both methods modify the target tree in place and return the resulting root.
+ * Any inconsistency between the patch and the target throws IllegalArgumentException.
+ */
+public class JsonPatchUtils {
+
+    public static JsonNode applyMergePatch(JsonNode target, JsonNode patch) {
+        if (patch == null || !patch.isObject()) {
+            return patch;
+        }
+        ObjectNode result = target != null && target.isObject() ?
+                (ObjectNode) target : JsonNodeFactory.instance.objectNode();
+        Iterator<Map.Entry<String, JsonNode>> it = patch.fields();
+        while (it.hasNext()) {
+            Map.Entry<String, JsonNode> field = it.next();
+            if (field.getValue().isNull()) {
+                result.remove(field.getKey());
+            } else {
+                result.set(field.getKey(), applyMergePatch(result.get(field.getKey()), field.getValue()));
+            }
+        }
+        return result;
+    }
+
+    public static JsonNode applyJsonPatch(JsonNode target, JsonNode patch) {
+        if (patch == null || !patch.isArray()) {
+            throw new IllegalArgumentException("JSON Patch must be an array");
+        }
+        JsonNode result = target;
+        for (JsonNode operation : patch) {
+            String op = operation.path("op").asText();
+            JsonPointer path = JsonPointer.compile(operation.path("path").asText());
+            switch (op) {
+                case "add":
+                    result = add(result, path, requireValue(operation));
+                    break;
+                case "remove":
+                    remove(result, path);
+                    break;
+                case "replace":
+                    if (path.matches()) {
+                        // The root always exists and can't be removed
+                        result = requireValue(operation);
+                        break;
+                    }
+                    remove(result, path);
+                    result = add(result, path, requireValue(operation));
+                    break;
+                case "move": {
+                    JsonPointer from = JsonPointer.compile(operation.path("from").asText());
+                    JsonNode value = remove(result, from);
+                    result = add(result, path, value);
+                    break;
+                }
+                case "copy": {
+                    JsonPointer from = JsonPointer.compile(operation.path("from").asText());
+                    result = add(result, path, get(result, from).deepCopy());
+                    break;
+                }
+                case "test":
+                    if (!get(result, path).equals(requireValue(operation))) {
+                        throw new IllegalArgumentException("Test failed: " + path);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported operation: " + op);
+            }
+        }
+        return result;
+    }
+
+    private static JsonNode requireValue(JsonNode operation) {
+        JsonNode value = operation.get("value");
+        if (value == null) {
+            throw new IllegalArgumentException("Missing value in " + operation);
+        }
+        return value;
+    }
+
+    private static JsonNode get(JsonNode root, JsonPointer path) {
+        JsonNode node = root.at(path);
+        if (node.isMissingNode()) {
+            throw new IllegalArgumentException("Path not found: " + path);
+        }
+        return node;
+    }
+
+    private static JsonNode add(JsonNode root, JsonPointer path, JsonNode value) {
+        if (path.matches()) {
+            // Empty pointer replaces the whole document
+            return value;
+        }
+        JsonNode parent = get(root, path.head());
+        String token = path.last().getMatchingProperty();
+        if (parent.isObject()) {
+            ((ObjectNode) parent).set(token, value);
+        } else if (parent.isArray()) {
+            ArrayNode array = (ArrayNode) parent;
+            if ("-".equals(token)) {
+                array.add(value);
+            } else {
+                int index = parseIndex(token, array.size() + 1);
+                array.insert(index, value);
+            }
+        } else {
+            throw new IllegalArgumentException("Not a container: " + path.head());
+        }
+        return root;
+    }
+
+    private static JsonNode remove(JsonNode root, JsonPointer path) {
+        if (path.matches()) {
+            throw new IllegalArgumentException("Cannot remove the root node");
+        }
+        JsonNode parent = get(root, path.head());
+        String token = path.last().getMatchingProperty();
+        if (parent.isObject()) {
+            if (!parent.has(token)) {
+                throw new IllegalArgumentException("Path not found: " + path);
+            }
+            return ((ObjectNode) parent).remove(token);
+        } else if (parent.isArray()) {
+            ArrayNode array = (ArrayNode) parent;
+            return array.remove(parseIndex(token, array.size()));
+        }
+        throw new IllegalArgumentException("Not a container: " + path.head());
+    }
+
+    private static int parseIndex(String token, int bound) {
+        int index;
+        try {
+            index = Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid array index: " + token);
+        }
+        if (index < 0 || index >= bound) {
+            throw new IllegalArgumentException("Array index out of bounds: " + token);
+        }
+        return index;
+    }
+}
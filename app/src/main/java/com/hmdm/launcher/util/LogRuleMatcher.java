@@ -0,0 +1,275 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.json.RemoteLogConfig;
+import com.hmdm.launcher.json.RemoteLogItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable matcher of log items against the remote log rules, compiled once per rule change.
+ * A log item matches if there's a rule for its package with the same or higher level whose filter
+ * is empty or is contained in the message. Like in the SQL LIKE operator used earlier, filters
+ * are ASCII case insensitive, and '%' and '_' in a filter match any substring and any character.
+ * Plain filters of a package are searched at once by an Aho-Corasick automaton.
+ */
+public class LogRuleMatcher {
+
+    private static final int NO_LEVEL = Integer.MIN_VALUE;
+
+    private static class PackageRules {
+        // Highest level of the rules without a filter, if any
+        int unfilteredLevel = NO_LEVEL;
+        // Highest level of all rules
+        int maxLevel = NO_LEVEL;
+        Automaton automaton;
+        // LIKE patterns of the filters with wildcards and their levels
+        List<String> wildcardFilters = new ArrayList<>();
+        List<Integer> wildcardLevels = new ArrayList<>();
+    }
+
+    /**
+     * Deterministic automaton over the characters found in the filters.
+     * Each state holds the highest level of the filters ending in that state, including the filters
+     * which are suffixes of the matched text, so a match is found in one pass without backtracking.
+     */
+    private static class Automaton {
+        // Sorted characters of the filters, their index + 1 is the column in the transition table
+        char[] alphabet;
+        int columns;
+        int[] transitions;
+        int[] levels;
+
+        int column(char c) {
+            int n = Arrays.binarySearch(alphabet, c);
+            return n >= 0 ? n + 1 : 0;
+        }
+
+        /**
+         * Returns true if the text contains a filter with the same or higher level.
+         */
+        boolean find(String text, int level) {
+            int state = 0;
+            for (int n = 0; n < text.length(); n++) {
+                state = transitions[state * columns + column(fold(text.charAt(n)))];
+                if (levels[state] >= level) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final LogRuleMatcher EMPTY = new LogRuleMatcher(new HashMap<String, PackageRules>());
+
+    private final Map<String, PackageRules> packages;
+
+    private LogRuleMatcher(Map<String, PackageRules> packages) {
+        this.packages = packages;
+    }
+
+    public static LogRuleMatcher compile(List<RemoteLogConfig> rules) {
+        if (rules == null || rules.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, PackageRules> packages = new HashMap<>();
+        Map<String, Map<String, Integer>> plainFilters = new HashMap<>();
+        for (RemoteLogConfig rule : rules) {
+            if (rule.getPackageId() == null) {
+                continue;
+            }
+            PackageRules packageRules = packages.get(rule.getPackageId());
+            if (packageRules == null) {
+                packageRules = new PackageRules();
+                packages.put(rule.getPackageId(), packageRules);
+                plainFilters.put(rule.getPackageId(), new HashMap<String, Integer>());
+            }
+            int level = rule.getLogLevel();
+            packageRules.maxLevel = Math.max(packageRules.maxLevel, level);
+            String filter = rule.getFilter();
+            if (filter == null || filter.equals("")) {
+                packageRules.unfilteredLevel = Math.max(packageRules.unfilteredLevel, level);
+            } else if (filter.indexOf('%') >= 0 || filter.indexOf('_') >= 0) {
+                packageRules.wildcardFilters.add("%" + filter + "%");
+                packageRules.wildcardLevels.add(level);
+            } else {
+                Map<String, Integer> filters = plainFilters.get(rule.getPackageId());
+                String folded = fold(filter);
+                Integer current = filters.get(folded);
+                filters.put(folded, current != null ? Math.max(current, level) : level);
+            }
+        }
+        for (Map.Entry<String, PackageRules> entry : packages.entrySet()) {
+            Map<String, Integer> filters = plainFilters.get(entry.getKey());
+            if (!filters.isEmpty()) {
+                entry.getValue().automaton = buildAutomaton(filters);
+            }
+        }
+        return new LogRuleMatcher(packages);
+    }
+
+    public boolean match(RemoteLogItem item) {
+        PackageRules packageRules = item.getPackageId() != null ? packages.get(item.getPackageId()) : null;
+        if (packageRules == null) {
+            return false;
+        }
+        int level = item.getLogLevel();
+        if (level <= packageRules.unfilteredLevel) {
+            return true;
+        }
+        String message = item.getMessage();
+        if (level > packageRules.maxLevel || message == null) {
+            return false;
+        }
+        if (packageRules.automaton != null && packageRules.automaton.find(message, level)) {
+            return true;
+        }
+        for (int n = 0; n < packageRules.wildcardFilters.size(); n++) {
+            if (packageRules.wildcardLevels.get(n) >= level && like(message, packageRules.wildcardFilters.get(n))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Automaton buildAutomaton(Map<String, Integer> filters) {
+        StringBuilder chars = new StringBuilder();
+        for (String filter : filters.keySet()) {
+            chars.append(filter);
+        }
+        char[] all = chars.toString().toCharArray();
+        Arrays.sort(all);
+        int count = 0;
+        for (int n = 0; n < all.length; n++) {
+            if (n == 0 || all[n] != all[n - 1]) {
+                all[count++] = all[n];
+            }
+        }
+        Automaton automaton = new Automaton();
+        automaton.alphabet = Arrays.copyOf(all, count);
+        automaton.columns = count + 1;
+
+        // Trie of the filters, -1 is no transition
+        List<int[]> trie = new ArrayList<>();
+        List<Integer> levels = new ArrayList<>();
+        trie.add(newRow(automaton.columns));
+        levels.add(NO_LEVEL);
+        for (Map.Entry<String, Integer> filter : filters.entrySet()) {
+            int state = 0;
+            for (int n = 0; n < filter.getKey().length(); n++) {
+                int column = automaton.column(filter.getKey().charAt(n));
+                if (trie.get(state)[column] < 0) {
+                    trie.get(state)[column] = trie.size();
+                    trie.add(newRow(automaton.columns));
+                    levels.add(NO_LEVEL);
+                }
+                state = trie.get(state)[column];
+            }
+            levels.set(state, Math.max(levels.get(state), filter.getValue()));
+        }
+
+        // Breadth-first: failure links complete the transitions and propagate the levels
+        int states = trie.size();
+        automaton.transitions = new int[states * automaton.columns];
+        automaton.levels = new int[states];
+        int[] failure = new int[states];
+        LinkedList<Integer> queue = new LinkedList<>();
+        for (int column = 0; column < automaton.columns; column++) {
+            int next = trie.get(0)[column];
+            if (next < 0) {
+                automaton.transitions[column] = 0;
+            } else {
+                automaton.transitions[column] = next;
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+        automaton.levels[0] = levels.get(0);
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            automaton.levels[state] = Math.max(levels.get(state), automaton.levels[failure[state]]);
+            for (int column = 0; column < automaton.columns; column++) {
+                int next = trie.get(state)[column];
+                int fallback = automaton.transitions[failure[state] * automaton.columns + column];
+                if (next < 0) {
+                    automaton.transitions[state * automaton.columns + column] = fallback;
+                } else {
+                    automaton.transitions[state * automaton.columns + column] = next;
+                    failure[next] = fallback;
+                    queue.add(next);
+                }
+            }
+        }
+        return automaton;
+    }
+
+    private static int[] newRow(int columns) {
+        int[] row = new int[columns];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    // SQLite LIKE folds ASCII letters only
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int n = 0; n < chars.length; n++) {
+            chars[n] = fold(chars[n]);
+        }
+        return new String(chars);
+    }
+
+    // SQL LIKE: '%' matches any substring and '_' matches any character, backtracking to the last '%'
+    private static boolean like(String text, String pattern) {
+        int t = 0;
+        int p = 0;
+        int starPattern = -1;
+        int starText = 0;
+        while (t < text.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '%') {
+                starPattern = p++;
+                starText = t;
+            } else if (p < pattern.length() &&
+                    (pattern.charAt(p) == '_' || fold(pattern.charAt(p)) == fold(text.charAt(t)))) {
+                p++;
+                t++;
+            } else if (starPattern >= 0) {
+                p = starPattern + 1;
+                t = ++starText;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '%') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide index of the installed packages: versions, labels and launcher activities.
+ * The index is built once in a background thread and then updated by the package broadcasts,
+ * so the launcher screen, the device info and the installer don't query the package manager
+ * for each app.
+ */
+public class PackageIndex {
+
+    public static class Entry {
+        private String packageName;
+        private String versionName;
+        private int versionCode;
+        private boolean launchable;
+        private ApplicationInfo applicationInfo;
+        private volatile String label;
+
+        public String getPackageName() {
+            return packageName;
+        }
+
+        public String getVersionName() {
+            return versionName;
+        }
+
+        public int getVersionCode() {
+            return versionCode;
+        }
+
+        /**
+         * True if the package has a launcher activity (getLaunchIntentForPackage() is not null).
+         */
+        public boolean isLaunchable() {
+            return launchable;
+        }
+
+        /**
+         * The label is loaded from the package resources at the first request.
+         */
+        public String getLabel(PackageManager packageManager) {
+            if (label == null) {
+                label = applicationInfo != null ? applicationInfo.loadLabel(packageManager).toString() : packageName;
+            }
+            return label;
+        }
+    }
+
+    /**
+     * The package manager queries of the index (replaced in tests).
+     */
+    interface Source {
+        List<PackageInfo> getInstalledPackages();
+
+        /**
+         * Returns null if the package is not installed.
+         */
+        PackageInfo getPackageInfo(String packageName);
+
+        /**
+         * Packages having a launcher activity: all of them if packageName is null,
+         * otherwise the given package only.
+         */
+        Set<String> getLaunchablePackages(String packageName);
+    }
+
+    private static PackageIndex instance;
+
+    private Source source;
+    // Replaced as a whole on each change, so readers get a consistent snapshot without copying
+    private volatile Map<String, Entry> packages;
+    private boolean building;
+    // Packages changed while the index was being built
+    private Set<String> changedPackages = new HashSet<>();
+    // Broadcast updates are done one by one in this order, an update already queued is not repeated
+    private ExecutorService updateExecutor;
+    private final Set<String> pendingUpdates = new HashSet<>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong updates = new AtomicLong();
+    private volatile long lastBuildTime;
+
+    public static synchronized PackageIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new PackageIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private PackageIndex(Context context) {
+        this(new PackageManagerSource(context));
+        registerPackageReceiver(context);
+        startBuild();
+    }
+
+    PackageIndex(Source source) {
+        this.source = source;
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(1, 1,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        updateExecutor = threadPoolExecutor;
+    }
+
+    /**
+     * Get the installed packages in the order of the package manager list, or null if the index
+     * is not built yet (in this case, the caller should query the package manager).
+     * The returned map is immutable.
+     */
+    public Map<String, Entry> getPackages() {
+        Map<String, Entry> result = packages;
+        if (result == null) {
+            misses.incrementAndGet();
+            startBuild();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Number of incremental updates done by the package broadcasts.
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * Duration of the last full build, in milliseconds.
+     */
+    public long getLastBuildTime() {
+        return lastBuildTime;
+    }
+
+    synchronized void startBuild() {
+        if (building || packages != null) {
+            return;
+        }
+        building = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                build();
+            }
+        }, "PackageIndex").start();
+    }
+
+    private void build() {
+        long start = SystemClock.elapsedRealtime();
+        Map<String, Entry> index = null;
+        try {
+            Set<String> launchable = source.getLaunchablePackages(null);
+            Map<String, Entry> result = new LinkedHashMap<>();
+            for (PackageInfo packageInfo : source.getInstalledPackages()) {
+                result.put(packageInfo.packageName, createEntry(packageInfo, launchable.contains(packageInfo.packageName)));
+            }
+            // Not published if the list fails, otherwise the index would be empty rather than missing
+            index = result;
+        } catch (Exception e) {
+            // The list may be too large for a binder transaction on old Android versions,
+            // the callers keep querying the package manager
+            e.printStackTrace();
+        }
+        Set<String> changed;
+        synchronized (this) {
+            building = false;
+            if (index == null) {
+                return;
+            }
+            lastBuildTime = SystemClock.elapsedRealtime() - start;
+            packages = Collections.unmodifiableMap(index);
+            changed = changedPackages;
+            changedPackages = new HashSet<>();
+        }
+        for (String packageName : changed) {
+            updatePackage(packageName);
+        }
+        Log.i(Const.LOG_TAG, "Package index of " + index.size() + " packages built in " + lastBuildTime +
+                " ms, hits: " + hits.get() + ", misses: " + misses.get());
+    }
+
+    /**
+     * Update the package from the package manager. Called by the installer right after
+     * an app is installed or removed, because the package broadcasts may come later than
+     * the install result. Makes binder calls, so it must not be called in the main thread.
+     */
+    public void updatePackage(String packageName) {
+        Entry entry = null;
+        PackageInfo packageInfo = source.getPackageInfo(packageName);
+        if (packageInfo != null) {
+            entry = createEntry(packageInfo, !source.getLaunchablePackages(packageName).isEmpty());
+        }
+        synchronized (this) {
+            if (building) {
+                changedPackages.add(packageName);
+                return;
+            }
+            if (packages == null) {
+                return;
+            }
+            Map<String, Entry> index = new LinkedHashMap<>(packages);
+            if (entry != null) {
+                index.put(packageName, entry);
+            } else {
+                index.remove(packageName);
+            }
+            packages = Collections.unmodifiableMap(index);
+        }
+        updates.incrementAndGet();
+    }
+
+    /**
+     * Update the package in a background thread, used by the broadcast receivers.
+     */
+    public void updatePackageAsync(final String packageName) {
+        synchronized (pendingUpdates) {
+            if (!pendingUpdates.add(packageName)) {
+                // The queued update reads the package after this change anyway
+                return;
+            }
+        }
+        updateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pendingUpdates) {
+                    pendingUpdates.remove(packageName);
+                }
+                updatePackage(packageName);
+            }
+        });
+    }
+
+    private static Entry createEntry(PackageInfo packageInfo, boolean launchable) {
+        Entry entry = new Entry();
+        entry.packageName = packageInfo.packageName;
+        entry.versionName = packageInfo.versionName;
+        entry.versionCode = packageInfo.versionCode;
+        entry.applicationInfo = packageInfo.applicationInfo;
+        entry.launchable = launchable;
+        return entry;
+    }
+
+    private static class PackageManagerSource implements Source {
+        private Context context;
+
+        PackageManagerSource(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public List<PackageInfo> getInstalledPackages() {
+            return context.getPackageManager().getInstalledPackages(0);
+        }
+
+        @Override
+        public PackageInfo getPackageInfo(String packageName) {
+            try {
+                return context.getPackageManager().getPackageInfo(packageName, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
+            }
+        }
+
+        // Same activities as in getLaunchIntentForPackage(): info activities, then launcher activities
+        @Override
+        public Set<String> getLaunchablePackages(String packageName) {
+            Set<String> result = new HashSet<>();
+            for (String category : new String[] {Intent.CATEGORY_INFO, Intent.CATEGORY_LAUNCHER}) {
+                Intent intent = new Intent(Intent.ACTION_MAIN);
+                intent.addCategory(category);
+                if (packageName != null) {
+                    intent.setPackage(packageName);
+                }
+                List<ResolveInfo> activities = context.getPackageManager().queryIntentActivities(intent, 0);
+                if (activities != null) {
+                    for (ResolveInfo resolveInfo : activities) {
+                        result.add(resolveInfo.activityInfo.packageName);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    @SuppressLint("WrongConstant,UnspecifiedRegisterReceiverFlag")
+    private void registerPackageReceiver(Context context) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getData() == null) {
+                    return;
+                }
+                if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) &&
+                        intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    // The package is being updated, PACKAGE_REPLACED follows
+                    return;
+                }
+                updatePackageAsync(intent.getData().getSchemeSpecificPart());
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        // Components enabled or disabled
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                context.registerReceiver(receiver, filter, Context.RECEIVER_EXPORTED);
+            } else {
+                context.registerReceiver(receiver, filter);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hmdm.launcher.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Version name parsed once for comparisons: only digits and dots are kept
+ * (in Android 9 EMUI on Huawei Honor 8A, getPackageInfo doesn't get letters!),
+ * then the dot separated numbers are parsed.
+ * Parsed versions are cached by the version name, so comparing them allocates nothing.
+ */
+public final class ParsedVersion {
+    // Version names come from the configuration and installed apps, so the cache is just a safety limit
+    private static final int MAX_CACHE_SIZE = 1024;
+
+    private static final ConcurrentHashMap<String, ParsedVersion> cache = new ConcurrentHashMap<>();
+
+    private final String digits;
+    private final int[] numbers;
+    // Index of the first part which is not a valid number (empty or too large), or numbers.length
+    private final int validCount;
+
+    private ParsedVersion(String version) {
+        digits = version.replaceAll("[^\\d.]", "");
+        String[] parts = digits.split("\\.");
+        numbers = new int[parts.length];
+        int n = 0;
+        try {
+            for (; n < parts.length; n++) {
+                numbers[n] = Integer.parseInt(parts[n]);
+            }
+        } catch (NumberFormatException e) {
+            // Versions are considered equal when the comparison reaches this part
+        }
+        validCount = n;
+    }
+
+    /**
+     * Get the parsed version from the cache. The version must not be null.
+     */
+    public static ParsedVersion of(String version) {
+        ParsedVersion parsed = cache.get(version);
+        if (parsed == null) {
+            if (cache.size() >= MAX_CACHE_SIZE) {
+                cache.clear();
+            }
+            parsed = new ParsedVersion(version);
+            cache.put(version, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Digits and dots of the version name.
+     */
+    public String getDigits() {
+        return digits;
+    }
+
+    /**
+     * Versions are equal if they have the same digits and dots, for example "1.0-beta" and "1.0".
+     */
+    public boolean isSame(ParsedVersion other) {
+        return digits.equals(other.digits);
+    }
+
+    /**
+     * Returns -1 if this version is lower, 0 if the versions are equal and 1 if this version is higher.
+     * Common parts are compared as numbers, then the version with more parts is considered higher.
+     * If a part is not a number, the versions are considered equal.
+     */
+    public int compareTo(ParsedVersion other) {
+        int count = Math.min(numbers.length, other.numbers.length);
+        for (int n = 0; n < count; n++) {
+            if (n >= validCount || n >= other.validCount) {
+                return 0;
+            }
+            if (numbers[n] < other.numbers[n]) {
+                return -1;
+            } else if (numbers[n] > other.numbers[n]) {
+                return 1;
+            }
+        }
+        if (numbers.length < other.numbers.length) {
+            return -1;
+        } else if (numbers.length > other.numbers.length) {
+            return 1;
+        }
+        return 0;
+    }
+}
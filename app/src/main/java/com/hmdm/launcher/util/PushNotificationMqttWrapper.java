@@ -88,6 +88,10 @@ public class PushNotificationMqttWrapper {
         return instance;
     }
 
+    public boolean isConnected() {
+        return client != null && client.isConnected();
+    }
+
     public void connect(final Context context, String host, int port, String pushType, int keepaliveTime,
                         final String deviceId, final Runnable onSuccess, final Runnable onFailure) {
         this.context = context;
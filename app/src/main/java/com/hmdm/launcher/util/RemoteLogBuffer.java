@@ -0,0 +1,288 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.DatabaseHelper;
+import com.hmdm.launcher.db.LogTable;
+import com.hmdm.launcher.json.RemoteLogItem;
+import com.hmdm.launcher.worker.RemoteLogWorker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded buffer of the log items waiting to be saved. Logging threads add items without locks,
+ * and a single background writer saves them in batches, one transaction per batch.
+ * Items are kept in a ring per log level, so when the buffer is full, the oldest item
+ * or the item of the lowest level can be dropped (see Const.LOG_BUFFER_OVERFLOW_POLICY).
+ */
+public class RemoteLogBuffer {
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long OLD_LOGS_REMOVAL_INTERVAL = 3600000L;
+    // Const.LOG_ERROR ... Const.LOG_VERBOSE
+    private static final int LEVELS = 5;
+
+    /**
+     * Bounded lock-free multi-producer multi-consumer queue (D. Vyukov's algorithm):
+     * each slot has a sequence number telling whether it's ready to be written or read.
+     */
+    private static class Ring {
+        private final AtomicReferenceArray<RemoteLogItem> items;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private final AtomicLong tail = new AtomicLong();
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            items = new AtomicReferenceArray<>(size);
+            sequences = new AtomicLongArray(size);
+            mask = size - 1;
+            for (int n = 0; n < size; n++) {
+                sequences.set(n, n);
+            }
+        }
+
+        boolean offer(RemoteLogItem item) {
+            long pos = tail.get();
+            while (true) {
+                long diff = sequences.get((int) (pos & mask)) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        break;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    // Full
+                    return false;
+                } else {
+                    pos = tail.get();
+                }
+            }
+            int index = (int) (pos & mask);
+            items.set(index, item);
+            sequences.set(index, pos + 1);
+            return true;
+        }
+
+        RemoteLogItem poll() {
+            long pos = head.get();
+            while (true) {
+                long diff = sequences.get((int) (pos & mask)) - (pos + 1);
+                if (diff == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        break;
+                    }
+                    pos = head.get();
+                } else if (diff < 0) {
+                    // Empty, or the next item is not written yet
+                    return null;
+                } else {
+                    pos = head.get();
+                }
+            }
+            int index = (int) (pos & mask);
+            RemoteLogItem item = items.getAndSet(index, null);
+            sequences.set(index, pos + mask + 1);
+            return item;
+        }
+
+        // The result may already be taken by another thread, which is fine for choosing what to drop
+        RemoteLogItem peek() {
+            long pos = head.get();
+            int index = (int) (pos & mask);
+            return sequences.get(index) == pos + 1 ? items.get(index) : null;
+        }
+    }
+
+    private Context context;
+    private final int capacity;
+    private final Ring[] rings = new Ring[LEVELS];
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean writerScheduled = new AtomicBoolean();
+    private final ExecutorService writer;
+    private long lastLogRemoval = 0;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public RemoteLogBuffer(Context context, int capacity) {
+        this.context = context.getApplicationContext();
+        this.capacity = capacity;
+        for (int n = 0; n < LEVELS; n++) {
+            // Any level may take the whole capacity
+            rings[n] = new Ring(capacity);
+        }
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(1, 1,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        writer = threadPoolExecutor;
+    }
+
+    /**
+     * Add the item to be saved. Returns false if the item has been dropped because the buffer is full.
+     */
+    public boolean add(RemoteLogItem item) {
+        int level = getLevelIndex(item.getLogLevel());
+        if (size.incrementAndGet() > capacity && !dropForLevel(level)) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (!rings[level].offer(item)) {
+            // Other threads are adding items at the same time
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        queued.incrementAndGet();
+        if (writerScheduled.compareAndSet(false, true)) {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            });
+        }
+        return true;
+    }
+
+    public long getQueued() {
+        return queued.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Remove an item to free space for an item of the given level
+    private boolean dropForLevel(int level) {
+        if (Const.LOG_BUFFER_OVERFLOW_POLICY == Const.LOG_OVERFLOW_DROP_LOWEST_LEVEL) {
+            // Items of lower levels (higher numbers), then of the same level
+            for (int n = LEVELS - 1; n >= level; n--) {
+                if (dropFrom(n)) {
+                    return true;
+                }
+            }
+            // The new item is the least important one
+            return false;
+        }
+
+        int oldest = -1;
+        long oldestTimestamp = Long.MAX_VALUE;
+        for (int n = 0; n < LEVELS; n++) {
+            RemoteLogItem item = rings[n].peek();
+            if (item != null && item.getTimestamp() < oldestTimestamp) {
+                oldest = n;
+                oldestTimestamp = item.getTimestamp();
+            }
+        }
+        if (oldest >= 0 && dropFrom(oldest)) {
+            return true;
+        }
+        for (int n = 0; n < LEVELS; n++) {
+            if (dropFrom(n)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean dropFrom(int level) {
+        if (rings[level].poll() == null) {
+            return false;
+        }
+        size.decrementAndGet();
+        dropped.incrementAndGet();
+        return true;
+    }
+
+    private static int getLevelIndex(int level) {
+        return Math.min(Math.max(level, Const.LOG_ERROR), Const.LOG_VERBOSE) - Const.LOG_ERROR;
+    }
+
+    // Single writer thread
+    private void write() {
+        // Items added after this point schedule the next run
+        writerScheduled.set(false);
+        long droppedBefore = dropped.get();
+        boolean saved = false;
+        List<RemoteLogItem> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            batch.clear();
+            for (int n = 0; n < LEVELS && batch.size() < MAX_BATCH_SIZE; n++) {
+                RemoteLogItem item;
+                while (batch.size() < MAX_BATCH_SIZE && (item = rings[n].poll()) != null) {
+                    size.decrementAndGet();
+                    batch.add(item);
+                }
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            save(batch);
+            written.addAndGet(batch.size());
+            saved = true;
+        }
+
+        if (dropped.get() > droppedBefore) {
+            // Not sent to the remote log to avoid a loop
+            Log.w(Const.LOG_TAG, "Log buffer overflow: queued " + queued.get() + ", written " + written.get() +
+                    ", dropped " + dropped.get());
+        }
+        if (saved) {
+            onSaved();
+        }
+    }
+
+    // The database calls are overridden by the unit tests
+    void save(List<RemoteLogItem> batch) {
+        LogTable.insert(DatabaseHelper.instance(context).getWritableDatabase(), batch);
+    }
+
+    void onSaved() {
+        // Remove old logs once per hour
+        long now = System.currentTimeMillis();
+        if (now > lastLogRemoval + OLD_LOGS_REMOVAL_INTERVAL) {
+            LogTable.deleteOldItems(DatabaseHelper.instance(context).getWritableDatabase());
+            lastLogRemoval = now;
+        }
+        RemoteLogWorker.scheduleUpload(context);
+    }
+}
@@ -26,7 +26,6 @@ import android.util.Log;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.db.DatabaseHelper;
 import com.hmdm.launcher.db.LogConfigTable;
-import com.hmdm.launcher.db.LogTable;
 import com.hmdm.launcher.json.RemoteLogConfig;
 import com.hmdm.launcher.json.RemoteLogItem;
 import com.hmdm.launcher.worker.RemoteLogWorker;
@@ -38,10 +37,35 @@ import java.util.List;
  * and storing unsent logs
  */
 public class RemoteLogger {
-    public static long lastLogRemoval = 0;
+    // Rules compiled from the database, replaced as a whole when the rules change
+    private static volatile LogRuleMatcher matcher;
+    private static volatile RemoteLogBuffer buffer;
 
-    public static void updateConfig(Context context, List<RemoteLogConfig> rules) {
-        LogConfigTable.replaceAll(DatabaseHelper.instance(context).getWritableDatabase(), rules);
+    public static synchronized void updateConfig(Context context, List<RemoteLogConfig> rules) {
+        SQLiteDatabase db = DatabaseHelper.instance(context).getWritableDatabase();
+        LogConfigTable.replaceAll(db, rules);
+        // Reading the saved rules back keeps the matcher consistent with the database if saving failed
+        matcher = LogRuleMatcher.compile(LogConfigTable.selectAll(db));
+    }
+
+    private static LogRuleMatcher getMatcher(Context context) {
+        LogRuleMatcher result = matcher;
+        if (result == null) {
+            synchronized (RemoteLogger.class) {
+                result = matcher;
+                if (result == null) {
+                    result = LogRuleMatcher.compile(LogConfigTable.selectAll(
+                            DatabaseHelper.instance(context).getReadableDatabase()));
+                    matcher = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Used by the unit tests, which have no database
+    static void setMatcher(LogRuleMatcher ruleMatcher) {
+        matcher = ruleMatcher;
     }
 
     public static void log(Context context, int level, String message) {
@@ -71,22 +95,27 @@ public class RemoteLogger {
         postLog(context, item);
     }
 
+    /**
+     * Matching items are saved and sent to the server in the background.
+     */
     public static void postLog(Context context, RemoteLogItem item) {
-        DatabaseHelper dbHelper = DatabaseHelper.instance(context);
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        if (LogConfigTable.match(db, item)) {
-            db = dbHelper.getWritableDatabase();
-            LogTable.insert(db, item);
-            sendLogsToServer(context);
+        if (getMatcher(context).match(item)) {
+            getBuffer(context).add(item);
         }
+    }
 
-        // Remove old logs once per hour
-        long now = System.currentTimeMillis();
-        if (now > lastLogRemoval + 3600000L) {
-            db = dbHelper.getWritableDatabase();
-            LogTable.deleteOldItems(db);
-            lastLogRemoval = now;
+    private static RemoteLogBuffer getBuffer(Context context) {
+        RemoteLogBuffer result = buffer;
+        if (result == null) {
+            synchronized (RemoteLogger.class) {
+                result = buffer;
+                if (result == null) {
+                    result = new RemoteLogBuffer(context, Const.LOG_BUFFER_CAPACITY);
+                    buffer = result;
+                }
+            }
         }
+        return result;
     }
 
     public static void sendLogsToServer(Context context) {
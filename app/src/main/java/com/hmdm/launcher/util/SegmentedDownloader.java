@@ -0,0 +1,237 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.server.ServerServiceKeeper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads a large file over several connections, each fetching its own byte range.
+ * The response to the initial request is used for the first segment, the remaining segments
+ * are requested with Range / If-Range and written at their positions into a preallocated file.
+ */
+public class SegmentedDownloader {
+    // Smaller files are not worth extra connections
+    private static final long MIN_SEGMENTED_SIZE = 8 * 1024 * 1024;
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // The first segment is downloaded in the calling thread
+    private static ExecutorService executor;
+
+    private Request request;
+    private String validator;
+    private File file;
+    private long length;
+    private long segmentSize;
+    private AtomicLong downloaded = new AtomicLong();
+    private AtomicLong firstSegmentLength = new AtomicLong();
+    private List<Call> calls = new ArrayList<>();
+    private volatile boolean cancelled;
+    private volatile Exception failure;
+
+    /**
+     * @param request request which has been sent to get the response
+     * @param validator ETag or Last-Modified of the response, used to check that all segments belong to the same file
+     * @param file file to write to
+     * @param length length of the file
+     */
+    public SegmentedDownloader(Request request, String validator, File file, long length) {
+        this.request = request;
+        this.validator = validator;
+        this.file = file;
+        this.length = length;
+        int segments = (int) Math.min(MAX_SEGMENTS, length / MIN_SEGMENT_SIZE);
+        segmentSize = (length + segments - 1) / segments;
+    }
+
+    /**
+     * Check whether the server response allows segmented download.
+     * The server must advertise byte ranges and provide a validator.
+     */
+    public static boolean isSupported(Response response, String validator) {
+        return response.code() == 200 && validator != null &&
+                "bytes".equalsIgnoreCase(response.header("Accept-Ranges")) &&
+                response.body().contentLength() >= MIN_SEGMENTED_SIZE;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(MAX_SEGMENTS - 1, MAX_SEGMENTS - 1,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            threadPoolExecutor.allowCoreThreadTimeOut(true);
+            executor = threadPoolExecutor;
+        }
+        return executor;
+    }
+
+    /**
+     * Number of bytes downloaded from the start of the file without gaps.
+     * If the download fails, it can be resumed from this offset.
+     */
+    public long getContiguousLength() {
+        return firstSegmentLength.get();
+    }
+
+    /**
+     * Download the file. The response to the initial request is used for the first segment and closed by the caller.
+     */
+    public void download(final Response response, final InstallUtils.DownloadProgress progressHandler) throws Exception {
+        Log.d(Const.LOG_TAG, "Downloading " + request.url() + " (" + length + " bytes) in segments of " + segmentSize);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            final FileChannel channel = raf.getChannel();
+
+            List<Future<Void>> futures = new ArrayList<>();
+            for (long start = segmentSize; start < length; start += segmentSize) {
+                final long segmentStart = start;
+                final long segmentEnd = Math.min(start + segmentSize, length) - 1;
+                futures.add(getExecutor().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            downloadSegment(channel, segmentStart, segmentEnd, progressHandler);
+                        } catch (Exception e) {
+                            // Stop other segments including the first one
+                            if (failure == null) {
+                                failure = e;
+                            }
+                            cancelled = true;
+                            throw e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            try {
+                writeSegment(response.body().byteStream(), channel, 0, segmentSize, progressHandler);
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : e;
+                    }
+                }
+            } catch (Exception e) {
+                cancel(futures);
+                throw failure != null ? failure : e;
+            }
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void cancel(List<Future<Void>> futures) {
+        synchronized (calls) {
+            cancelled = true;
+            for (Call call : calls) {
+                call.cancel();
+            }
+        }
+        // Segment threads may still write to the file, wait until they stop
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                // Cancelled or failed
+            }
+        }
+    }
+
+    private void downloadSegment(FileChannel channel, long start, long end, InstallUtils.DownloadProgress progressHandler) throws Exception {
+        Request segmentRequest = request.newBuilder()
+                .header("Range", "bytes=" + start + "-" + end)
+                .header("If-Range", validator)
+                .build();
+        Call call = ServerServiceKeeper.getHttpClient().newCall(segmentRequest);
+        synchronized (calls) {
+            if (cancelled) {
+                return;
+            }
+            calls.add(call);
+        }
+        Response response = call.execute();
+        try {
+            String contentRange = response.header("Content-Range");
+            if (response.code() != 206 || contentRange == null || !contentRange.trim().startsWith("bytes " + start + "-" + end + "/")) {
+                // The file has been changed on the server or the range has been ignored
+                throw new Exception("Bad segment response for " + request.url() + ": " + response.code() + " " + contentRange);
+            }
+            writeSegment(response.body().byteStream(), channel, start, end - start + 1, progressHandler);
+        } finally {
+            response.close();
+        }
+    }
+
+    private void writeSegment(InputStream is, FileChannel channel, long start, long count, InstallUtils.DownloadProgress progressHandler) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = start;
+        long remaining = count;
+        while (remaining > 0 && !cancelled) {
+            int length = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (length < 0) {
+                throw new IOException("Unexpected end of stream at " + position + " for " + request.url());
+            }
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
+            }
+            remaining -= length;
+            if (start == 0) {
+                firstSegmentLength.set(position);
+            }
+            long total = downloaded.addAndGet(length);
+            synchronized (progressHandler) {
+                progressHandler.onDownloadProgress((int) ((total * 100.0f) / this.length), this.length, total);
+            }
+        }
+        if (cancelled && remaining > 0) {
+            throw new IOException("Download cancelled");
+        }
+    }
+}
@@ -26,12 +26,7 @@ import android.util.Log;
 
 import com.hmdm.launcher.Const;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -42,62 +37,40 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 public class XapkUtils {
-    public static List<File> extract(Context context, File xapk) {
-        // Here we presume that xapk file name ends with .xapk
-        try {
-            String extractDir = xapk.getName().substring(0, xapk.getName().length() - 5);
-            File extractDirFile = new File(context.getExternalFilesDir(null), extractDir);
-            if (extractDirFile.isDirectory()) {
-                FileUtils.deleteDirectory(extractDirFile);
-            } else if (extractDirFile.exists()) {
-                extractDirFile.delete();
-            }
-            extractDirFile.mkdirs();
-
-            List<File> result = new LinkedList<File>();
+    /**
+     * Install split APKs from an XAPK file.
+     * Each .apk entry is streamed from the ZIP file right into the installer session, without unpacking.
+     */
+    public static void install(Context context, File xapk, String packageName, InstallUtils.InstallErrorHandler errorHandler) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
 
-            ZipFile zipFile = new ZipFile(xapk);
+        ZipFile zipFile = null;
+        PackageInstaller.Session session = null;
+        try {
+            zipFile = new ZipFile(xapk);
+            // Sizes are taken from the central directory of the ZIP file
+            List<ZipEntry> apkEntries = new LinkedList<ZipEntry>();
+            long totalSize = 0;
             Enumeration<? extends ZipEntry> entries = zipFile.entries();
-
-            while(entries.hasMoreElements()) {
+            while (entries.hasMoreElements()) {
                 ZipEntry entry = entries.nextElement();
-                if (entry.getName().endsWith(".apk")) {
-                    InputStream inputStream = zipFile.getInputStream(entry);
-                    File resultFile = new File(extractDirFile, entry.getName());
-                    FileOutputStream outputStream = new FileOutputStream(resultFile);
-                    IOUtils.copy(inputStream, outputStream);
-                    inputStream.close();
-                    outputStream.close();
-                    result.add(resultFile);
+                if (!entry.isDirectory() && entry.getName().endsWith(".apk")) {
+                    apkEntries.add(entry);
+                    if (entry.getSize() > 0) {
+                        totalSize += entry.getSize();
+                    }
                 }
-
             }
-            zipFile.close();
-            return result;
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    public static void install(Context context, List<File> files, String packageName, InstallUtils.InstallErrorHandler errorHandler) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            return;
-        }
-        if (files == null) {
-            RemoteLogger.log(context, Const.LOG_WARN, "Failed to unpack XAPK for " + packageName + " - ignoring installation");
-            if (errorHandler != null) {
-                errorHandler.onInstallError(null);
+            if (apkEntries.isEmpty()) {
+                RemoteLogger.log(context, Const.LOG_WARN, "No APK files in XAPK for " + packageName + " - ignoring installation");
+                if (errorHandler != null) {
+                    errorHandler.onInstallError(null);
+                }
+                return;
             }
-            return;
-        }
-        long totalSize = 0;
-        for (File file : files) {
-            totalSize += file.length();
-        }
 
-        try {
             Log.i(Const.LOG_TAG, "Installing XAPK " + packageName);
             PackageInstaller packageInstaller = context.getPackageManager().getPackageInstaller();
             PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
@@ -107,41 +80,62 @@ public class XapkUtils {
             }
             params.setSize(totalSize);
             int sessionId = packageInstaller.createSession(params);
+            session = packageInstaller.openSession(sessionId);
 
-            for (File file : files) {
-                addFileToSession(sessionId, file, packageInstaller);
+            int index = 0;
+            for (ZipEntry entry : apkEntries) {
+                addEntryToSession(session, zipFile, entry, index++);
             }
 
-            PackageInstaller.Session session = packageInstaller.openSession(sessionId);
             session.commit(InstallUtils.createIntentSender(context, sessionId, packageName));
             session.close();
+            session = null;
             Log.i(Const.LOG_TAG, "Installation session committed");
 
         } catch (Exception e) {
+            e.printStackTrace();
+            if (session != null) {
+                session.abandon();
+            }
             if (errorHandler != null) {
                 errorHandler.onInstallError(e.getMessage());
             }
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
-    private static void addFileToSession(int sessionId, File file, PackageInstaller packageInstaller) throws IOException {
+    private static void addEntryToSession(PackageInstaller.Session session, ZipFile zipFile, ZipEntry entry, int index) throws IOException {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             return;
         }
 
-        FileInputStream in = new FileInputStream(file);
-        // set params
-        PackageInstaller.Session session = packageInstaller.openSession(sessionId);
-        OutputStream out = session.openWrite(file.getName(), 0, file.length());
-        byte[] buffer = new byte[65536];
-        int c;
-        while ((c = in.read(buffer)) != -1) {
-            out.write(buffer, 0, c);
+        InputStream in = zipFile.getInputStream(entry);
+        OutputStream out = session.openWrite(getSessionName(entry.getName(), index), 0, entry.getSize());
+        try {
+            byte[] buffer = new byte[65536];
+            int c;
+            while ((c = in.read(buffer)) != -1) {
+                out.write(buffer, 0, c);
+            }
+            session.fsync(out);
+        } finally {
+            in.close();
+            out.close();
         }
-        session.fsync(out);
-        in.close();
-        out.close();
-        session.close();
+    }
+
+    // Session file names can't contain slashes, and splits in different directories may have the same name
+    // (config/x.apk and x.apk), so the entry index keeps the names unique
+    static String getSessionName(String entryName, int index) {
+        String name = entryName.substring(entryName.lastIndexOf('/') + 1);
+        return name.substring(0, name.length() - ".apk".length()) + "_" + index + ".apk";
     }
 
 }
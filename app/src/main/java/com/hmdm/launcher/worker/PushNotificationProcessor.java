@@ -34,6 +34,7 @@ import com.hmdm.launcher.db.DownloadTable;
 import com.hmdm.launcher.helper.ConfigUpdater;
 import com.hmdm.launcher.json.Download;
 import com.hmdm.launcher.json.PushMessage;
+import com.hmdm.launcher.util.DownloadCache;
 import com.hmdm.launcher.util.InstallUtils;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.SystemUtils;
@@ -295,5 +296,7 @@ public class PushNotificationProcessor {
             }
         }
         DownloadTable.deleteAll(db);
+        // Cached files are downloaded again as well
+        DownloadCache.clear(context);
     }
 }
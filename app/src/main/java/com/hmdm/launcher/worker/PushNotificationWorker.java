@@ -36,6 +36,7 @@ import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.PushMessage;
 import com.hmdm.launcher.json.PushResponse;
 import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.server.HedgedCall;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 import com.hmdm.launcher.util.PushNotificationMqttWrapper;
@@ -127,18 +128,10 @@ public class PushNotificationWorker extends Worker {
 
         RemoteLogger.log(context, Const.LOG_DEBUG, "Querying push notifications");
         try {
-            response = serverService.
-                    queryPushNotifications(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature).execute();
-        } catch (Exception e) {
-            RemoteLogger.log(context, Const.LOG_WARN, "Failed to query push notifications: " + e.getMessage());
-            e.printStackTrace();
-        }
-
-        try {
-            if (response == null) {
-                response = secondaryServerService.
-                        queryPushNotifications(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature).execute();
-            }
+            response = new HedgedCall<>(
+                    serverService.queryPushNotifications(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature),
+                    secondaryServerService.queryPushNotifications(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature)).
+                    execute();
 
             if ( response.isSuccessful() ) {
                 if ( Const.STATUS_OK.equals( response.body().getStatus() ) && response.body().getData() != null ) {
@@ -159,6 +152,7 @@ public class PushNotificationWorker extends Worker {
                 }
             }
         } catch ( Exception e ) {
+            RemoteLogger.log(context, Const.LOG_WARN, "Failed to query push notifications: " + e.getMessage());
             e.printStackTrace();
         }
 
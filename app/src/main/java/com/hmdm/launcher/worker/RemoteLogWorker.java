@@ -34,6 +34,7 @@ import com.hmdm.launcher.db.DatabaseHelper;
 import com.hmdm.launcher.db.LogTable;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.RemoteLogItem;
+import com.hmdm.launcher.server.HedgedCall;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 
@@ -126,21 +127,13 @@ public class RemoteLogWorker extends Worker {
     public boolean upload(List<RemoteLogItem> logItems) {
         ServerService serverService = ServerServiceKeeper.getServerServiceInstance(context);
         ServerService secondaryServerService = ServerServiceKeeper.getSecondaryServerServiceInstance(context);
-        Response<ResponseBody> response = null;
 
         try {
-            response = serverService.sendLogs(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems).execute();
+            Response<ResponseBody> response = new HedgedCall<>(
+                    serverService.sendLogs(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems),
+                    secondaryServerService.sendLogs(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems)).
+                    execute();
             return response.isSuccessful();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        try {
-            if (response == null) {
-                response = secondaryServerService.
-                        sendLogs(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems).execute();
-                return response.isSuccessful();
-            }
         } catch ( Exception e ) {
             e.printStackTrace();
         }
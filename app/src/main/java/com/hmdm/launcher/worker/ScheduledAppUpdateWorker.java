@@ -32,8 +32,15 @@ import androidx.work.WorkerParameters;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.ConfigUpdater;
 import com.hmdm.launcher.helper.SettingsHelper;
+import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.util.DownloadPrefetcher;
+import com.hmdm.launcher.util.InstallUtils;
 import com.hmdm.launcher.util.RemoteLogger;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class ScheduledAppUpdateWorker extends Worker {
@@ -84,11 +91,22 @@ public class ScheduledAppUpdateWorker extends Worker {
         boolean lastAppUpdateState = settingsHelper.getLastAppUpdateState();
         boolean canUpdateAppsNow = ConfigUpdater.checkAppUpdateTimeRestriction(settingsHelper.getConfig());
         Log.d(Const.LOG_TAG, "ScheduledAppUpdateWorker: lastAppUpdateState=" + lastAppUpdateState + ", canUpdateAppsNow=" + canUpdateAppsNow);
+        if (!canUpdateAppsNow && ConfigUpdater.checkUpdateNetworkRestriction(settingsHelper.getConfig(), context)) {
+            // Continue downloading the pending updates in advance, for example after a network failure
+            List<Application> applications = new ArrayList<>();
+            InstallUtils.generateApplicationsForInstallList(context, settingsHelper.getConfig().getApplications(),
+                    applications, new HashMap<String, File>());
+            ConfigUpdater.stageApplications(context, applications);
+        }
+
         if (lastAppUpdateState == canUpdateAppsNow) {
             // App update state not changed
             return Result.success();
         }
 
+        // Staging starts over when the update window opens or closes
+        DownloadPrefetcher.resetStaging();
+
         if (!lastAppUpdateState && canUpdateAppsNow) {
             // Need to update apps now
             RemoteLogger.log(context, Const.LOG_DEBUG, "Running scheduled app update");
@@ -12,6 +12,7 @@ import androidx.work.WorkerParameters;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.DeviceInfo;
+import com.hmdm.launcher.server.HedgedCall;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 import com.hmdm.launcher.util.DeviceInfoProvider;
@@ -49,18 +50,11 @@ public class SendDeviceInfoWorker extends Worker {
 
         ServerService serverService = ServerServiceKeeper.getServerServiceInstance(context);
         ServerService secondaryServerService = ServerServiceKeeper.getSecondaryServerServiceInstance(context);
-        Response<ResponseBody> response = null;
 
         try {
-            response = serverService.sendDevice(settingsHelper.getServerProject(), deviceInfo).execute();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        try {
-            if (response == null) {
-                response = secondaryServerService.sendDevice(settingsHelper.getServerProject(), deviceInfo).execute();
-            }
+            Response<ResponseBody> response = new HedgedCall<>(
+                    serverService.sendDevice(settingsHelper.getServerProject(), deviceInfo),
+                    secondaryServerService.sendDevice(settingsHelper.getServerProject(), deviceInfo)).execute();
             if ( response.isSuccessful() ) {
                 SettingsHelper.getInstance(context).setExternalIp(response.headers().get(Const.HEADER_IP_ADDRESS));
                 return Result.success();
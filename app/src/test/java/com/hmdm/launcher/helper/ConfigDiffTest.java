@@ -0,0 +1,212 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.helper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.util.JsonCodecs;
+import com.hmdm.launcher.util.RandomModels;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Changes one config field at a time and checks which update stages are considered changed.
+ * A stage skipped by mistake leaves files, apps or policies unapplied until the next full update.
+ */
+public class ConfigDiffTest {
+
+    private static final Set<String> ALL_STAGES = new HashSet<>(Arrays.asList(ConfigDiff.STAGE_PUSH,
+            ConfigDiff.STAGE_FILES, ConfigDiff.STAGE_APPS, ConfigDiff.STAGE_SETTINGS, ConfigDiff.STAGE_POLICIES,
+            ConfigDiff.STAGE_ACTIONS));
+
+    // Every ServerConfig property and the stages it affects. The other properties are applied
+    // outside of the skipped stages (MainActivity, Initializer) or on each update (restrictions, commands).
+    private static final Map<String, String[]> FIELD_STAGES = new HashMap<>();
+    static {
+        for (String field : new String[] {"newNumber", "backgroundColor", "textColor", "backgroundImageUrl",
+                "password", "phone", "imei", "iconSize", "title", "gps", "bluetooth", "wifi", "mobileData",
+                "kioskMode", "mainApp", "lockStatusBar", "systemUpdateType", "systemUpdateFrom", "systemUpdateTo",
+                "appUpdateFrom", "appUpdateTo", "downloadUpdates", "factoryReset", "reboot", "lock", "lockMessage",
+                "passwordReset", "requestUpdates", "disableLocation", "usbStorage", "autoBrightness", "brightness",
+                "manageTimeout", "timeout", "lockVolume", "manageVolume", "volume", "passwordMode", "timeZone",
+                "allowedClasses", "orientation", "kioskHome", "kioskRecents", "kioskNotifications", "kioskSystemInfo",
+                "kioskKeyguard", "kioskLockButtons", "restrictions", "description", "custom1", "custom2", "custom3",
+                "newServerUrl", "lockSafeSettings", "permissive", "kioskExit", "disableScreenshots",
+                "autostartForeground", "showWifi", "appName", "vendor"}) {
+            FIELD_STAGES.put(field, new String[0]);
+        }
+        FIELD_STAGES.put("pushOptions", new String[] {ConfigDiff.STAGE_PUSH});
+        FIELD_STAGES.put("keepaliveTime", new String[] {ConfigDiff.STAGE_PUSH});
+        FIELD_STAGES.put("files", new String[] {ConfigDiff.STAGE_FILES});
+        FIELD_STAGES.put("applications", new String[] {ConfigDiff.STAGE_APPS});
+        FIELD_STAGES.put("appPermissions", new String[] {ConfigDiff.STAGE_APPS});
+        FIELD_STAGES.put("applicationSettings", new String[] {ConfigDiff.STAGE_SETTINGS});
+        FIELD_STAGES.put("runDefaultLauncher", new String[] {ConfigDiff.STAGE_POLICIES});
+        FIELD_STAGES.put("actions", new String[] {ConfigDiff.STAGE_ACTIONS});
+    }
+
+    @Test
+    public void everyFieldIsInTheTable() {
+        Set<String> fields = new HashSet<>();
+        Iterator<String> iterator = tree(new ServerConfig()).fieldNames();
+        while (iterator.hasNext()) {
+            fields.add(iterator.next());
+        }
+        // A new config property must be added to the table with the stages it affects
+        assertEquals(FIELD_STAGES.keySet(), fields);
+    }
+
+    @Test
+    public void oneFieldChanged() {
+        Random random = new Random(20240611);
+        for (int n = 0; n < 20; n++) {
+            ObjectNode oldConfig = tree(RandomModels.createConfig(random, 5));
+            for (Map.Entry<String, String[]> entry : FIELD_STAGES.entrySet()) {
+                ObjectNode newConfig = oldConfig.deepCopy();
+                newConfig.set(entry.getKey(), changed(oldConfig.get(entry.getKey())));
+                assertStages(entry.getKey(), oldConfig, newConfig, entry.getValue());
+
+                // Removed field
+                newConfig = oldConfig.deepCopy();
+                newConfig.remove(entry.getKey());
+                if (!oldConfig.has(entry.getKey()) || !oldConfig.get(entry.getKey()).isNull()) {
+                    assertStages(entry.getKey() + " removed", oldConfig, newConfig, entry.getValue());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nestedChanges() {
+        ServerConfig config = RandomModels.createConfig(new Random(1), 5);
+        ObjectNode oldConfig = tree(config);
+        ArrayNode settings = oldConfig.putArray("applicationSettings");
+        settings.add(setting("com.hmdm.launcher", "proxy", "10.0.0.1:3128"));
+        settings.add(setting("com.hmdm.launcher", "certificates", "/sdcard/ca.crt"));
+
+        // Proxy and certificates are application settings of the launcher
+        ObjectNode newConfig = oldConfig.deepCopy();
+        ((ObjectNode) newConfig.get("applicationSettings").get(0)).put("value", "10.0.0.2:3128");
+        assertStages("proxy", oldConfig, newConfig, ConfigDiff.STAGE_SETTINGS);
+        newConfig = oldConfig.deepCopy();
+        ((ObjectNode) newConfig.get("applicationSettings").get(1)).put("value", "/sdcard/ca.crt,/sdcard/ca2.crt");
+        assertStages("certificates", oldConfig, newConfig, ConfigDiff.STAGE_SETTINGS);
+        newConfig = oldConfig.deepCopy();
+        ((ArrayNode) newConfig.get("applicationSettings")).remove(0);
+        assertStages("proxy removed", oldConfig, newConfig, ConfigDiff.STAGE_SETTINGS);
+
+        // Permission strategy and a single property of an app
+        newConfig = oldConfig.deepCopy();
+        newConfig.put("appPermissions", ServerConfig.APP_PERMISSIONS_ASK_ALL);
+        oldConfig.put("appPermissions", ServerConfig.APP_PERMISSIONS_ASK_LOCATION);
+        assertStages("appPermissions", oldConfig, newConfig, ConfigDiff.STAGE_APPS);
+        newConfig = oldConfig.deepCopy();
+        ((ObjectNode) newConfig.get("applications").get(3)).put("version", "99.0");
+        assertStages("app version", oldConfig, newConfig, ConfigDiff.STAGE_APPS);
+        newConfig = oldConfig.deepCopy();
+        ((ObjectNode) newConfig.get("applications").get(0)).put("remove", !oldConfig.get("applications").get(0).get("remove").asBoolean());
+        assertStages("app removal", oldConfig, newConfig, ConfigDiff.STAGE_APPS);
+
+        // Order of the apps
+        newConfig = oldConfig.deepCopy();
+        ArrayNode applications = (ArrayNode) newConfig.get("applications");
+        applications.add(applications.remove(0));
+        assertStages("app order", oldConfig, newConfig, ConfigDiff.STAGE_APPS);
+
+        // Several groups at once
+        newConfig = oldConfig.deepCopy();
+        newConfig.put("keepaliveTime", 300);
+        newConfig.put("title", "Changed");
+        newConfig.putArray("files").addObject().put("path", "/sdcard/new.txt");
+        assertStages("several", oldConfig, newConfig, ConfigDiff.STAGE_PUSH, ConfigDiff.STAGE_FILES);
+    }
+
+    @Test
+    public void sameConfig() {
+        ServerConfig config = RandomModels.createConfig(new Random(3), 20);
+        // Equal trees built from different objects
+        JsonNode copy = tree(JsonCodecs.getMapper().convertValue(tree(config), ServerConfig.class));
+        assertEquals(Collections.<String>emptySet(), new ConfigDiff(tree(config), copy).getChangedStages());
+    }
+
+    @Test
+    public void unknownOldConfig() {
+        JsonNode config = tree(RandomModels.createConfig(new Random(4), 1));
+        assertEquals(ALL_STAGES, new ConfigDiff(null, config).getChangedStages());
+        for (String stage : ALL_STAGES) {
+            assertTrue(new ConfigDiff(null, config).isChanged(stage));
+        }
+    }
+
+    private static void assertStages(String message, JsonNode oldConfig, JsonNode newConfig, String... stages) {
+        assertEquals(message, new HashSet<>(Arrays.asList(stages)), new ConfigDiff(oldConfig, newConfig).getChangedStages());
+    }
+
+    // Another value of the same kind
+    private static JsonNode changed(JsonNode value) {
+        if (value == null || value.isNull()) {
+            return TextNode.valueOf("set");
+        } else if (value.isTextual()) {
+            return TextNode.valueOf(value.asText() + "x");
+        } else if (value.isBoolean()) {
+            return BooleanNode.valueOf(!value.asBoolean());
+        } else if (value.isNumber()) {
+            return IntNode.valueOf(value.asInt() + 1);
+        } else if (value.isArray()) {
+            ArrayNode array = ((ArrayNode) value).deepCopy();
+            if (array.size() > 0) {
+                array.remove(array.size() - 1);
+            } else {
+                array.addObject();
+            }
+            return array;
+        }
+        throw new IllegalArgumentException("Unexpected value " + value);
+    }
+
+    private static ObjectNode setting(String packageId, String name, String value) {
+        ObjectNode setting = JsonCodecs.getMapper().createObjectNode();
+        setting.put("packageId", packageId);
+        setting.put("name", name);
+        setting.put("value", value);
+        return setting;
+    }
+
+    private static ObjectNode tree(ServerConfig config) {
+        return JsonCodecs.getMapper().valueToTree(config);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.helper;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.util.JsonCodecs;
+import com.hmdm.launcher.util.RandomModels;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that ConfigStore saves and loads the config unchanged, and never replaces
+ * the stored config by a broken one.
+ */
+public class ConfigStoreTest {
+
+    private File dir;
+    private Context context;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("config").toFile();
+        context = new ContextWrapper(null) {
+            @Override
+            public File getFilesDir() {
+                return dir;
+            }
+        };
+    }
+
+    @After
+    public void deleteDir() {
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(20240611);
+        ConfigStore store = new ConfigStore(context);
+        assertFalse(store.exists());
+        for (int n = 0; n < 20; n++) {
+            ServerConfig config = RandomModels.createConfig(random, random.nextInt(600));
+            store.write(config);
+            assertTrue(store.exists());
+            assertEquals(JsonCodecs.writeServerConfig(config), JsonCodecs.writeServerConfig(store.read()));
+            // A new instance, as after a restart
+            assertEquals(JsonCodecs.writeServerConfig(config), JsonCodecs.writeServerConfig(new ConfigStore(context).read()));
+        }
+        assertFalse(new File(dir, "config.dat.tmp").exists());
+    }
+
+    @Test
+    public void failedWriteKeepsStoredConfig() throws IOException {
+        Random random = new Random(1);
+        ConfigStore store = new ConfigStore(context);
+        ServerConfig config = RandomModels.createConfig(random, 10);
+        store.write(config);
+
+        // The temporary file can't be created
+        File tempFile = new File(dir, "config.dat.tmp");
+        assertTrue(tempFile.mkdir());
+        try {
+            store.write(RandomModels.createConfig(random, 10));
+            fail("The write must fail");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertTrue(tempFile.delete());
+        assertEquals(JsonCodecs.writeServerConfig(config), JsonCodecs.writeServerConfig(store.read()));
+    }
+
+    @Test
+    public void badHeaderIsRejected() throws IOException {
+        ConfigStore store = new ConfigStore(context);
+        File file = new File(dir, "config.dat");
+
+        // A JSON config, as stored in the preferences
+        Files.write(file.toPath(), "{\"title\":\"Test\"}".getBytes("UTF-8"));
+        assertReadFails(store, "Not a config file");
+
+        store.write(RandomModels.createConfig(new Random(2), 10));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(99);
+        } finally {
+            raf.close();
+        }
+        assertReadFails(store, "Unsupported config file version: 99");
+    }
+
+    @Test
+    public void benchmarkAgainstPreferencesString() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        Random random = new Random(3);
+        for (int applications : new int[] {500, 1000}) {
+            ServerConfig config = RandomModels.createConfig(random, applications);
+            ConfigStore store = new ConfigStore(context);
+            File legacyFile = new File(dir, "preferences.json");
+            long legacyWrite = Long.MAX_VALUE;
+            long legacyRead = Long.MAX_VALUE;
+            long write = Long.MAX_VALUE;
+            long read = Long.MAX_VALUE;
+            long legacyAllocated = 0;
+            long allocated = 0;
+            int stringLength = 0;
+            for (int run = 0; run < 5; run++) {
+                // Before: the config was kept as a JSON string and saved with commit()
+                long start = System.nanoTime();
+                String json = JsonCodecs.writeServerConfig(config);
+                FileOutputStream fos = new FileOutputStream(legacyFile);
+                try {
+                    fos.write(json.getBytes("UTF-8"));
+                    fos.getFD().sync();
+                } finally {
+                    fos.close();
+                }
+                legacyWrite = Math.min(legacyWrite, System.nanoTime() - start);
+                stringLength = json.length();
+
+                long allocatedBefore = getAllocatedBytes();
+                start = System.nanoTime();
+                JsonCodecs.readServerConfig(new String(Files.readAllBytes(legacyFile.toPath()), "UTF-8"));
+                legacyRead = Math.min(legacyRead, System.nanoTime() - start);
+                legacyAllocated = getAllocatedBytes() - allocatedBefore;
+
+                start = System.nanoTime();
+                store.write(config);
+                write = Math.min(write, System.nanoTime() - start);
+
+                allocatedBefore = getAllocatedBytes();
+                start = System.nanoTime();
+                store.read();
+                read = Math.min(read, System.nanoTime() - start);
+                allocated = getAllocatedBytes() - allocatedBefore;
+            }
+            String message = String.format("%d applications, %d KB: preferences string write %.1f ms, read %.1f ms " +
+                            "(%d KB allocated, %d KB string kept in memory); config store write %.1f ms, read %.1f ms (%d KB allocated)",
+                    applications, new File(dir, "config.dat").length() / 1024,
+                    legacyWrite / 1000000.0, legacyRead / 1000000.0, legacyAllocated / 1024, stringLength * 2 / 1024,
+                    write / 1000000.0, read / 1000000.0, allocated / 1024);
+            // Both writes are mostly the sync to the disk, so only the reads are compared
+            assertTrue(message, read < legacyRead);
+            assertTrue(message, legacyAllocated == 0 || allocated < legacyAllocated);
+        }
+    }
+
+    private static void assertReadFails(ConfigStore store, String message) {
+        try {
+            store.read();
+            fail("The read must fail");
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage().replaceAll(":.*config\\.dat$", ""));
+        }
+    }
+
+    // Zero if the JVM can't count the allocated memory
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.helper;
+
+import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.util.JsonCodecs;
+import com.hmdm.launcher.util.RandomModels;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the streaming signature check of SignedConfigParser gives the same result
+ * as the check it has replaced: substring after "data": up to the last character,
+ * whitespace removed by replaceAll("\\s", ""), then SHA-1 with the secret.
+ */
+public class SignedConfigParserTest {
+
+    private static final String SECRET = "changeme-C3z9vi54";
+
+    @Test
+    public void compactResponse() throws IOException {
+        Random random = new Random(20240611);
+        for (int n = 0; n < 50; n++) {
+            String data = JsonCodecs.writeServerConfig(RandomModels.createConfig(random, random.nextInt(10)));
+            assertSameSignature("{\"status\":\"OK\",\"message\":null,\"data\":" + data + "}");
+        }
+    }
+
+    @Test
+    public void prettyPrintedAndCrlfResponse() throws IOException {
+        Random random = new Random(1);
+        for (int n = 0; n < 50; n++) {
+            String data = JsonCodecs.getMapper().writerWithDefaultPrettyPrinter()
+                    .writeValueAsString(RandomModels.createConfig(random, random.nextInt(10)));
+            String response = "{\n  \"status\": \"OK\",\n  \"message\": null,\n  \"data\": " + data + "\n}";
+            assertSameSignature(response);
+            assertSameSignature(response + "\n");
+            assertSameSignature(response.replace("\n", "\r\n"));
+            assertSameSignature(response.replace("\n", "\r\n") + "\r\n");
+        }
+    }
+
+    @Test
+    public void escapedQuotesAndWhitespaceInStrings() throws IOException {
+        ServerConfig config = RandomModels.createConfig(new Random(2), 3);
+        config.setTitle("Say \"data\": {\"status\":\"OK\"} \\ \t end ");
+        config.setDescription("  \r\n  line two    ");
+        assertSameSignature("{\"status\":\"OK\",\"message\":null,\"data\":" + JsonCodecs.writeServerConfig(config) + "}");
+    }
+
+    @Test
+    public void dataLargerThanBuffers() throws IOException {
+        Random random = new Random(3);
+        // The parser buffer is 8000 bytes, the window of the digesting stream is 64 KB
+        String data = JsonCodecs.writeServerConfig(RandomModels.createConfig(random, 500));
+        assertFalse(data.length() < 3 * 65536);
+        assertSameSignature("{\"status\":\"OK\",\"message\":null,\"data\":" + data + "}");
+
+        // The data field starts at different positions around the parser buffer boundaries
+        String small = JsonCodecs.writeServerConfig(RandomModels.createConfig(random, 20));
+        for (int length : new int[] {4000, 7950, 7970, 7980, 7990, 8000, 8010, 16000, 65536, 100000}) {
+            for (int delta = 0; delta < 8; delta++) {
+                String message = padding(length + delta);
+                assertSameSignature("{\"status\":\"OK\",\"message\":\"" + message + "\",\"data\":" + small + "}");
+            }
+        }
+    }
+
+    @Test
+    public void tamperedDataIsRejected() throws IOException {
+        ServerConfig config = RandomModels.createConfig(new Random(4), 5);
+        config.setPassword("12345");
+        String response = "{\"status\":\"OK\",\"message\":null,\"data\":" + JsonCodecs.writeServerConfig(config) + "}";
+        String serverSignature = legacySignature(response);
+
+        config.setPassword("00000");
+        String tampered = "{\"status\":\"OK\",\"message\":null,\"data\":" + JsonCodecs.writeServerConfig(config) + "}";
+        assertFalse(serverSignature.equalsIgnoreCase(parse(tampered, 4096).getSignature()));
+
+        // A byte added to the end is hashed as well
+        assertFalse(serverSignature.equalsIgnoreCase(parse(response + "}", 4096).getSignature()));
+
+        // Whitespace is not signed, as before
+        assertEquals(serverSignature, parse(response.replace(",", ", "), 4096).getSignature());
+    }
+
+    @Test
+    public void errorResponseHasNoSignature() throws IOException {
+        SignedConfigParser parser = parse("{\"status\":\"ERROR\",\"message\":\"error.notfound.device\"}", 4096);
+        assertEquals("ERROR", parser.getStatus());
+        assertEquals("error.notfound.device", parser.getMessage());
+        assertNull(parser.getData());
+        assertNull(parser.getSignature());
+    }
+
+    // Reading in chunks of different sizes moves the data field around the stream buffers
+    private static void assertSameSignature(String response) throws IOException {
+        String expected = legacySignature(response);
+        assertNotNull(expected);
+        String expectedData = JsonCodecs.writeServerConfig(legacyData(response));
+        for (int chunk : new int[] {1, 7, 4096, Integer.MAX_VALUE}) {
+            SignedConfigParser parser = parse(response, chunk);
+            assertEquals("OK", parser.getStatus());
+            assertEquals(expected, parser.getSignature());
+            assertEquals(expectedData, JsonCodecs.writeServerConfig(parser.getData()));
+        }
+    }
+
+    private static SignedConfigParser parse(String response, int chunk) throws IOException {
+        SignedConfigParser parser = new SignedConfigParser();
+        parser.parse(new ChunkedInputStream(new ByteArrayInputStream(response.getBytes("UTF-8")), chunk), SECRET);
+        return parser;
+    }
+
+    private static String padding(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < length; n++) {
+            sb.append(n % 10 == 0 ? ' ' : (char) ('a' + n % 26));
+        }
+        return sb.toString();
+    }
+
+    // The implementation replaced by SignedConfigParser (GetServerConfigTask.getSignedData)
+    private static String legacySignature(String serverResponse) {
+        final String dataMarker = "\"data\":";
+        int pos = serverResponse.indexOf(dataMarker);
+        if (pos == -1) {
+            return null;
+        }
+        String serverData = serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1);
+        return CryptoHelper.getSHA1String(SECRET + serverData.replaceAll("\\s", ""));
+    }
+
+    private static ServerConfig legacyData(String serverResponse) throws IOException {
+        final String dataMarker = "\"data\":";
+        int pos = serverResponse.indexOf(dataMarker);
+        return JsonCodecs.readServerConfig(serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1));
+    }
+
+    // Returns at most the given number of bytes per read, like a slow network
+    private static class ChunkedInputStream extends FilterInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(InputStream in, int chunk) {
+            super(in);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Builds patches with a known control, diff and extra layout and checks that ApkPatcher
+ * rebuilds the new file from them, and rejects broken patches.
+ */
+public class ApkPatcherTest {
+
+    private File oldFile;
+    private File patchFile;
+    private File newFile;
+
+    @Before
+    public void createFiles() throws IOException {
+        oldFile = File.createTempFile("old", ".apk");
+        patchFile = File.createTempFile("patch", ".bin");
+        newFile = File.createTempFile("new", ".apk");
+    }
+
+    @After
+    public void deleteFiles() {
+        oldFile.delete();
+        patchFile.delete();
+        newFile.delete();
+    }
+
+    @Test
+    public void knownLayout() throws IOException {
+        byte[] oldData = "0123456789abcdefghijklmnopqrstuv".getBytes("US-ASCII");
+        byte[] newData = "0123XY6789ab--ghijklmnopqr__uvw!!!!!!!!!".getBytes("US-ASCII");
+        long[][] controls = {
+                // Diff 8 from 0, extra 4, seek back past the start of the old file: 8 - 12 = -4
+                {8, 4, -12},
+                // Diff 10 from -4: 4 bytes before the old file are zeroes, then seek to 26
+                {10, 2, 20},
+                // Diff 10 from 26: 4 bytes past the end of the old file are zeroes
+                {10, 6, 0},
+        };
+        byte[] patch = createPatch(oldData, newData, controls);
+        assertPatch(oldData, patch, newData);
+
+        // The seek of -12 is stored as a sign-magnitude number
+        byte[] ctrl = gunzip(Arrays.copyOfRange(patch, 32, 32 + (int) readLong(patch, 8)));
+        assertEquals(12, ctrl[16]);
+        assertEquals((byte) 0x80, ctrl[23]);
+    }
+
+    @Test
+    public void randomPatches() throws IOException {
+        Random random = new Random(20240611);
+        for (int n = 0; n < 30; n++) {
+            byte[] oldData = new byte[random.nextInt(300000)];
+            random.nextBytes(oldData);
+            int newSize = random.nextInt(300000);
+            List<long[]> controls = new ArrayList<>();
+            long oldPos = 0;
+            for (long newPos = 0; newPos < newSize; ) {
+                // Blocks larger than the 64 KB buffers of the patcher, and seeks out of the old file
+                long diff = Math.min(newSize - newPos, random.nextInt(random.nextBoolean() ? 1000 : 150000));
+                long extra = Math.min(newSize - newPos - diff, random.nextInt(random.nextBoolean() ? 100 : 80000));
+                long seek = random.nextInt(2 * oldData.length + 2000) - oldData.length - 1000 - oldPos - diff;
+                controls.add(new long[] {diff, extra, seek});
+                newPos += diff + extra;
+                oldPos += diff + seek;
+            }
+            byte[] newData = new byte[newSize];
+            random.nextBytes(newData);
+            assertPatch(oldData, createPatch(oldData, newData, controls.toArray(new long[0][])), newData);
+        }
+    }
+
+    @Test
+    public void badMagicIsRejected() throws IOException {
+        byte[] patch = createPatch(new byte[10], new byte[10], new long[][] {{10, 0, 0}});
+        patch[0] = 'X';
+        assertRejected(patch);
+    }
+
+    @Test
+    public void truncatedPatchIsRejected() throws IOException {
+        Random random = new Random(1);
+        byte[] oldData = new byte[5000];
+        byte[] newData = new byte[6000];
+        random.nextBytes(oldData);
+        random.nextBytes(newData);
+        byte[] patch = createPatch(oldData, newData, new long[][] {{3000, 1000, -500}, {2000, 0, 0}});
+        for (int length = 0; length < patch.length; length += length < 40 ? 1 : 97) {
+            assertRejected(Arrays.copyOf(patch, length));
+        }
+        // The gzip trailer of the extra block
+        for (int length = patch.length - 8; length < patch.length; length++) {
+            assertRejected(Arrays.copyOf(patch, length));
+        }
+    }
+
+    @Test
+    public void corruptHeaderIsRejected() throws IOException {
+        byte[] patch = createPatch(new byte[10], new byte[10], new long[][] {{10, 0, 0}});
+        // Negative new size
+        byte[] corrupt = patch.clone();
+        corrupt[31] |= 0x80;
+        assertRejected(corrupt);
+        // Control block longer than the patch
+        corrupt = patch.clone();
+        corrupt[12] = 1;
+        assertRejected(corrupt);
+        // New size larger than the control blocks produce
+        corrupt = patch.clone();
+        corrupt[24] = 11;
+        assertRejected(corrupt);
+        // New size smaller than the control blocks produce
+        corrupt = patch.clone();
+        corrupt[24] = 9;
+        assertRejected(corrupt);
+    }
+
+    private void assertPatch(byte[] oldData, byte[] patch, byte[] expected) throws IOException {
+        Files.write(oldFile.toPath(), oldData);
+        Files.write(patchFile.toPath(), patch);
+        DownloadDigest digest = new DownloadDigest();
+        ApkPatcher.apply(oldFile, patchFile, newFile, digest);
+        assertArrayEquals(expected, Files.readAllBytes(newFile.toPath()));
+        assertEquals(CryptoUtils.calculateChecksum(new ByteArrayInputStream(expected)), digest.getChecksum());
+    }
+
+    private void assertRejected(byte[] patch) throws IOException {
+        Files.write(oldFile.toPath(), new byte[5000]);
+        Files.write(patchFile.toPath(), patch);
+        try {
+            ApkPatcher.apply(oldFile, patchFile, newFile, new DownloadDigest());
+            fail("Patch of " + patch.length + " bytes must be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    // Patch which turns the old data into the new data with the given control entries {diff, extra, seek}
+    private static byte[] createPatch(byte[] oldData, byte[] newData, long[][] controls) throws IOException {
+        ByteArrayOutputStream ctrl = new ByteArrayOutputStream();
+        ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        long oldPos = 0;
+        int newPos = 0;
+        for (long[] control : controls) {
+            for (int i = 0; i < 3; i++) {
+                ctrl.write(offtout(control[i]));
+            }
+            for (int i = 0; i < control[0]; i++) {
+                long pos = oldPos + i;
+                byte old = pos >= 0 && pos < oldData.length ? oldData[(int) pos] : 0;
+                diff.write(newData[newPos++] - old);
+            }
+            extra.write(newData, newPos, (int) control[1]);
+            newPos += control[1];
+            oldPos += control[0] + control[2];
+        }
+        assertEquals(newData.length, newPos);
+
+        byte[] ctrlBlock = gzip(ctrl.toByteArray());
+        byte[] diffBlock = gzip(diff.toByteArray());
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        patch.write("BSDIFFGZ".getBytes("US-ASCII"));
+        patch.write(offtout(ctrlBlock.length));
+        patch.write(offtout(diffBlock.length));
+        patch.write(offtout(newData.length));
+        patch.write(ctrlBlock);
+        patch.write(diffBlock);
+        patch.write(gzip(extra.toByteArray()));
+        return patch.toByteArray();
+    }
+
+    // Sign-magnitude little endian, as in bsdiff
+    private static byte[] offtout(long value) {
+        byte[] buffer = new byte[8];
+        long y = Math.abs(value);
+        for (int i = 0; i < 8; i++) {
+            buffer[i] = (byte) (y >>> (8 * i));
+        }
+        if (value < 0) {
+            buffer[7] |= 0x80;
+        }
+        return buffer;
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long y = 0;
+        for (int i = 7; i >= 0; i--) {
+            y = (y << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return y;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(data);
+        gos.close();
+        return bos.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = gis.read(buffer)) > 0) {
+            bos.write(buffer, 0, n);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.json.Application;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how the apps waiting for installation are split into batches and fallbacks.
+ */
+public class BulkInstallPlanTest {
+
+    private static final String SELF = "com.hmdm.launcher";
+
+    @Test
+    public void suitableApps() {
+        BulkInstallPlan plan = new BulkInstallPlan(true, true, SELF);
+        assertTrue(plan.isBulkInstallable(remove("a")));
+        assertTrue(plan.isBulkInstallable(install("a", "https://example.com/a.apk")));
+        assertFalse(plan.isBulkInstallable(install("a", null)));
+        assertFalse(plan.isBulkInstallable(install("a", "market://details?id=a")));
+        assertFalse(plan.isBulkInstallable(install("a", "file:///sdcard/a.apk")));
+        assertFalse(plan.isBulkInstallable(install("a", "https://example.com/a.xapk")));
+        assertFalse(plan.isBulkInstallable(install(SELF, "https://example.com/launcher.apk")));
+
+        // Streamed apps have no file, unless the device can't stream them
+        Application streamed = install("a", "https://example.com/a.apk");
+        streamed.setStreamInstall(true);
+        assertFalse(plan.isBulkInstallable(streamed));
+        assertTrue(new BulkInstallPlan(true, false, SELF).isBulkInstallable(streamed));
+
+        // Without multi-package sessions, only removals are done at once
+        BulkInstallPlan old = new BulkInstallPlan(false, true, SELF);
+        assertTrue(old.isBulkInstallable(remove("a")));
+        assertFalse(old.isBulkInstallable(install("a", "https://example.com/a.apk")));
+    }
+
+    @Test
+    public void atLeastTwoApps() {
+        BulkInstallPlan plan = new BulkInstallPlan(true, true, SELF);
+        assertFalse(plan.canInstallInBulk(Collections.<Application>emptyList()));
+        assertFalse(plan.canInstallInBulk(Arrays.asList(install("a", "https://example.com/a.apk"),
+                install("b", "market://details?id=b"))));
+        assertTrue(plan.canInstallInBulk(Arrays.asList(install("a", "https://example.com/a.apk"),
+                install("b", "market://details?id=b"), remove("c"))));
+    }
+
+    @Test
+    public void takeKeepsTheOrderOfTheRest() {
+        List<Application> applications = new ArrayList<>(Arrays.asList(
+                install("a", "https://example.com/a.apk"),
+                install("b", "market://details?id=b"),
+                remove("c"),
+                install(SELF, "https://example.com/launcher.apk"),
+                install("d", "https://example.com/d.apk"),
+                install("e", "file:///sdcard/e.apk"),
+                remove("f")));
+        BulkInstallPlan plan = new BulkInstallPlan(true, true, SELF);
+        plan.take(applications);
+        assertEquals(Arrays.asList("c", "f"), packages(plan.getRemovals()));
+        assertEquals(Arrays.asList("a", "d"), packages(plan.getInstalls()));
+        assertEquals(Arrays.asList("b", SELF, "e"), packages(applications));
+    }
+
+    @Test
+    public void batchesAndPrefetch() {
+        List<Application> applications = new ArrayList<>();
+        for (int n = 0; n < 25; n++) {
+            applications.add(install("app" + n, "https://example.com/" + n + ".apk"));
+        }
+        BulkInstallPlan plan = new BulkInstallPlan(true, true, SELF);
+        plan.take(applications);
+        assertEquals(3, plan.getBatchCount());
+        assertEquals(packages(applications(0, 10)), packages(plan.getBatch(0)));
+        assertEquals(packages(applications(10, 20)), packages(plan.getBatch(1)));
+        assertEquals(packages(applications(20, 25)), packages(plan.getBatch(2)));
+        // The next batch is downloaded along with the current one
+        assertEquals(packages(applications(0, 20)), packages(plan.getPrefetch(0)));
+        assertEquals(packages(applications(10, 25)), packages(plan.getPrefetch(1)));
+        assertEquals(packages(applications(20, 25)), packages(plan.getPrefetch(2)));
+
+        assertEquals(0, new BulkInstallPlan(true, true, SELF).getBatchCount());
+    }
+
+    @Test
+    public void fallbacks() {
+        List<Application> applications = new ArrayList<>(Arrays.asList(
+                remove("r1"), remove("r2"), remove("r3"),
+                install("a", "https://example.com/a.apk"),
+                install("b", "https://example.com/b.apk"),
+                install("c", "https://example.com/c.apk"),
+                install("d", "https://example.com/d.apk")));
+        BulkInstallPlan plan = new BulkInstallPlan(true, true, SELF);
+        plan.take(applications);
+
+        // Failed removals are retried one by one
+        plan.onRemoved(Collections.singletonMap("r2", "timeout"));
+        assertEquals(Arrays.asList("r2"), packages(plan.getFallback()));
+
+        // "b" failed to download, "c" failed to install
+        List<Application> batch = plan.getBatch(0);
+        plan.addFallback(batch.get(1));
+        Map<String, File> apks = new LinkedHashMap<>();
+        apks.put("a", new File("a.apk"));
+        apks.put("c", new File("c.apk"));
+        apks.put("d", new File("d.apk"));
+        Map<String, String> failures = new HashMap<>();
+        failures.put("c", "INSTALL_FAILED_INVALID_APK");
+        List<Application> failed = plan.onBatchInstalled(batch, apks, failures);
+
+        assertEquals(Arrays.asList("c"), packages(failed));
+        assertEquals(Arrays.asList("a", "d"), packages(plan.getInstalled()));
+        // A broken APK is not downloaded again
+        assertEquals(Arrays.asList("r2", "b"), packages(plan.getFallback()));
+    }
+
+    @Test
+    public void everythingFallsBackIfTheInstallerIsUnavailable() {
+        List<Application> applications = new ArrayList<>(Arrays.asList(
+                install("a", "https://example.com/a.apk"), remove("r"), install("b", "https://example.com/b.apk")));
+        BulkInstallPlan plan = new BulkInstallPlan(true, true, SELF);
+        plan.take(applications);
+        plan.fallBackAll();
+        assertEquals(Arrays.asList("r", "a", "b"), packages(plan.getFallback()));
+        assertTrue(plan.getInstalled().isEmpty());
+    }
+
+    private static List<Application> applications(int from, int to) {
+        List<Application> result = new ArrayList<>();
+        for (int n = from; n < to; n++) {
+            result.add(install("app" + n, "https://example.com/" + n + ".apk"));
+        }
+        return result;
+    }
+
+    private static List<String> packages(List<Application> applications) {
+        List<String> result = new ArrayList<>();
+        for (Application application : applications) {
+            result.add(application.getPkg());
+        }
+        return result;
+    }
+
+    private static Application install(String pkg, String url) {
+        Application application = new Application();
+        application.setPkg(pkg);
+        application.setUrl(url);
+        return application;
+    }
+
+    private static Application remove(String pkg) {
+        Application application = new Application();
+        application.setPkg(pkg);
+        application.setRemove(true);
+        return application;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the MD5 checksums of files: the block reads of CryptoUtils and the digest
+ * calculated while downloading must give the same result as the byte-by-byte reads they have replaced.
+ */
+public class CryptoUtilsTest {
+
+    @Test
+    public void knownChecksums() {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", checksum(""));
+        assertEquals("900150983cd24fb0d6963f7d28e17f72", checksum("abc"));
+        // Leading zeros are kept
+        assertEquals("0000000018e6137ac2caab16074784a6", checksum("jk8ssl"));
+    }
+
+    @Test
+    public void downloadDigestMatchesFileChecksum() throws IOException {
+        File file = createFile(3 * 1024 * 1024 + 17);
+        try {
+            byte[] content = new byte[(int) file.length()];
+            InputStream is = new FileInputStream(file);
+            try {
+                int offset = 0;
+                int read;
+                while (offset < content.length && (read = is.read(content, offset, content.length - offset)) > 0) {
+                    offset += read;
+                }
+            } finally {
+                is.close();
+            }
+
+            // Resumed download: the saved part is hashed from the file, the rest as it arrives in chunks of any size
+            DownloadDigest digest = new DownloadDigest();
+            int offset = 1000003;
+            digest.updateFromFile(file, offset);
+            Random random = new Random(1);
+            while (offset < content.length) {
+                int length = Math.min(content.length - offset, 1 + random.nextInt(100000));
+                digest.update(content, offset, length);
+                offset += length;
+            }
+            digest.finish();
+
+            String expected = CryptoUtils.calculateChecksum(new FileInputStream(file));
+            assertEquals(expected, digest.getChecksum());
+            assertEquals(expected, legacyChecksum(new FileInputStream(file)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void benchmarkChecksumOf100Mb() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        File file = createFile(100 * 1024 * 1024);
+        try {
+            long start = System.nanoTime();
+            String legacy = legacyChecksum(new FileInputStream(file));
+            long legacyTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            String checksum = CryptoUtils.calculateChecksum(new FileInputStream(file));
+            long time = System.nanoTime() - start;
+
+            assertEquals(legacy, checksum);
+            assertTrue(String.format("MD5 of 100 MB: byte reads %d ms, block reads %d ms",
+                    legacyTime / 1000000, time / 1000000), time < legacyTime);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String checksum(String text) {
+        return CryptoUtils.calculateChecksum(new ByteArrayInputStream(text.getBytes()));
+    }
+
+    private static File createFile(int size) throws IOException {
+        File file = File.createTempFile("checksum", ".bin");
+        Random random = new Random(size);
+        byte[] buffer = new byte[64 * 1024];
+        OutputStream os = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                os.write(buffer, 0, Math.min(buffer.length, size - written));
+            }
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    // The implementation replaced by the block reads
+    private static String legacyChecksum(InputStream fileContent) throws IOException {
+        MessageDigest md = CryptoUtils.createChecksumDigest();
+        try (InputStream is = new BufferedInputStream(fileContent);
+             DigestInputStream dis = new DigestInputStream(is, md)) {
+            while (dis.read() != -1) {
+                // digest will consume the content when read() called
+            }
+        }
+        String hashtext = new BigInteger(1, md.digest()).toString(16);
+        while (hashtext.length() < 32) {
+            hashtext = "0" + hashtext;
+        }
+        return hashtext;
+    }
+}
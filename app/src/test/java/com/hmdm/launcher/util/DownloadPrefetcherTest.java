@@ -0,0 +1,512 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the prefetched downloads against a stubbed downloader: files with the same name
+ * and different URLs, cancellation, and the foreground download waiting for a staged one.
+ * Staging is checked against a set standing for the download cache.
+ */
+public class DownloadPrefetcherTest {
+
+    private static final long TIMEOUT = 10000;
+
+    private File dir;
+    private Context context;
+
+    // A download writes the URL to the temporary file; the downloads of a URL can be held or made to fail
+    private static class Downloads {
+        final List<String> urls = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, CountDownLatch> started = new HashMap<>();
+        final Map<String, CountDownLatch> released = new HashMap<>();
+        final Map<String, Exception> errors = new HashMap<>();
+
+        synchronized void hold(String url) {
+            started.put(url, new CountDownLatch(1));
+            released.put(url, new CountDownLatch(1));
+        }
+
+        void awaitStart(String url) {
+            CountDownLatch latch;
+            synchronized (this) {
+                latch = started.get(url);
+            }
+            await(latch);
+        }
+
+        void release(String url) {
+            CountDownLatch latch;
+            synchronized (this) {
+                latch = released.get(url);
+            }
+            latch.countDown();
+        }
+
+        File download(Context context, String url, DownloadDigest digest) throws Exception {
+            urls.add(url);
+            CountDownLatch startedLatch;
+            CountDownLatch releasedLatch;
+            Exception error;
+            synchronized (this) {
+                startedLatch = started.get(url);
+                releasedLatch = released.get(url);
+                error = errors.get(url);
+            }
+            if (startedLatch != null) {
+                startedLatch.countDown();
+                await(releasedLatch);
+            }
+            if (error != null) {
+                throw error;
+            }
+            File file = new File(InstallUtils.getAppTempPath(context, url));
+            byte[] content = url.getBytes("UTF-8");
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(content);
+            } finally {
+                fos.close();
+            }
+            written.add(url);
+            if (digest != null) {
+                digest.update(content, 0, content.length);
+                digest.finish();
+            }
+            return file;
+        }
+    }
+
+    private static class TestPrefetcher extends DownloadPrefetcher {
+        final Downloads downloads;
+        final Context context;
+
+        TestPrefetcher(Context context, Stager stager, Downloads downloads) {
+            super(context, stager);
+            this.context = context;
+            this.downloads = downloads;
+        }
+
+        @Override
+        File downloadFile(String url, InstallUtils.DownloadProgress progressHandler, DownloadDigest digest) throws Exception {
+            return downloads.download(context, url, digest);
+        }
+    }
+
+    // Staged files go to a set instead of the download cache
+    private static class TestStager extends DownloadPrefetcher.Stager {
+        final Downloads downloads = new Downloads();
+        final List<String> cached = Collections.synchronizedList(new ArrayList<String>());
+        // Cached on download; otherwise the server is like one without validators
+        volatile boolean cacheable = true;
+        // If set, the next cache lookup waits for releaseLookup
+        volatile CountDownLatch lookupStarted;
+        CountDownLatch releaseLookup;
+
+        @Override
+        File download(Context context, String url) throws Exception {
+            File file = downloads.download(context, url, null);
+            if (cacheable) {
+                cached.add(url);
+            }
+            return file;
+        }
+
+        @Override
+        boolean isCached(Context context, String url) {
+            CountDownLatch latch = lookupStarted;
+            if (latch != null) {
+                lookupStarted = null;
+                latch.countDown();
+                await(releaseLookup);
+            }
+            return cached.contains(url);
+        }
+
+        @Override
+        void execute(Runnable task) {
+            new Thread(task).start();
+        }
+    }
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("prefetch").toFile();
+        context = new ContextWrapper(null) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public File getExternalFilesDir(String type) {
+                return dir;
+            }
+        };
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void prefetchedFileIsUsed() throws Exception {
+        Downloads downloads = new Downloads();
+        DownloadPrefetcher prefetcher = new TestPrefetcher(context, new TestStager(), downloads);
+        String url = "http://example.com/files/app.apk";
+        prefetcher.prefetch(url, null);
+        // Already queued
+        prefetcher.prefetch(url, null);
+
+        final int[] progress = new int[1];
+        DownloadDigest digest = new DownloadDigest();
+        File file = prefetcher.download(url, new InstallUtils.DownloadProgress() {
+            @Override
+            public void onDownloadProgress(int percent, long total, long current) {
+                progress[0] = percent;
+            }
+        }, digest);
+        assertContent(url, file);
+        assertEquals(100, progress[0]);
+        assertEquals(CryptoUtils.calculateChecksum(new FileInputStream(file)), digest.getChecksum());
+        assertEquals(Arrays.asList(url), downloads.urls);
+
+        // Not prefetched: downloaded in the calling thread
+        String other = "http://example.com/files/other.apk";
+        assertContent(other, prefetcher.download(other, progressStub(), null));
+        assertEquals(Arrays.asList(url, other), downloads.urls);
+    }
+
+    @Test
+    public void samePathDifferentUrl() throws Exception {
+        Downloads downloads = new Downloads();
+        DownloadPrefetcher prefetcher = new TestPrefetcher(context, new TestStager(), downloads);
+        String first = "http://example.com/v1/app.apk";
+        String second = "http://example.com/v2/app.apk";
+        prefetcher.prefetch(first, null);
+        // Same temporary file: not queued until the first one is used
+        prefetcher.prefetch(second, null);
+        assertContent(first, prefetcher.download(first, progressStub(), null));
+
+        // The first file is still there (being installed), so the second one is not prefetched over it
+        prefetcher.prefetch(second, null);
+        File file = prefetcher.download(second, progressStub(), null);
+        assertContent(second, file);
+        assertEquals(Arrays.asList(first, second), downloads.urls);
+        file.delete();
+
+        // A prefetch of another URL with the same name is replaced by the foreground download
+        prefetcher.prefetch(first, null);
+        assertContent(second, prefetcher.download(second, progressStub(), null));
+        assertEquals(Arrays.asList(first, second, first, second), downloads.urls);
+    }
+
+    @Test
+    public void activeDownloadIsNotPrefetched() throws Exception {
+        Downloads downloads = new Downloads();
+        final DownloadPrefetcher prefetcher = new TestPrefetcher(context, new TestStager(), downloads);
+        final String url = "http://example.com/files/app.apk";
+        downloads.hold(url);
+        final Exception[] error = new Exception[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetcher.download(url, progressStub(), null);
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            }
+        });
+        thread.start();
+        downloads.awaitStart(url);
+        // The foreground download of the same file is running
+        prefetcher.prefetch("http://example.com/v2/app.apk", null);
+        downloads.release(url);
+        thread.join(TIMEOUT);
+        assertEquals(null, error[0]);
+        assertEquals(Arrays.asList(url), downloads.urls);
+    }
+
+    @Test
+    public void failedPrefetchIsReported() throws Exception {
+        Downloads downloads = new Downloads();
+        DownloadPrefetcher prefetcher = new TestPrefetcher(context, new TestStager(), downloads);
+        String url = "http://example.com/files/app.apk";
+        downloads.errors.put(url, new IOException("Connection reset"));
+        prefetcher.prefetch(url, null);
+        try {
+            prefetcher.download(url, progressStub(), null);
+            fail("The error of the prefetch must be thrown");
+        } catch (IOException e) {
+            assertEquals("Connection reset", e.getMessage());
+        }
+        // Not downloaded again in the calling thread
+        assertEquals(Arrays.asList(url), downloads.urls);
+    }
+
+    @Test
+    public void cancelDeletesPrefetchedFiles() throws Exception {
+        Downloads downloads = new Downloads();
+        DownloadPrefetcher prefetcher = new TestPrefetcher(context, new TestStager(), downloads);
+        String done = "http://example.com/files/done.apk";
+        prefetcher.prefetch(done, null);
+        awaitFile(done, true);
+        prefetcher.cancel();
+        awaitFile(done, false);
+
+        // Both download threads are busy, so the third prefetch is queued
+        String first = "http://example.com/files/first.apk";
+        String second = "http://example.com/files/second.apk";
+        String queued = "http://example.com/files/queued.apk";
+        downloads.hold(first);
+        downloads.hold(second);
+        prefetcher.prefetch(first, null);
+        prefetcher.prefetch(second, null);
+        downloads.awaitStart(first);
+        downloads.awaitStart(second);
+        prefetcher.prefetch(queued, null);
+
+        prefetcher.cancel();
+        downloads.release(first);
+        downloads.release(second);
+        // The running downloads complete and remove their files, the queued one doesn't start
+        awaitWritten(downloads, first);
+        awaitWritten(downloads, second);
+        awaitFile(first, false);
+        awaitFile(second, false);
+        Thread.sleep(100);
+        assertFalse(downloads.urls.contains(queued));
+
+        // The cancelled prefetch is not used
+        downloads.urls.clear();
+        assertContent(first, prefetcher.download(first, progressStub(), null));
+        assertEquals(Arrays.asList(first), downloads.urls);
+    }
+
+    @Test
+    public void downloadWaitsForStaging() throws Exception {
+        TestStager stager = new TestStager();
+        Downloads downloads = new Downloads();
+        final DownloadPrefetcher prefetcher = new TestPrefetcher(context, stager, downloads);
+        final String url = "http://example.com/files/app.apk";
+        stager.downloads.hold(url);
+        stager.stage(context, url);
+        stager.downloads.awaitStart(url);
+
+        // Prefetching the file being staged would download it twice
+        prefetcher.prefetch(url, null);
+        final CountDownLatch downloaded = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prefetcher.download(url, progressStub(), null);
+                    downloaded.countDown();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        thread.start();
+        assertFalse(downloaded.await(200, TimeUnit.MILLISECONDS));
+        assertTrue(downloads.urls.isEmpty());
+
+        stager.downloads.release(url);
+        await(downloaded);
+        // The foreground download starts after the staged file is in the cache
+        assertEquals(Arrays.asList(url), stager.cached);
+        assertEquals(Arrays.asList(url), downloads.urls);
+    }
+
+    @Test
+    public void stagedFileIsNotStagedAgain() throws Exception {
+        TestStager stager = new TestStager();
+        String url = "http://example.com/files/app.apk";
+        stageAndWait(stager, url);
+        stageAndWait(stager, url);
+        assertEquals(Arrays.asList(url), stager.downloads.urls);
+        // The staged copy is in the cache, the temporary file is removed
+        assertFalse(new File(InstallUtils.getAppTempPath(context, url)).exists());
+
+        // Evicted: not staged again until the next update window
+        stager.cached.remove(url);
+        stageAndWait(stager, url);
+        assertEquals(Arrays.asList(url), stager.downloads.urls);
+        stager.reset();
+        stageAndWait(stager, url);
+        assertEquals(Arrays.asList(url, url), stager.downloads.urls);
+    }
+
+    @Test
+    public void uncacheableFileIsNotStagedAgain() throws Exception {
+        TestStager stager = new TestStager();
+        String uncacheable = "http://example.com/files/uncacheable.apk";
+        String other = "http://example.com/files/other.apk";
+        stager.cacheable = false;
+        stageAndWait(stager, uncacheable);
+        // Not a reason to stop staging
+        stager.cacheable = true;
+        stageAndWait(stager, other);
+        // Also after the update window
+        stager.reset();
+        stageAndWait(stager, uncacheable);
+        assertEquals(Arrays.asList(uncacheable, other), stager.downloads.urls);
+    }
+
+    @Test
+    public void evictedFileStopsStaging() throws Exception {
+        TestStager stager = new TestStager();
+        String first = "http://example.com/files/first.apk";
+        String second = "http://example.com/files/second.apk";
+        String third = "http://example.com/files/third.apk";
+        String fourth = "http://example.com/files/fourth.apk";
+        stageAndWait(stager, first);
+        // The cache evicts the first file to store the second one, found when the second one is staged
+        stageAndWait(stager, second);
+        stager.cached.remove(first);
+        stageAndWait(stager, third);
+        stageAndWait(stager, fourth);
+        assertEquals(Arrays.asList(first, second, third), stager.downloads.urls);
+
+        stager.reset();
+        stageAndWait(stager, fourth);
+        assertEquals(Arrays.asList(first, second, third, fourth), stager.downloads.urls);
+        // Already downloaded
+        File file = new File(InstallUtils.getAppTempPath(context, first));
+        assertTrue(file.createNewFile());
+        stageAndWait(stager, first);
+        assertEquals(Arrays.asList(first, second, third, fourth), stager.downloads.urls);
+    }
+
+    @Test
+    public void cacheLookupDoesNotBlockWaiters() throws Exception {
+        final TestStager stager = new TestStager();
+        final String url = "http://example.com/files/app.apk";
+        stager.lookupStarted = new CountDownLatch(1);
+        stager.releaseLookup = new CountDownLatch(1);
+        CountDownLatch lookupStarted = stager.lookupStarted;
+        Thread staging = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stager.stage(context, url);
+            }
+        });
+        staging.start();
+        await(lookupStarted);
+
+        // A foreground download checks the staged files while the cache is being queried
+        final CountDownLatch checked = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stager.waitForStaging(InstallUtils.getAppTempPath(context, "http://example.com/other.apk"));
+                    checked.countDown();
+                } catch (InterruptedException e) {
+                }
+            }
+        }).start();
+        try {
+            assertTrue(checked.await(1000, TimeUnit.MILLISECONDS));
+        } finally {
+            stager.releaseLookup.countDown();
+        }
+        staging.join(TIMEOUT);
+        stager.waitForStaging(InstallUtils.getAppTempPath(context, url));
+        assertEquals(Arrays.asList(url), stager.downloads.urls);
+    }
+
+    private void stageAndWait(DownloadPrefetcher.Stager stager, String url) throws InterruptedException {
+        stager.stage(context, url);
+        stager.waitForStaging(InstallUtils.getAppTempPath(context, url));
+    }
+
+    private static InstallUtils.DownloadProgress progressStub() {
+        return new InstallUtils.DownloadProgress() {
+            @Override
+            public void onDownloadProgress(int progress, long total, long current) {
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void awaitWritten(Downloads downloads, String url) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!downloads.written.contains(url)) {
+            assertTrue(url + " is not downloaded", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitFile(String url, boolean exists) throws InterruptedException {
+        File file = new File(InstallUtils.getAppTempPath(context, url));
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (file.exists() != exists) {
+            assertTrue(file + (exists ? " is not created" : " is not deleted"), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertContent(String url, File file) throws IOException {
+        assertArrayEquals(url.getBytes("UTF-8"), Files.readAllBytes(file.toPath()));
+    }
+}
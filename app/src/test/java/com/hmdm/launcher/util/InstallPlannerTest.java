@@ -0,0 +1,310 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.hmdm.launcher.json.Application;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks InstallPlanner against the quadratic planning loop it has replaced.
+ */
+public class InstallPlannerTest {
+
+    private static final Context context = new ContextWrapper(null) {
+        @Override
+        public String getPackageName() {
+            return "com.hmdm.launcher";
+        }
+    };
+
+    @BeforeClass
+    public static void setUp() {
+        // Downgrades are logged remotely; no rules, so nothing is saved
+        RemoteLogger.setMatcher(LogRuleMatcher.compile(Collections.emptyList()));
+    }
+
+    @Test
+    public void duplicatesArePlannedOnce() {
+        Application a1 = app("com.example.a", "1.0", false);
+        Application a2 = app("com.example.A", "1.0", false);
+        Application a3 = app("com.example.a", "1.0", true);
+        Application current = app("com.example.b", "2.0", false);
+        Application b = app("com.example.b", "2.0", false);
+        List<Application> plan = plan(Arrays.asList(a1, a2, a3, b), Collections.singletonList(current),
+                Collections.<String, File>emptyMap(), installed("com.example.a", "1.0"));
+        // The current list goes first, then removals, then installs; a1 is installed already
+        assertEquals(Arrays.asList(current, a3), plan);
+    }
+
+    @Test
+    public void removals() {
+        Application matching = app("com.example.a", "1.0", true);
+        Application otherVersion = app("com.example.b", "1.0", true);
+        Application anyVersion = app("com.example.c", "0", true);
+        Application notInstalled = app("com.example.d", "1.0", true);
+        List<Application> plan = plan(Arrays.asList(matching, otherVersion, anyVersion, notInstalled),
+                Collections.<Application>emptyList(), Collections.<String, File>emptyMap(),
+                installed("com.example.a", "1.0", "com.example.b", "2.0", "com.example.c", "3.0"));
+        assertEquals(Arrays.asList(matching, anyVersion), plan);
+    }
+
+    @Test
+    public void downgradeRequiresRemovalOfInstalledVersion() {
+        Application downgradeA = app("com.example.a", "1.0", false);
+        Application removeA = app("com.example.a", "2.0", true);
+        Application downgradeB = app("com.example.b", "1.0", false);
+        Application upgradeC = app("com.example.c", "3.1", false);
+        Application skipVersionD = app("com.example.d", "1.0", false);
+        skipVersionD.setSkipVersion(true);
+        List<Application> plan = plan(Arrays.asList(downgradeA, removeA, downgradeB, upgradeC, skipVersionD),
+                Collections.<Application>emptyList(), Collections.<String, File>emptyMap(),
+                installed("com.example.a", "2.0", "com.example.b", "2.0", "com.example.c", "3.0", "com.example.d", "2.0"));
+        assertEquals(Arrays.asList(removeA, downgradeA, upgradeC), plan);
+    }
+
+    @Test
+    public void pendingInstallationsAndSystemAppsAreSkipped() {
+        Application pending = app("com.example.a", "1.0", false);
+        Application system = app("com.example.b", "1.0", false);
+        system.setUrl(null);
+        Application web = app("com.example.c", "1.0", false);
+        web.setType(Application.TYPE_WEB);
+        Application install = app("com.example.d", "1.0", false);
+        Map<String, File> pendingInstallations = new HashMap<>();
+        pendingInstallations.put("com.example.a", new File("a.apk"));
+        List<Application> plan = plan(Arrays.asList(pending, system, web, install),
+                Collections.<Application>emptyList(), pendingInstallations, installed());
+        assertEquals(Collections.singletonList(install), plan);
+    }
+
+    @Test
+    public void randomConfigsMatchLegacyPlanning() {
+        Random random = new Random(20240611);
+        for (int n = 0; n < 2000; n++) {
+            int packages = 1 + random.nextInt(20);
+            Map<String, InstallPlanner.InstalledVersion> installed = randomInstalled(random, packages);
+            List<Application> applications = randomApplications(random, packages, random.nextInt(30));
+            List<Application> current = randomApplications(random, packages, random.nextInt(3));
+            Map<String, File> pendingInstallations = new HashMap<>();
+            if (random.nextInt(4) == 0) {
+                pendingInstallations.put("com.example.app" + random.nextInt(packages), new File("pending.apk"));
+            }
+
+            List<Application> expected = new ArrayList<>(current);
+            legacyPlan(applications, expected, pendingInstallations, installed);
+            List<Application> plan = new InstallPlanner(context, installed::get).plan(applications, current, pendingInstallations);
+            assertEquals("Iteration " + n, expected, plan);
+        }
+    }
+
+    @Test
+    public void benchmarkPlanning() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        for (int count : new int[] {100, 1000, 5000}) {
+            Random random = new Random(count);
+            Map<String, InstallPlanner.InstalledVersion> installed = new HashMap<>();
+            List<Application> applications = new ArrayList<>();
+            for (int n = 0; n < count; n++) {
+                String pkg = "com.example.app" + n;
+                // Most apps are up to date, some require an update or a removal
+                int action = random.nextInt(10);
+                installed.put(pkg, new InstallPlanner.InstalledVersion("1.0." + n, 0));
+                applications.add(app(pkg, action == 0 ? "1.1." + n : "1.0." + n, action == 1));
+            }
+            Map<String, File> pendingInstallations = Collections.emptyMap();
+
+            // Best of several runs, the first ones warm up the JIT
+            long legacyTime = Long.MAX_VALUE;
+            long time = Long.MAX_VALUE;
+            for (int run = 0; run < 10; run++) {
+                long start = System.nanoTime();
+                List<Application> expected = new ArrayList<>();
+                legacyPlan(applications, expected, pendingInstallations, installed);
+                legacyTime = Math.min(legacyTime, System.nanoTime() - start);
+                start = System.nanoTime();
+                List<Application> plan = new InstallPlanner(context, installed::get).plan(applications,
+                        Collections.<Application>emptyList(), pendingInstallations);
+                time = Math.min(time, System.nanoTime() - start);
+                assertEquals(expected, plan);
+            }
+            // Package manager calls are not included: on a device, the legacy loop also made one binder call per app.
+            // Both take a fraction of a millisecond on the small list, the quadratic loop falls behind from a thousand apps
+            if (count >= 1000) {
+                assertTrue(String.format("Planning %d apps: legacy %.2f ms, planner %.2f ms",
+                        count, legacyTime / 1e6, time / 1e6), time < legacyTime);
+            }
+        }
+    }
+
+    private static List<Application> plan(List<Application> applications, List<Application> current,
+                                          Map<String, File> pendingInstallations,
+                                          Map<String, InstallPlanner.InstalledVersion> installed) {
+        return new InstallPlanner(context, installed::get).plan(applications, current, pendingInstallations);
+    }
+
+    private static Application app(String pkg, String version, boolean remove) {
+        Application application = new Application();
+        application.setPkg(pkg);
+        application.setVersion(version);
+        application.setRemove(remove);
+        application.setUrl("https://example.com/" + pkg + "-" + version + ".apk");
+        return application;
+    }
+
+    // Package name and version name pairs
+    private static Map<String, InstallPlanner.InstalledVersion> installed(String... versions) {
+        Map<String, InstallPlanner.InstalledVersion> result = new HashMap<>();
+        for (int n = 0; n < versions.length; n += 2) {
+            result.put(versions[n], new InstallPlanner.InstalledVersion(versions[n + 1], 0));
+        }
+        return result;
+    }
+
+    private static Map<String, InstallPlanner.InstalledVersion> randomInstalled(Random random, int packages) {
+        Map<String, InstallPlanner.InstalledVersion> result = new HashMap<>();
+        for (int n = 0; n < packages; n++) {
+            if (random.nextInt(3) != 0) {
+                result.put("com.example.app" + n, new InstallPlanner.InstalledVersion(randomVersion(random), 1 + random.nextInt(3)));
+            }
+        }
+        return result;
+    }
+
+    private static List<Application> randomApplications(Random random, int packages, int count) {
+        List<Application> result = new ArrayList<>();
+        for (int n = 0; n < count; n++) {
+            String pkg = "com.example.app" + random.nextInt(packages);
+            if (random.nextInt(10) == 0) {
+                pkg = pkg.toUpperCase();
+            }
+            Application application = app(pkg, random.nextInt(8) == 0 ? "0" : randomVersion(random), random.nextInt(4) == 0);
+            if (random.nextInt(4) == 0) {
+                application.setCode(random.nextInt(4));
+            }
+            application.setSkipVersion(random.nextInt(10) == 0);
+            if (random.nextInt(15) == 0) {
+                application.setUrl(random.nextBoolean() ? null : " ");
+            }
+            if (random.nextInt(15) == 0) {
+                application.setType(random.nextBoolean() ? Application.TYPE_WEB : Application.TYPE_APP);
+            }
+            result.add(application);
+        }
+        return result;
+    }
+
+    private static String randomVersion(Random random) {
+        return (1 + random.nextInt(2)) + "." + random.nextInt(3) + (random.nextInt(5) == 0 ? "-beta" : "");
+    }
+
+    // The planning loop replaced by InstallPlanner, with the package manager replaced by a map.
+    // Version comparison is shared, its equivalence is checked by ParsedVersionTest
+    private static void legacyPlan(List<Application> applications, List<Application> applicationsForInstall,
+                                   Map<String, File> pendingInstallations,
+                                   Map<String, InstallPlanner.InstalledVersion> installed) {
+        for (Application a : applications) {
+            if ((a.getType() == null || a.getType().equals(Application.TYPE_APP)) && a.isRemove() &&
+                    !isInList(applicationsForInstall, a)) {
+                applicationsForInstall.add(a);
+            }
+        }
+        for (Application a : applications) {
+            if ((a.getType() == null || a.getType().equals(Application.TYPE_APP)) && !a.isRemove() &&
+                    !pendingInstallations.containsKey(a.getPkg()) && !isInList(applicationsForInstall, a)) {
+                applicationsForInstall.add(a);
+            }
+        }
+        Iterator<Application> it = applicationsForInstall.iterator();
+
+        while (it.hasNext()) {
+            Application application = it.next();
+            if ((application.getUrl() == null || application.getUrl().trim().equals("")) && !application.isRemove()) {
+                it.remove();
+                continue;
+            }
+
+            InstallPlanner.InstalledVersion packageInfo = installed.get(application.getPkg());
+            if (packageInfo == null) {
+                if (application.isRemove()) {
+                    it.remove();
+                }
+                continue;
+            }
+
+            if (application.isRemove() && !application.getVersion().equals("0") &&
+                    !InstallUtils.areVersionsEqual(packageInfo.versionName, packageInfo.versionCode, application.getVersion(), application.getCode())) {
+                it.remove();
+                continue;
+            }
+
+            if (!application.isRemove() &&
+                    (application.isSkipVersion() || application.getVersion().equals("0") ||
+                            InstallUtils.areVersionsEqual(packageInfo.versionName, packageInfo.versionCode, application.getVersion(), application.getCode()))) {
+                it.remove();
+                continue;
+            }
+
+            if (!application.isRemove() &&
+                    InstallUtils.compareVersions(packageInfo.versionName, packageInfo.versionCode, application.getVersion(), application.getCode()) > 0) {
+                boolean canDowngrade = false;
+                for (Application a : applications) {
+                    if (a.getPkg().equalsIgnoreCase(application.getPkg()) && a.isRemove() &&
+                            InstallUtils.areVersionsEqual(packageInfo.versionName, packageInfo.versionCode, a.getVersion(), a.getCode())) {
+                        canDowngrade = true;
+                        break;
+                    }
+                }
+                if (!canDowngrade) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static boolean isInList(List<Application> applicationsForInstall, Application a) {
+        for (Application b : applicationsForInstall) {
+            if (a.getPkg().equalsIgnoreCase(b.getPkg()) &&
+                    a.getVersion().equalsIgnoreCase(b.getVersion()) &&
+                    a.isRemove() == b.isRemove()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the completion futures, the common deadline of awaitAll() and the install statistics.
+ * The statistics are kept for the process lifetime, so each test uses its own package names.
+ */
+public class InstallTrackerTest {
+
+    // Real time, as SystemClock is not available on the JVM
+    private static class TestTracker extends InstallTracker {
+        @Override
+        long now() {
+            return System.nanoTime() / 1000000;
+        }
+    }
+
+    // Time set by the test
+    private static class ManualTracker extends InstallTracker {
+        long time;
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @Test
+    public void completedBeforeAwait() throws InterruptedException {
+        InstallTracker tracker = new TestTracker();
+        InstallTracker.InstallFuture future = tracker.start("com.example.early", new File("early.apk"));
+        assertFalse(future.isDone());
+        assertSame(future, tracker.complete("com.example.early", true));
+        assertTrue(future.isDone());
+        assertTrue(future.isSuccess());
+        assertTrue(tracker.isEmpty());
+        assertEquals(Collections.<String>emptyList(), tracker.awaitAll(10000));
+        // Completion of a package which is not pending
+        assertNull(tracker.complete("com.example.early", true));
+    }
+
+    @Test
+    public void completionWakesTheWaiter() throws InterruptedException {
+        final InstallTracker tracker = new TestTracker();
+        tracker.start("com.example.wake", new File("wake.apk"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                tracker.complete("com.example.wake", false);
+            }
+        });
+        long start = System.nanoTime();
+        thread.start();
+        assertEquals(Collections.<String>emptyList(), tracker.awaitAll(30000));
+        assertTrue((System.nanoTime() - start) / 1000000 < 10000);
+        thread.join();
+    }
+
+    @Test
+    public void timeoutsAreReported() throws InterruptedException {
+        InstallTracker tracker = new TestTracker();
+        String[] packages = {"com.example.t1", "com.example.t2", "com.example.t3", "com.example.t4", "com.example.t5"};
+        for (String packageName : packages) {
+            tracker.start(packageName, new File(packageName + ".apk"));
+        }
+        tracker.complete("com.example.t3", true);
+
+        long start = System.nanoTime();
+        List<String> timedOut = tracker.awaitAll(500);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        Collections.sort(timedOut);
+        assertEquals(Arrays.asList("com.example.t1", "com.example.t2", "com.example.t4", "com.example.t5"), timedOut);
+        // One deadline for all packages rather than a timeout per package (4 x 500 ms)
+        assertTrue("Waited " + elapsed + " ms", elapsed >= 490 && elapsed < 1500);
+
+        // Timed out installations are still pending
+        Map<String, File> pending = tracker.getPendingFiles();
+        assertEquals(4, pending.size());
+        assertEquals(new File("com.example.t1.apk"), pending.get("com.example.t1"));
+        assertEquals(1, InstallTracker.getStats("com.example.t1").getTimeouts());
+        assertEquals(0, InstallTracker.getStats("com.example.t3").getTimeouts());
+    }
+
+    @Test
+    public void newInstallationSupersedesPending() throws InterruptedException {
+        InstallTracker tracker = new TestTracker();
+        InstallTracker.InstallFuture first = tracker.start("com.example.again", new File("v1.apk"));
+        InstallTracker.InstallFuture second = tracker.start("com.example.again", new File("v2.apk"));
+
+        // The waiter of the first installation is released, but it didn't succeed
+        assertTrue(first.await(0));
+        assertFalse(first.isSuccess());
+        assertFalse(second.isDone());
+        assertEquals(Collections.singletonMap("com.example.again", new File("v2.apk")), tracker.getPendingFiles());
+
+        assertSame(second, tracker.complete("com.example.again", true));
+        assertTrue(second.isSuccess());
+        assertNull(tracker.complete("com.example.again", true));
+        // The superseded installation is not counted
+        assertEquals(1, InstallTracker.getStats("com.example.again").getInstalls());
+    }
+
+    @Test
+    public void statistics() {
+        assertNull(InstallTracker.getStats("com.example.stats"));
+        ManualTracker tracker = new ManualTracker();
+
+        tracker.time = 1000;
+        tracker.start("com.example.stats", new File("stats.apk"));
+        tracker.time = 1300;
+        assertEquals(300, tracker.complete("com.example.stats", true).getLatency());
+
+        tracker.time = 5000;
+        tracker.start("com.example.stats", new File("stats.apk"));
+        tracker.time = 5100;
+        tracker.complete("com.example.stats", false);
+
+        InstallTracker.InstallStats stats = InstallTracker.getStats("com.example.stats");
+        assertEquals(1, stats.getInstalls());
+        assertEquals(1, stats.getFailures());
+        assertEquals(0, stats.getTimeouts());
+        assertEquals(100, stats.getLastLatency());
+        assertEquals(200, stats.getAverageLatency());
+
+        // A copy is returned
+        tracker.time = 6000;
+        tracker.start("com.example.stats", new File("stats.apk"));
+        tracker.complete("com.example.stats", true);
+        assertEquals(1, stats.getInstalls());
+        assertEquals(2, InstallTracker.getStats("com.example.stats").getInstalls());
+    }
+}
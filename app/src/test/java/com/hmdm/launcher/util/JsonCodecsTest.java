@@ -0,0 +1,160 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdm.launcher.json.Action;
+import com.hmdm.launcher.json.DetailedInfo;
+import com.hmdm.launcher.json.DeviceInfo;
+import com.hmdm.launcher.json.RemoteFile;
+import com.hmdm.launcher.json.RemoteLogItem;
+import com.hmdm.launcher.json.ServerConfig;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the shared codecs read and write the same JSON as a fresh ObjectMapper,
+ * which was created for each call before.
+ */
+public class JsonCodecsTest {
+
+    @Test
+    public void serverConfigRoundTrip() throws Exception {
+        Random random = new Random(20240611);
+        for (int n = 0; n < 200; n++) {
+            ServerConfig config = RandomModels.createConfig(random, random.nextInt(20));
+            String legacy = new ObjectMapper().writeValueAsString(config);
+            String json = JsonCodecs.writeServerConfig(config);
+            assertEquals(legacy, json);
+
+            // All ways of reading give the config written before
+            assertEquals(json, JsonCodecs.writeServerConfig(JsonCodecs.readServerConfig(json)));
+            assertEquals(json, JsonCodecs.writeServerConfig(JsonCodecs.readServerConfig(
+                    new ByteArrayInputStream(json.getBytes("UTF-8")))));
+            JsonParser parser = JsonCodecs.getMapper().getFactory().createParser(json);
+            assertEquals(json, JsonCodecs.writeServerConfig(JsonCodecs.readServerConfig(parser)));
+            assertEquals(json, JsonCodecs.writeServerConfig(new ObjectMapper().readValue(json, ServerConfig.class)));
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            JsonCodecs.writeServerConfig(os, config);
+            // The stream is left open for the caller
+            os.write('\n');
+            assertEquals(json + "\n", os.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void otherModelsRoundTrip() throws Exception {
+        Random random = new Random(1);
+        Class<?>[] types = {RemoteFile.class, Action.class, DeviceInfo.class, DetailedInfo.class, RemoteLogItem.class};
+        for (int n = 0; n < 100; n++) {
+            for (Class<?> type : types) {
+                Object model = RandomModels.create(type, random);
+                String json = JsonCodecs.getMapper().writeValueAsString(model);
+                assertEquals(new ObjectMapper().writeValueAsString(model), json);
+                // Some models don't read back exactly what they write (DeviceInfo creates an empty permission list)
+                assertEquals(new ObjectMapper().writeValueAsString(new ObjectMapper().readValue(json, type)),
+                        JsonCodecs.getMapper().writeValueAsString(JsonCodecs.getMapper().readValue(json, type)));
+            }
+        }
+    }
+
+    @Test
+    public void unknownPropertiesAreIgnored() throws Exception {
+        ServerConfig config = JsonCodecs.readServerConfig(
+                "{\"title\":\"Test\",\"futureField\":{\"a\":[1,2]},\"applications\":[{\"pkg\":\"com.example\",\"newFlag\":true}]}");
+        assertEquals("Test", config.getTitle());
+        assertEquals("com.example", config.getApplications().get(0).getPkg());
+    }
+
+    @Test
+    public void concurrentUse() throws Exception {
+        Random random = new Random(2);
+        final List<String> configs = new ArrayList<>();
+        for (int n = 0; n < 16; n++) {
+            configs.add(JsonCodecs.writeServerConfig(RandomModels.createConfig(random, 50)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int n = 0; n < 200; n++) {
+                            String json = configs.get((n + thread) % configs.size());
+                            if (!json.equals(JsonCodecs.writeServerConfig(JsonCodecs.readServerConfig(json)))) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                assertEquals(true, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void benchmarkAgainstNewMappers() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        Random random = new Random(3);
+        String json = JsonCodecs.writeServerConfig(RandomModels.createConfig(random, 100));
+        int iterations = 100;
+        long legacyTime = Long.MAX_VALUE;
+        long time = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < iterations; n++) {
+                // As in SettingsHelper before: a new mapper for each load and save
+                ServerConfig config = new ObjectMapper().readValue(json, ServerConfig.class);
+                new ObjectMapper().writeValueAsString(config);
+            }
+            legacyTime = Math.min(legacyTime, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int n = 0; n < iterations; n++) {
+                JsonCodecs.writeServerConfig(JsonCodecs.readServerConfig(json));
+            }
+            time = Math.min(time, System.nanoTime() - start);
+        }
+        assertTrue(String.format("Reading and writing a config of %d KB: new mappers %d us, shared codecs %d us",
+                json.length() / 1024, legacyTime / iterations / 1000, time / iterations / 1000), time < legacyTime);
+    }
+}
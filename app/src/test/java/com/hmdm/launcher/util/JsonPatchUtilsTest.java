@@ -0,0 +1,136 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the patches against the examples of RFC 6902 (appendix A) and RFC 7386 (appendix A).
+ * The JSON is written with single quotes for readability.
+ */
+public class JsonPatchUtilsTest {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    // Target, patch, expected result
+    private static final String[][] MERGE_PATCHES = {
+            {"{'a':'b'}", "{'a':'c'}", "{'a':'c'}"},
+            {"{'a':'b'}", "{'b':'c'}", "{'a':'b','b':'c'}"},
+            {"{'a':'b'}", "{'a':null}", "{}"},
+            {"{'a':'b','b':'c'}", "{'a':null}", "{'b':'c'}"},
+            {"{'a':['b']}", "{'a':'c'}", "{'a':'c'}"},
+            {"{'a':'c'}", "{'a':['b']}", "{'a':['b']}"},
+            {"{'a':{'b':'c'}}", "{'a':{'b':'d','c':null}}", "{'a':{'b':'d'}}"},
+            // Arrays are replaced as a whole
+            {"{'a':[{'b':'c'}]}", "{'a':[1]}", "{'a':[1]}"},
+            {"['a','b']", "['c','d']", "['c','d']"},
+            {"{'a':'b'}", "['c']", "['c']"},
+            {"{'a':'foo'}", "null", "null"},
+            {"{'a':'foo'}", "'bar'", "'bar'"},
+            // Null values of the target are kept
+            {"{'e':null}", "{'a':1}", "{'e':null,'a':1}"},
+            {"[1,2]", "{'a':'b','c':null}", "{'a':'b'}"},
+            {"{}", "{'a':{'bb':{'ccc':null}}}", "{'a':{'bb':{}}}"},
+    };
+
+    // Target, patch, expected result (null if the patch must fail)
+    private static final String[][] JSON_PATCHES = {
+            // A.1 - A.5
+            {"{'foo':'bar'}", "[{'op':'add','path':'/baz','value':'qux'}]", "{'baz':'qux','foo':'bar'}"},
+            {"{'foo':['bar','baz']}", "[{'op':'add','path':'/foo/1','value':'qux'}]", "{'foo':['bar','qux','baz']}"},
+            {"{'baz':'qux','foo':'bar'}", "[{'op':'remove','path':'/baz'}]", "{'foo':'bar'}"},
+            {"{'foo':['bar','qux','baz']}", "[{'op':'remove','path':'/foo/1'}]", "{'foo':['bar','baz']}"},
+            {"{'baz':'qux','foo':'bar'}", "[{'op':'replace','path':'/baz','value':'boo'}]", "{'baz':'boo','foo':'bar'}"},
+            // A.6, A.7: moving a value and an array element
+            {"{'foo':{'bar':'baz','waldo':'fred'},'qux':{'corge':'grault'}}",
+                    "[{'op':'move','from':'/foo/waldo','path':'/qux/thud'}]",
+                    "{'foo':{'bar':'baz'},'qux':{'corge':'grault','thud':'fred'}}"},
+            {"{'foo':['all','grass','cows','eat']}", "[{'op':'move','from':'/foo/1','path':'/foo/3'}]",
+                    "{'foo':['all','cows','eat','grass']}"},
+            // A.8, A.9: test success and failure
+            {"{'baz':'qux','foo':['a',2,'c']}",
+                    "[{'op':'test','path':'/baz','value':'qux'},{'op':'test','path':'/foo/1','value':2}]",
+                    "{'baz':'qux','foo':['a',2,'c']}"},
+            {"{'baz':'qux'}", "[{'op':'test','path':'/baz','value':'bar'}]", null},
+            // A.10 - A.12: nested member, unknown members of an operation, missing parent
+            {"{'foo':'bar'}", "[{'op':'add','path':'/child','value':{'grandchild':{}}}]",
+                    "{'foo':'bar','child':{'grandchild':{}}}"},
+            {"{'foo':'bar'}", "[{'op':'add','path':'/baz','value':'qux','xyz':123}]", "{'foo':'bar','baz':'qux'}"},
+            {"{'foo':'bar'}", "[{'op':'add','path':'/baz/bat','value':'qux'}]", null},
+            // A.13 (duplicate 'op' member) is a parser error, the tree has one member only
+            // A.14, A.15: escaped tokens, a string is not equal to a number
+            {"{'/':9,'~1':10}", "[{'op':'test','path':'/~01','value':10}]", "{'/':9,'~1':10}"},
+            {"{'/':9,'~1':10}", "[{'op':'test','path':'/~01','value':'10'}]", null},
+            // A.16: an array value is added as one element
+            {"{'foo':['bar']}", "[{'op':'add','path':'/foo/-','value':['abc','def']}]", "{'foo':['bar',['abc','def']]}"},
+            // Copy, then the copy is independent of the source
+            {"{'a':{'b':1}}", "[{'op':'copy','from':'/a','path':'/c'},{'op':'replace','path':'/c/b','value':2}]",
+                    "{'a':{'b':1},'c':{'b':2}}"},
+            // The empty pointer is the whole document
+            {"{'a':1}", "[{'op':'replace','path':'','value':[1,2]}]", "[1,2]"},
+            {"{'a':1}", "[{'op':'add','path':'','value':{'b':2}},{'op':'add','path':'/c','value':3}]", "{'b':2,'c':3}"},
+            {"{'a':1}", "[{'op':'remove','path':''}]", null},
+            // Errors
+            {"{'a':1}", "[{'op':'replace','path':'/b','value':2}]", null},
+            {"{'a':1}", "[{'op':'remove','path':'/b'}]", null},
+            {"{'a':[1]}", "[{'op':'add','path':'/a/2','value':2}]", null},
+            {"{'a':[1]}", "[{'op':'remove','path':'/a/-'}]", null},
+            {"{'a':1}", "[{'op':'add','path':'/b'}]", null},
+            {"{'a':1}", "[{'op':'increment','path':'/a'}]", null},
+            {"{'a':1}", "{'op':'remove','path':'/a'}", null},
+    };
+
+    @Test
+    public void mergePatch() throws IOException {
+        for (String[] patch : MERGE_PATCHES) {
+            JsonNode result = JsonPatchUtils.applyMergePatch(json(patch[0]), json(patch[1]));
+            assertEquals(patch[0] + " + " + patch[1], json(patch[2]), result);
+        }
+    }
+
+    @Test
+    public void jsonPatch() throws IOException {
+        for (String[] patch : JSON_PATCHES) {
+            String name = patch[0] + " + " + patch[1];
+            if (patch[2] == null) {
+                try {
+                    JsonPatchUtils.applyJsonPatch(json(patch[0]), json(patch[1]));
+                    fail(name + " must fail");
+                } catch (IllegalArgumentException e) {
+                    // Expected
+                }
+            } else {
+                assertEquals(name, json(patch[2]), JsonPatchUtils.applyJsonPatch(json(patch[0]), json(patch[1])));
+            }
+        }
+    }
+
+    private static JsonNode json(String text) throws IOException {
+        return mapper.readTree(text.replace('\'', '"'));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.LogConfigTable;
+import com.hmdm.launcher.json.RemoteLogConfig;
+import com.hmdm.launcher.json.RemoteLogItem;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that LogRuleMatcher gives the same results as the SQLite query it has replaced.
+ * SQLite runs on the JVM through the sqlite-jdbc driver.
+ */
+public class LogRuleMatcherTest {
+
+    private static final String PACKAGE = "com.example.app";
+
+    // The query replaced by LogRuleMatcher
+    private static final String FIND_MATCHING =
+            "SELECT * FROM log_rules WHERE packageId = ? AND level >= ? AND (filter IS NULL OR filter = '' OR ? LIKE ('%' || filter || '%')) LIMIT 1";
+
+    @Test
+    public void levelThreshold() {
+        LogRuleMatcher matcher = LogRuleMatcher.compile(Arrays.asList(
+                rule(PACKAGE, Const.LOG_INFO, null),
+                rule(PACKAGE, Const.LOG_VERBOSE, "trace")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_ERROR, "Failed")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_INFO, "Started")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "Started")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_VERBOSE, "Stack trace")));
+        assertFalse(matcher.match(item("com.example.other", Const.LOG_ERROR, "Failed")));
+        assertFalse(matcher.match(item(null, Const.LOG_ERROR, "Failed")));
+    }
+
+    @Test
+    public void wildcards() {
+        LogRuleMatcher matcher = LogRuleMatcher.compile(Arrays.asList(
+                rule(PACKAGE, Const.LOG_DEBUG, "install%failed"),
+                rule(PACKAGE, Const.LOG_DEBUG, "v_0")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "App install has failed")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "App failed to install")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "Version v10")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "Version v20")));
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "Version v0")));
+
+        LogRuleMatcher any = LogRuleMatcher.compile(Arrays.asList(rule(PACKAGE, Const.LOG_DEBUG, "%")));
+        assertTrue(any.match(item(PACKAGE, Const.LOG_DEBUG, "")));
+    }
+
+    @Test
+    public void asciiOnlyCaseFolding() {
+        LogRuleMatcher matcher = LogRuleMatcher.compile(Arrays.asList(
+                rule(PACKAGE, Const.LOG_DEBUG, "Error"),
+                rule(PACKAGE, Const.LOG_DEBUG, "café")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "ERROR: no network")));
+        assertTrue(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "CAFé")));
+        // Like SQLite without ICU, non-ASCII letters are case sensitive
+        assertFalse(matcher.match(item(PACKAGE, Const.LOG_DEBUG, "CAFÉ")));
+    }
+
+    @Test
+    public void nullMessageMatchesOnlyRulesWithoutFilter() {
+        LogRuleMatcher filtered = LogRuleMatcher.compile(Arrays.asList(rule(PACKAGE, Const.LOG_DEBUG, "%")));
+        assertFalse(filtered.match(item(PACKAGE, Const.LOG_DEBUG, null)));
+        LogRuleMatcher unfiltered = LogRuleMatcher.compile(Arrays.asList(rule(PACKAGE, Const.LOG_DEBUG, "")));
+        assertTrue(unfiltered.match(item(PACKAGE, Const.LOG_DEBUG, null)));
+    }
+
+    @Test
+    public void randomRulesMatchSqlite() throws SQLException {
+        Random random = new Random(20240611);
+        try (Connection db = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            db.createStatement().execute(LogConfigTable.getCreateTableSql());
+            for (int n = 0; n < 300; n++) {
+                List<RemoteLogConfig> rules = new ArrayList<>();
+                int count = 1 + random.nextInt(8);
+                for (int r = 0; r < count; r++) {
+                    String filter = random.nextInt(5) == 0 ? (random.nextBoolean() ? null : "") : randomText(random, 1 + random.nextInt(4));
+                    rules.add(rule(random.nextInt(4) == 0 ? "com.example.other" : PACKAGE, 1 + random.nextInt(5), filter));
+                }
+                saveRules(db, rules);
+                LogRuleMatcher matcher = LogRuleMatcher.compile(rules);
+                try (PreparedStatement query = db.prepareStatement(FIND_MATCHING)) {
+                    for (int i = 0; i < 300; i++) {
+                        RemoteLogItem item = item(random.nextInt(5) == 0 ? "com.example.other" : PACKAGE,
+                                1 + random.nextInt(5), random.nextInt(20) == 0 ? null : randomText(random, random.nextInt(12)));
+                        assertEquals(rules + " " + item.getLogLevel() + " " + item.getMessage(),
+                                sqliteMatch(query, item), matcher.match(item));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkAgainstSqlite() throws SQLException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        Random random = new Random(1);
+        List<RemoteLogConfig> rules = new ArrayList<>();
+        for (int n = 0; n < 50; n++) {
+            String filter = n % 10 == 0 ? "error%code " + n : "event" + n + " ";
+            rules.add(rule(PACKAGE, Const.LOG_DEBUG, filter));
+        }
+        List<RemoteLogItem> items = new ArrayList<>();
+        for (int n = 0; n < 20000; n++) {
+            items.add(item(PACKAGE, 1 + random.nextInt(5), "Processing event" + random.nextInt(500) +
+                    " of the device configuration, step " + n));
+        }
+        try (Connection db = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            db.createStatement().execute(LogConfigTable.getCreateTableSql());
+            saveRules(db, rules);
+            LogRuleMatcher matcher = LogRuleMatcher.compile(rules);
+            try (PreparedStatement query = db.prepareStatement(FIND_MATCHING)) {
+                long sqliteTime = Long.MAX_VALUE;
+                long matcherTime = Long.MAX_VALUE;
+                for (int run = 0; run < 5; run++) {
+                    int sqliteMatches = 0;
+                    long start = System.nanoTime();
+                    for (RemoteLogItem item : items) {
+                        sqliteMatches += sqliteMatch(query, item) ? 1 : 0;
+                    }
+                    sqliteTime = Math.min(sqliteTime, System.nanoTime() - start);
+                    int matches = 0;
+                    start = System.nanoTime();
+                    for (RemoteLogItem item : items) {
+                        matches += matcher.match(item) ? 1 : 0;
+                    }
+                    matcherTime = Math.min(matcherTime, System.nanoTime() - start);
+                    assertEquals(sqliteMatches, matches);
+                }
+                assertTrue(String.format("Matching %d items against %d rules: SQLite query %d ns/item, matcher %d ns/item",
+                        items.size(), rules.size(), sqliteTime / items.size(), matcherTime / items.size()),
+                        matcherTime < sqliteTime);
+            }
+        }
+    }
+
+    private static void saveRules(Connection db, List<RemoteLogConfig> rules) throws SQLException {
+        db.createStatement().execute("DELETE FROM log_rules");
+        try (PreparedStatement insert = db.prepareStatement("INSERT INTO log_rules(packageId, level, filter) VALUES (?, ?, ?)")) {
+            for (RemoteLogConfig rule : rules) {
+                insert.setString(1, rule.getPackageId());
+                insert.setString(2, Integer.toString(rule.getLogLevel()));
+                insert.setString(3, rule.getFilter());
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    private static boolean sqliteMatch(PreparedStatement query, RemoteLogItem item) throws SQLException {
+        query.setString(1, item.getPackageId());
+        query.setString(2, Integer.toString(item.getLogLevel()));
+        query.setString(3, item.getMessage());
+        try (ResultSet resultSet = query.executeQuery()) {
+            return resultSet.next();
+        }
+    }
+
+    // Letters of both cases, wildcards and non-ASCII letters
+    private static String randomText(Random random, int length) {
+        final String alphabet = "aAbBc %_éÉ";
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < length; n++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    private static RemoteLogConfig rule(String packageId, int level, String filter) {
+        RemoteLogConfig rule = new RemoteLogConfig();
+        rule.setPackageId(packageId);
+        rule.setLogLevel(level);
+        rule.setFilter(filter);
+        return rule;
+    }
+
+    private static RemoteLogItem item(String packageId, int level, String message) {
+        RemoteLogItem item = new RemoteLogItem();
+        item.setPackageId(packageId);
+        item.setLogLevel(level);
+        item.setMessage(message);
+        return item;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.pm.PackageInfo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the index against a fake package manager, in particular the packages changed while
+ * the index is being built: they must be replayed after the stale list is published.
+ */
+public class PackageIndexTest {
+
+    private static final long TIMEOUT = 10000;
+
+    // Installed packages (name to version code), changed by the tests
+    private static class FakeSource implements PackageIndex.Source {
+        final Map<String, Integer> installed = new LinkedHashMap<>();
+        final Set<String> launchable = new HashSet<>();
+        final Map<String, Integer> infoRequests = new HashMap<>();
+        // If set, the build waits for releaseBuild after taking the package list
+        CountDownLatch buildStarted;
+        CountDownLatch releaseBuild;
+        // If set, the info request of this package waits for releaseInfo
+        String blockedPackage;
+        CountDownLatch infoStarted;
+        CountDownLatch releaseInfo;
+        int failedBuilds;
+
+        synchronized void install(String packageName, int versionCode, boolean hasLauncher) {
+            installed.put(packageName, versionCode);
+            if (hasLauncher) {
+                launchable.add(packageName);
+            } else {
+                launchable.remove(packageName);
+            }
+        }
+
+        synchronized void remove(String packageName) {
+            installed.remove(packageName);
+            launchable.remove(packageName);
+        }
+
+        synchronized int getInfoRequests(String packageName) {
+            Integer count = infoRequests.get(packageName);
+            return count != null ? count : 0;
+        }
+
+        @Override
+        public List<PackageInfo> getInstalledPackages() {
+            List<PackageInfo> result = new ArrayList<>();
+            synchronized (this) {
+                if (failedBuilds > 0) {
+                    failedBuilds--;
+                    throw new RuntimeException("Package manager has died");
+                }
+                for (Map.Entry<String, Integer> entry : installed.entrySet()) {
+                    result.add(createInfo(entry.getKey(), entry.getValue()));
+                }
+            }
+            if (buildStarted != null) {
+                buildStarted.countDown();
+                await(releaseBuild);
+            }
+            return result;
+        }
+
+        @Override
+        public PackageInfo getPackageInfo(String packageName) {
+            if (packageName.equals(blockedPackage)) {
+                blockedPackage = null;
+                infoStarted.countDown();
+                await(releaseInfo);
+            }
+            synchronized (this) {
+                infoRequests.put(packageName, getInfoRequests(packageName) + 1);
+                Integer versionCode = installed.get(packageName);
+                return versionCode != null ? createInfo(packageName, versionCode) : null;
+            }
+        }
+
+        @Override
+        public synchronized Set<String> getLaunchablePackages(String packageName) {
+            Set<String> result = new HashSet<>();
+            for (String launchablePackage : launchable) {
+                if (packageName == null || packageName.equals(launchablePackage)) {
+                    result.add(launchablePackage);
+                }
+            }
+            return result;
+        }
+    }
+
+    private static PackageInfo createInfo(String packageName, int versionCode) {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.packageName = packageName;
+        packageInfo.versionCode = versionCode;
+        packageInfo.versionName = "1." + versionCode;
+        return packageInfo;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Map<String, PackageIndex.Entry> awaitPackages(PackageIndex index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        Map<String, PackageIndex.Entry> packages;
+        while ((packages = index.getPackages()) == null) {
+            assertTrue("Index is not built", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return packages;
+    }
+
+    private static void awaitUpdates(PackageIndex index, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (index.getUpdates() < count) {
+            assertTrue("Updates are not done", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(count, index.getUpdates());
+    }
+
+    private static void assertVersions(PackageIndex index, String... expected) {
+        List<String> versions = new ArrayList<>();
+        for (PackageIndex.Entry entry : index.getPackages().values()) {
+            versions.add(entry.getPackageName() + ":" + entry.getVersionCode() + (entry.isLaunchable() ? "+" : ""));
+        }
+        assertEquals(Arrays.asList(expected), versions);
+    }
+
+    @Test
+    public void buildAndUpdate() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        source.install("com.example.a", 1, true);
+        source.install("com.example.b", 2, false);
+        PackageIndex index = new PackageIndex(source);
+        index.startBuild();
+        Map<String, PackageIndex.Entry> packages = awaitPackages(index);
+        assertVersions(index, "com.example.a:1+", "com.example.b:2");
+        assertEquals("1.1", packages.get("com.example.a").getVersionName());
+
+        source.install("com.example.c", 3, true);
+        index.updatePackage("com.example.c");
+        source.install("com.example.a", 4, false);
+        index.updatePackage("com.example.a");
+        source.remove("com.example.b");
+        index.updatePackage("com.example.b");
+        assertEquals(3, index.getUpdates());
+        assertVersions(index, "com.example.a:4", "com.example.c:3+");
+        // The published snapshots are not changed by the updates
+        assertEquals(2, packages.size());
+        assertEquals(1, packages.get("com.example.a").getVersionCode());
+    }
+
+    @Test
+    public void changesDuringBuildAreReplayed() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        source.install("com.example.a", 1, true);
+        source.install("com.example.b", 1, true);
+        source.buildStarted = new CountDownLatch(1);
+        source.releaseBuild = new CountDownLatch(1);
+        PackageIndex index = new PackageIndex(source);
+        index.startBuild();
+        await(source.buildStarted);
+
+        // The build has already taken the package list, so these changes are not in it
+        source.install("com.example.a", 2, false);
+        source.remove("com.example.b");
+        source.install("com.example.c", 1, true);
+        index.updatePackage("com.example.a");
+        index.updatePackage("com.example.b");
+        index.updatePackage("com.example.c");
+        assertNull(index.getPackages());
+        assertEquals(0, index.getUpdates());
+
+        source.releaseBuild.countDown();
+        awaitPackages(index);
+        awaitUpdates(index, 3);
+        assertVersions(index, "com.example.a:2", "com.example.c:1+");
+    }
+
+    @Test
+    public void queuedUpdatesAreNotRepeated() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        source.install("com.example.a", 1, true);
+        PackageIndex index = new PackageIndex(source);
+        index.startBuild();
+        awaitPackages(index);
+
+        // Hold the update thread in the first update of a
+        source.blockedPackage = "com.example.a";
+        source.infoStarted = new CountDownLatch(1);
+        source.releaseInfo = new CountDownLatch(1);
+        index.updatePackageAsync("com.example.a");
+        await(source.infoStarted);
+
+        source.install("com.example.b", 1, true);
+        for (int n = 0; n < 3; n++) {
+            index.updatePackageAsync("com.example.b");
+        }
+        // The update of a is running, so a change of a after its start is queued again
+        source.install("com.example.a", 2, true);
+        index.updatePackageAsync("com.example.a");
+        source.releaseInfo.countDown();
+
+        awaitUpdates(index, 3);
+        assertEquals(1, source.getInfoRequests("com.example.b"));
+        assertEquals(2, source.getInfoRequests("com.example.a"));
+        assertVersions(index, "com.example.a:2+", "com.example.b:1+");
+    }
+
+    @Test
+    public void failedBuildIsRetried() throws InterruptedException {
+        FakeSource source = new FakeSource();
+        source.install("com.example.a", 1, true);
+        source.failedBuilds = 1;
+        PackageIndex index = new PackageIndex(source);
+        index.startBuild();
+
+        // Each miss starts a new build until one of them succeeds
+        Map<String, PackageIndex.Entry> packages = awaitPackages(index);
+        assertNotNull(packages.get("com.example.a"));
+        assertTrue(index.getMisses() > 0);
+        assertTrue(index.getHits() > 0);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the version comparison based on ParsedVersion gives the same results
+ * as the string based comparison it has replaced.
+ */
+public class ParsedVersionTest {
+
+    private static final String[] EDGE_CASES = {
+            "", ".", "..", "1", "1.", ".1", "1..2", "1.0", "1.0.0", "1.0.", "01.002", "1.0-beta", "1.0 beta 2",
+            "v2", "abc", "1.a.2", "6.09", "6.9", "6.10", "10.0 (build 5)", "2147483647", "2147483648",
+            "1.2147483648", "99999999999.1", "-1", "1.-2", "1_2", " 1.2 ", "1.2.3.4.5.6.7.8.9"
+    };
+
+    // Version code of the installed app, version code of the config (null or 0 means that names are compared)
+    private static final int[][] CODES = {
+            {0, -1}, {0, 0}, {5, 0}, {5, 5}, {5, 7}, {7, 5}
+    };
+
+    @Test
+    public void edgeCasesMatchLegacyComparison() {
+        List<String> versions = new ArrayList<>();
+        for (String version : EDGE_CASES) {
+            versions.add(version);
+        }
+        versions.add(null);
+        for (String v1 : versions) {
+            for (String v2 : versions) {
+                for (int[] codes : CODES) {
+                    assertSameResult(v1, codes[0], v2, codes[1] < 0 ? null : codes[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void randomVersionsMatchLegacyComparison() {
+        Random random = new Random(20240611);
+        for (int n = 0; n < 200000; n++) {
+            String v1 = randomVersion(random);
+            // Similar versions are more interesting than unrelated ones
+            String v2 = random.nextInt(4) == 0 ? v1 : (random.nextBoolean() ? mutate(v1, random) : randomVersion(random));
+            int[] codes = CODES[random.nextInt(CODES.length)];
+            assertSameResult(v1, codes[0], v2, codes[1] < 0 ? null : codes[1]);
+        }
+    }
+
+    @Test
+    public void benchmarkCompareVersions() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        Random random = new Random(1);
+        String[] versions = new String[1000];
+        for (int n = 0; n < versions.length; n++) {
+            versions[n] = random.nextInt(20) + "." + random.nextInt(20) + "." + random.nextInt(200) +
+                    (random.nextInt(5) == 0 ? "-beta" : "");
+        }
+        int iterations = 200000;
+        // Warm up both implementations
+        runLegacy(versions, iterations);
+        run(versions, iterations);
+
+        long start = System.nanoTime();
+        int legacyResult = runLegacy(versions, iterations);
+        long legacyTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        int result = run(versions, iterations);
+        long time = System.nanoTime() - start;
+
+        assertEquals(legacyResult, result);
+        assertTrue(String.format("compareVersions + areVersionsEqual: legacy %d ns/op, parsed %d ns/op",
+                legacyTime / iterations, time / iterations), time < legacyTime);
+    }
+
+    private static int run(String[] versions, int iterations) {
+        int sum = 0;
+        for (int n = 0; n < iterations; n++) {
+            String v1 = versions[n % versions.length];
+            String v2 = versions[(n * 7 + 1) % versions.length];
+            sum += InstallUtils.compareVersions(v1, 0, v2, null);
+            sum += InstallUtils.areVersionsEqual(v1, 0, v2, null) ? 1 : 0;
+        }
+        return sum;
+    }
+
+    private static int runLegacy(String[] versions, int iterations) {
+        int sum = 0;
+        for (int n = 0; n < iterations; n++) {
+            String v1 = versions[n % versions.length];
+            String v2 = versions[(n * 7 + 1) % versions.length];
+            sum += legacyCompareVersions(v1, 0, v2, null);
+            sum += legacyAreVersionsEqual(v1, 0, v2, null) ? 1 : 0;
+        }
+        return sum;
+    }
+
+    private static void assertSameResult(String v1, int c1, String v2, Integer c2) {
+        String message = "\"" + v1 + "\" (" + c1 + ") vs \"" + v2 + "\" (" + c2 + ")";
+        assertEquals(message, legacyCompareVersions(v1, c1, v2, c2), InstallUtils.compareVersions(v1, c1, v2, c2));
+        assertEquals(message, legacyAreVersionsEqual(v1, c1, v2, c2), InstallUtils.areVersionsEqual(v1, c1, v2, c2));
+    }
+
+    private static String randomVersion(Random random) {
+        final String alphabet = "0123456789012345678901234567890123456789.....ab-_ ";
+        int length = random.nextInt(14);
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < length; n++) {
+            if (random.nextInt(40) == 0) {
+                // Too large for an int
+                sb.append(3000000000L + random.nextInt(1000));
+            } else {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String mutate(String version, Random random) {
+        if (version.isEmpty()) {
+            return "1";
+        }
+        StringBuilder sb = new StringBuilder(version);
+        int position = random.nextInt(sb.length());
+        switch (random.nextInt(3)) {
+            case 0:
+                sb.setCharAt(position, (char) ('0' + random.nextInt(10)));
+                break;
+            case 1:
+                sb.insert(position, random.nextBoolean() ? "." : "x");
+                break;
+            default:
+                sb.deleteCharAt(position);
+                break;
+        }
+        return sb.toString();
+    }
+
+    // The implementations replaced by ParsedVersion
+
+    private static boolean legacyAreVersionsEqual(String v1, int c1, String v2, Integer c2) {
+        if (c2 != null && c2 != 0) {
+            return c1 == c2;
+        }
+        if (v1 == null || v2 == null) {
+            return v1 == v2;
+        }
+        String v1d = v1.replaceAll("[^\\d.]", "");
+        String v2d = v2.replaceAll("[^\\d.]", "");
+        return v1d.equals(v2d);
+    }
+
+    private static int legacyCompareVersions(String v1, int c1, String v2, Integer c2) {
+        if (c2 != null && c2 != 0) {
+            if (c1 < c2) {
+                return -1;
+            } else if (c1 > c2) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+        if (v1 == null && v2 == null) {
+            return 0;
+        }
+        if (v1 == null) {
+            return -1;
+        }
+        if (v2 == null) {
+            return 1;
+        }
+        String v1d = v1.replaceAll("[^\\d.]", "");
+        String v2d = v2.replaceAll("[^\\d.]", "");
+
+        String[] v1n = v1d.split("\\.");
+        String[] v2n = v2d.split("\\.");
+
+        int count = v1n.length < v2n.length ? v1n.length : v2n.length;
+
+        for (int n = 0; n < count; n++) {
+            try {
+                int n1 = Integer.parseInt(v1n[n]);
+                int n2 = Integer.parseInt(v2n[n]);
+                if (n1 < n2) {
+                    return -1;
+                } else if (n1 > n2) {
+                    return 1;
+                }
+            } catch (Exception e) {
+                return 0;
+            }
+        }
+
+        if (v1n.length < v2n.length) {
+            return -1;
+        } else if (v1n.length > v2n.length) {
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.json.ServerConfig;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates model objects with every property set to a random value, so the tests
+ * don't have to be updated when a property is added.
+ */
+public class RandomModels {
+
+    // Non-ASCII and escaped characters
+    private static final String ALPHABET = "abcXYZ019 .-_/\"\\\n\tйé€";
+
+    public static ServerConfig createConfig(Random random, int applications) {
+        ServerConfig config = create(ServerConfig.class, random);
+        List<Application> list = new ArrayList<>();
+        for (int n = 0; n < applications; n++) {
+            list.add(create(Application.class, random));
+        }
+        config.setApplications(list);
+        return config;
+    }
+
+    public static <T> T create(Class<T> type, Random random) {
+        try {
+            T object = type.newInstance();
+            Method[] methods = type.getMethods();
+            // The order of getMethods() is not defined, a fixed seed must give the same object
+            Arrays.sort(methods, new Comparator<Method>() {
+                @Override
+                public int compare(Method m1, Method m2) {
+                    return m1.toString().compareTo(m2.toString());
+                }
+            });
+            for (Method method : methods) {
+                if (method.getName().startsWith("set") && method.getParameterTypes().length == 1) {
+                    Object value = createValue(method.getGenericParameterTypes()[0], random);
+                    if (value != null || !method.getParameterTypes()[0].isPrimitive()) {
+                        method.invoke(object, value);
+                    }
+                }
+            }
+            return object;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Object createValue(Type type, Random random) {
+        // Nulls are written too, so some properties are left empty
+        boolean empty = random.nextInt(8) == 0;
+        if (type == String.class) {
+            return empty ? null : randomText(random);
+        } else if (type == int.class || type == Integer.class) {
+            return empty && type == Integer.class ? null : (Object) (random.nextBoolean() ? random.nextInt(100) : random.nextInt());
+        } else if (type == long.class || type == Long.class) {
+            return empty && type == Long.class ? null : (Object) random.nextLong();
+        } else if (type == double.class || type == Double.class) {
+            return empty && type == Double.class ? null : (Object) ((random.nextDouble() - 0.5) * 360);
+        } else if (type == boolean.class || type == Boolean.class) {
+            return empty && type == Boolean.class ? null : (Object) random.nextBoolean();
+        } else if (type instanceof ParameterizedType && ((ParameterizedType) type).getRawType() == List.class) {
+            if (empty) {
+                return null;
+            }
+            Type itemType = ((ParameterizedType) type).getActualTypeArguments()[0];
+            List<Object> list = new ArrayList<>();
+            int count = random.nextInt(4);
+            for (int n = 0; n < count; n++) {
+                Object item = createValue(itemType, random);
+                if (item != null) {
+                    list.add(item);
+                }
+            }
+            return list;
+        } else if (type instanceof Class && ((Class<?>) type).getName().startsWith("com.hmdm.launcher.json.")) {
+            return empty ? null : create((Class<?>) type, random);
+        }
+        throw new IllegalArgumentException("Unsupported property type " + type);
+    }
+
+    private static String randomText(Random random) {
+        int length = random.nextInt(20);
+        StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < length; n++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.RemoteLogItem;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every item added to RemoteLogBuffer is either written once or counted as dropped,
+ * and that the overflow policies drop the right items.
+ */
+public class RemoteLogBufferTest {
+
+    private final int policy = Const.LOG_BUFFER_OVERFLOW_POLICY;
+
+    @After
+    public void restorePolicy() {
+        Const.LOG_BUFFER_OVERFLOW_POLICY = policy;
+    }
+
+    @Test
+    public void producersAndWriterAccounting() throws Exception {
+        final int producers = 8;
+        final int itemsPerProducer = 50000;
+        final TestBuffer buffer = new TestBuffer(1024);
+        // A slow database, so the buffer overflows
+        buffer.saveDelay = 1;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(producer);
+                    for (int n = 0; n < itemsPerProducer; n++) {
+                        buffer.add(item(Const.LOG_ERROR + random.nextInt(5), n, producer + ":" + n));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long adds = (long) producers * itemsPerProducer;
+        waitUntilDrained(buffer, adds);
+
+        assertEquals(adds, buffer.getWritten() + buffer.getDropped());
+        assertTrue(buffer.getDropped() > 0);
+        List<RemoteLogItem> saved = buffer.getSaved();
+        assertEquals(buffer.getWritten(), saved.size());
+        Set<String> messages = new HashSet<>();
+        for (RemoteLogItem item : saved) {
+            assertTrue("Written twice: " + item.getMessage(), messages.add(item.getMessage()));
+        }
+    }
+
+    @Test
+    public void lowestLevelIsDropped() throws Exception {
+        Const.LOG_BUFFER_OVERFLOW_POLICY = Const.LOG_OVERFLOW_DROP_LOWEST_LEVEL;
+        final int capacity = 64;
+        TestBuffer buffer = new TestBuffer(capacity);
+        buffer.blockWriter();
+
+        for (int n = 0; n < capacity; n++) {
+            assertTrue(buffer.add(item(Const.LOG_DEBUG, n, "debug " + n)));
+        }
+        for (int n = 0; n < capacity; n++) {
+            assertTrue(buffer.add(item(Const.LOG_ERROR, capacity + n, "error " + n)));
+        }
+        // The buffer is full of items of a higher level
+        assertFalse(buffer.add(item(Const.LOG_INFO, 2 * capacity, "info")));
+
+        buffer.releaseWriter();
+        waitUntilDrained(buffer, 2 * capacity + 2);
+        List<RemoteLogItem> saved = buffer.getSaved();
+        assertEquals(capacity + 1, saved.size());
+        for (RemoteLogItem item : saved.subList(1, saved.size())) {
+            assertEquals(Const.LOG_ERROR, item.getLogLevel());
+        }
+        assertEquals(capacity + 1, buffer.getDropped());
+    }
+
+    @Test
+    public void oldestIsDropped() throws Exception {
+        Const.LOG_BUFFER_OVERFLOW_POLICY = Const.LOG_OVERFLOW_DROP_OLDEST;
+        final int capacity = 64;
+        TestBuffer buffer = new TestBuffer(capacity);
+        buffer.blockWriter();
+
+        for (int n = 0; n < 3 * capacity; n++) {
+            // The levels don't matter, only the time
+            assertTrue(buffer.add(item(Const.LOG_ERROR + n % 5, n, "item " + n)));
+        }
+
+        buffer.releaseWriter();
+        waitUntilDrained(buffer, 3 * capacity + 1);
+        List<RemoteLogItem> saved = buffer.getSaved();
+        assertEquals(capacity + 1, saved.size());
+        Set<String> messages = new HashSet<>();
+        for (RemoteLogItem item : saved.subList(1, saved.size())) {
+            messages.add(item.getMessage());
+        }
+        for (int n = 2 * capacity; n < 3 * capacity; n++) {
+            assertTrue(messages.contains("item " + n));
+        }
+    }
+
+    private static void waitUntilDrained(RemoteLogBuffer buffer, long adds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (buffer.getWritten() + buffer.getDropped() < adds && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static RemoteLogItem item(int level, long timestamp, String message) {
+        RemoteLogItem item = new RemoteLogItem();
+        item.setPackageId("com.hmdm.launcher");
+        item.setLogLevel(level);
+        item.setTimestamp(timestamp);
+        item.setMessage(message);
+        return item;
+    }
+
+    private static Context createContext() {
+        return new ContextWrapper(null) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+        };
+    }
+
+    // Keeps the written items in memory instead of the database
+    private static class TestBuffer extends RemoteLogBuffer {
+        private final List<RemoteLogItem> saved = Collections.synchronizedList(new ArrayList<RemoteLogItem>());
+        private volatile long saveDelay;
+        private CountDownLatch writerStarted;
+        private CountDownLatch writerReleased;
+
+        TestBuffer(int capacity) {
+            super(createContext(), capacity);
+        }
+
+        // Add an item and wait until the writer takes it and blocks, so the next items fill the buffer
+        void blockWriter() throws InterruptedException {
+            writerStarted = new CountDownLatch(1);
+            writerReleased = new CountDownLatch(1);
+            add(item(Const.LOG_ERROR, -1, "first"));
+            assertTrue(writerStarted.await(10, TimeUnit.SECONDS));
+        }
+
+        void releaseWriter() {
+            writerReleased.countDown();
+        }
+
+        List<RemoteLogItem> getSaved() {
+            synchronized (saved) {
+                return new ArrayList<>(saved);
+            }
+        }
+
+        @Override
+        void save(List<RemoteLogItem> batch) {
+            if (writerStarted != null && writerStarted.getCount() > 0) {
+                writerStarted.countDown();
+                try {
+                    writerReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (saveDelay > 0) {
+                try {
+                    Thread.sleep(saveDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            saved.addAll(batch);
+        }
+
+        @Override
+        void onSaved() {
+        }
+    }
+}
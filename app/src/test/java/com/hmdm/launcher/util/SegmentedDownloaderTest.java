@@ -0,0 +1,273 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.server.ServerServiceKeeper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Downloads files from a local HTTP server supporting byte ranges, in segments and as a single stream.
+ */
+public class SegmentedDownloaderTest {
+
+    private static final int FILE_SIZE = 20 * 1024 * 1024 + 12345;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private byte[] content;
+    private volatile String etag = "\"v1\"";
+    private volatile boolean acceptRanges = true;
+    // Bytes per second for each connection, 0 for no limit
+    private volatile long connectionSpeed = 0;
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file.bin", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void segmentsMakeTheSameFile() throws Exception {
+        File file = File.createTempFile("segmented", ".part");
+        try {
+            Response response = get();
+            SegmentedDownloader downloader;
+            final AtomicLong lastProgress = new AtomicLong();
+            try {
+                assertTrue(SegmentedDownloader.isSupported(response, response.header("ETag")));
+                downloader = new SegmentedDownloader(response.request(), response.header("ETag"), file, FILE_SIZE);
+                downloader.download(response, new InstallUtils.DownloadProgress() {
+                    @Override
+                    public void onDownloadProgress(int progress, long total, long current) {
+                        lastProgress.set(current);
+                    }
+                });
+            } finally {
+                response.close();
+            }
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            assertEquals(FILE_SIZE, lastProgress.get());
+            // 20 MB in 4 segments, the first one is the initial response
+            assertEquals(3, rangeRequests.get());
+            assertEquals((FILE_SIZE + 3) / 4, downloader.getContiguousLength());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void singleStreamWithoutRanges() throws Exception {
+        acceptRanges = false;
+        Response response = get();
+        try {
+            assertFalse(SegmentedDownloader.isSupported(response, response.header("ETag")));
+        } finally {
+            response.close();
+        }
+        acceptRanges = true;
+        response = get();
+        try {
+            // No validator to check that the segments belong to the same file
+            assertFalse(SegmentedDownloader.isSupported(response, null));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void changedFileFailsTheDownload() throws Exception {
+        File file = File.createTempFile("segmented", ".part");
+        try {
+            Response response = get();
+            SegmentedDownloader downloader = new SegmentedDownloader(response.request(), response.header("ETag"), file, FILE_SIZE);
+            // The server ignores the ranges and sends the whole new file
+            etag = "\"v2\"";
+            try {
+                downloader.download(response, new InstallUtils.DownloadProgress() {
+                    @Override
+                    public void onDownloadProgress(int progress, long total, long current) {
+                    }
+                });
+                fail("The download of a changed file must fail");
+            } catch (Exception e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Bad segment response"));
+            } finally {
+                response.close();
+            }
+            // Only the start of the file can be resumed
+            long contiguous = downloader.getContiguousLength();
+            assertTrue(contiguous <= (FILE_SIZE + 3) / 4);
+            byte[] saved = Arrays.copyOf(Files.readAllBytes(file.toPath()), (int) contiguous);
+            assertArrayEquals(Arrays.copyOf(content, (int) contiguous), saved);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void benchmarkThroughput() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        // Like a server or a network path limiting the speed of each connection
+        connectionSpeed = 32 * 1024 * 1024;
+        File file = File.createTempFile("segmented", ".part");
+        try {
+            long start = System.nanoTime();
+            Response response = get();
+            try {
+                InputStream is = response.body().byteStream();
+                OutputStream os = new FileOutputStream(file);
+                try {
+                    byte[] buffer = new byte[16 * 1024];
+                    int length;
+                    while ((length = is.read(buffer)) > 0) {
+                        os.write(buffer, 0, length);
+                    }
+                } finally {
+                    os.close();
+                }
+            } finally {
+                response.close();
+            }
+            long singleTime = System.nanoTime() - start;
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            file.delete();
+
+            start = System.nanoTime();
+            response = get();
+            try {
+                new SegmentedDownloader(response.request(), response.header("ETag"), file, FILE_SIZE).download(response,
+                        new InstallUtils.DownloadProgress() {
+                            @Override
+                            public void onDownloadProgress(int progress, long total, long current) {
+                            }
+                        });
+            } finally {
+                response.close();
+            }
+            long segmentedTime = System.nanoTime() - start;
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+
+            assertTrue(String.format("%d MB at %d MB/s per connection: single stream %.1f MB/s, segmented %.1f MB/s",
+                    FILE_SIZE >> 20, connectionSpeed >> 20, megabytesPerSecond(singleTime), megabytesPerSecond(segmentedTime)),
+                    segmentedTime < singleTime);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static double megabytesPerSecond(long nanos) {
+        return FILE_SIZE / (nanos / 1000000000.0) / (1024 * 1024);
+    }
+
+    private Response get() throws IOException {
+        Request request = new Request.Builder()
+                .url("http://127.0.0.1:" + server.getAddress().getPort() + "/file.bin")
+                .build();
+        return ServerServiceKeeper.getHttpClient().newCall(request).execute();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int start = 0;
+        int end = content.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        boolean partial = acceptRanges && range != null && (ifRange == null || ifRange.equals(etag));
+        if (partial) {
+            rangeRequests.incrementAndGet();
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Integer.parseInt(bounds[0]);
+            end = Integer.parseInt(bounds[1]);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        }
+        if (acceptRanges) {
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        int length = end - start + 1;
+        exchange.sendResponseHeaders(partial ? 206 : 200, length);
+        OutputStream os = exchange.getResponseBody();
+        try {
+            final int chunk = 64 * 1024;
+            long began = System.nanoTime();
+            for (int offset = 0; offset < length; offset += chunk) {
+                os.write(content, start + offset, Math.min(chunk, length - offset));
+                long speed = connectionSpeed;
+                if (speed > 0) {
+                    long due = began + (offset + chunk) * 1000000000L / speed;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client has stopped reading
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the names of the XAPK splits written to the installation session.
+ */
+public class XapkUtilsTest {
+
+    @Test
+    public void sessionNamesAreUnique() {
+        List<String> entries = Arrays.asList("base.apk", "config/x.apk", "x.apk", "splits/config/x.apk", "config.en.apk");
+        Set<String> names = new HashSet<>();
+        for (int n = 0; n < entries.size(); n++) {
+            String name = XapkUtils.getSessionName(entries.get(n), n);
+            assertFalse(name, name.contains("/"));
+            assertTrue(name, name.endsWith(".apk"));
+            assertTrue("Duplicate name: " + name, names.add(name));
+        }
+        assertEquals("base_0.apk", XapkUtils.getSessionName("base.apk", 0));
+        assertEquals("config.en_4.apk", XapkUtils.getSessionName("splits/config.en.apk", 4));
+    }
+}